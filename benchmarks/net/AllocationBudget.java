@@ -0,0 +1,133 @@
+package net;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.util.Random;
+
+import com.sun.management.ThreadMXBean;
+
+import net.protobufs.SteammessagesRemoteclient.CMsgRemoteClientAppStatus;
+import net.protobufs.SteammessagesRemoteclient.CMsgRemoteClientPingResponse;
+import net.protobufs.SteammessagesRemoteclientDiscovery.CMsgRemoteClientBroadcastStatus;
+
+/*
+ * Checks that the packet paths don't allocate more than they're allowed to once they're warmed up, so a change that
+ * starts making garbage on every packet gets noticed. Runs DiscoveryProtocolHandler.handlePacket and
+ * ControlProtocolHandler.handleMessage in a loop and counts the bytes this thread allocates (HotSpot's
+ * com.sun.management.ThreadMXBean), after a warm up long enough for the JIT to have done its escape analysis.
+ *
+ * Prints every path's bytes per packet against its budget and exits with 1 if any went over, so it can gate a build.
+ * Budgets are what the paths allocate today with some headroom, on Java 8 and 21. Lower them when a path gets leaner.
+ * Java 8 needs more for discovery than 21 does, mostly DataInputStream's scratch arrays, which 21 manages to not make.
+ *
+ * Control frames start after the body has been read, the read loop's body array isn't counted. Allocations on the
+ * dispatcher's threads (like the catalog merging a 9502) aren't counted either, only the read thread's. The read thread
+ * does merge 9502s into the ones still waiting for the catalog, and here the catalog is always behind, so that's counted.
+ */
+public class AllocationBudget {
+	private static final int WARMUP = 300000;
+	private static final int ITERATIONS = 200000;
+
+	private static ThreadMXBean threads;
+	private static boolean passed = true;
+
+	public static void main(String[] args) throws Exception {
+		threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+		if(!threads.isThreadAllocatedMemorySupported()){
+			System.out.println("This JVM can't count allocated bytes per thread");
+			System.exit(2);
+		}
+		threads.setThreadAllocatedMemoryEnabled(true);
+
+		System.out.printf("%-40s %10s %10s%n", "Path", "Bytes", "Budget");
+
+		//Discovery, 256 servers that are already in the table sending the same status again
+		Random random = new Random(42);
+		final DiscoveryProtocolHandler discovery = new DiscoveryProtocolHandler(76561190000000000L, 1, "127.0.0.1");
+		final DatagramPacket[] statuses = new DatagramPacket[256];
+		for(int i = 0; i < statuses.length; i++){
+			byte[] data = DiscoveryReplayBenchmark.makeStatusPacket(i, random);
+			statuses[i] = new DatagramPacket(data, data.length, InetAddress.getByAddress(new byte[]{10, 0, 0, (byte) i}), DiscoveryProtocolHandler.DISCOVERY_PORT);
+		}
+		check("Discovery status, known server", 1600, new Step(){
+			@Override
+			public void run(int i) throws IOException{
+				discovery.handlePacket(statuses[i % statuses.length]);
+			}
+		});
+
+		final DatagramPacket[] garbage = new DatagramPacket[256];
+		for(int i = 0; i < garbage.length; i++){
+			byte[] data = new byte[128];
+			random.nextBytes(data);
+			garbage[i] = new DatagramPacket(data, data.length, InetAddress.getByAddress(new byte[]{10, 0, 1, (byte) i}), DiscoveryProtocolHandler.DISCOVERY_PORT);
+		}
+		check("Discovery packet, bad preheader", 448, new Step(){
+			@Override
+			public void run(int i) throws IOException{
+				discovery.handlePacket(garbage[i % garbage.length]);
+			}
+		});
+
+		//Control, on a connection that was never opened. None of these frames need to send anything back.
+		final ControlProtocolHandler control = new ControlProtocolHandler(InetAddress.getByAddress(new byte[]{10, 0, 0, 1}), CMsgRemoteClientBroadcastStatus.getDefaultInstance(), "");
+
+		final byte[] pingResponse = CMsgRemoteClientPingResponse.getDefaultInstance().toByteArray();
+		check("Control 9506 ping response", 160, new Step(){
+			@Override
+			public void run(int i) throws IOException{
+				control.handleMessage(9506, pingResponse);
+			}
+		});
+
+		CMsgRemoteClientAppStatus.Builder appStatus = CMsgRemoteClientAppStatus.newBuilder();
+		for(int app = 0; app < 8; app++){
+			appStatus.addStatusUpdates(CMsgRemoteClientAppStatus.AppStatus.newBuilder().
+					setAppId(570 + app * 10).
+					setAppState(4).
+					setUpdateInfo(CMsgRemoteClientAppStatus.AppUpdateInfo.newBuilder().setBytesToDownload(1L << 30).setBytesDownloaded(random.nextInt(1 << 30))));
+		}
+		final byte[] appStatusBytes = appStatus.build().toByteArray();
+		check("Control 9502 app status, 8 apps", 4096, new Step(){
+			@Override
+			public void run(int i) throws IOException{
+				control.handleMessage(9502, appStatusBytes);
+			}
+		});
+
+		final byte[] unknown = new byte[16];
+		check("Control unknown EMsg", 0, new Step(){
+			@Override
+			public void run(int i) throws IOException{
+				control.handleMessage(9999, unknown);
+			}
+		});
+
+		System.out.println(passed ? "All paths within budget" : "Over budget");
+		System.exit(passed ? 0 : 1);
+	}
+
+	//Warms the step up, then measures its bytes per call on this thread against the budget
+	private static void check(String name, long budget, Step step) throws IOException{
+		for(int i = 0; i < WARMUP; i++){
+			step.run(i);
+		}
+
+		long thread = Thread.currentThread().getId();
+		long before = threads.getThreadAllocatedBytes(thread);
+		for(int i = 0; i < ITERATIONS; i++){
+			step.run(i);
+		}
+		long bytes = (threads.getThreadAllocatedBytes(thread) - before) / ITERATIONS;	//Rounded down, so a reading's own few bytes don't count
+
+		boolean within = bytes <= budget;
+		passed &= within;
+		System.out.printf("%-40s %10d %10d%s%n", name, bytes, budget, within ? "" : "  OVER");
+	}
+
+	private interface Step {
+		void run(int i) throws IOException;
+	}
+}
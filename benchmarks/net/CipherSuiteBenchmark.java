@@ -0,0 +1,174 @@
+package net;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import org.bouncycastle.crypto.tls.PSKTlsServer;
+import org.bouncycastle.crypto.tls.ProtocolVersion;
+import org.bouncycastle.crypto.tls.TlsClientProtocol;
+import org.bouncycastle.crypto.tls.TlsPSKIdentityManager;
+import org.bouncycastle.crypto.tls.TlsServerProtocol;
+
+/*
+ * Pushes data through a loopback TLS connection once for each PSK cipher suite and crypto backend and prints the
+ * throughput and how much CPU the sending (encrypting) and receiving (decrypting) sides used per megabyte. The client
+ * side is the same StreamingPSKTlsClient the ControlProtocolHandler uses, the server side is a plain BouncyCastle PSK server.
+ * The warm up runs pair each backend with the other one, so they also check the two can talk to each other.
+ */
+public class CipherSuiteBenchmark {
+	private static final String AUTH_DATA = "00112233445566778899aabbccddeeff00112233445566778899aabbccddeeff";	//Any hex string works as the PSK
+	private static final int CHUNK_SIZE = 16384;	//The largest TLS record
+
+	public static void main(String[] args) throws Exception {
+		if(args.length > 3){
+			System.out.println("Usage: CipherSuiteBenchmark (Megabytes) (Comma separated cipher suites) (Comma separated backends)");
+			System.exit(1);
+		}
+		
+		int megabytes = (args.length > 0 ? Integer.parseInt(args[0]) : 64);
+		int[] suites = (args.length > 1 ? CipherSuitePolicy.parse(args[1]).getCipherSuites(null) : CipherSuitePolicy.PREFERRED_SUITES);
+		CryptoBackend[] backends = CryptoBackend.values();
+		if(args.length > 2){
+			String[] names = args[2].split(",");
+			backends = new CryptoBackend[names.length];
+			for(int i = 0; i < names.length; i++){
+				backends[i] = CryptoBackend.valueOf(names[i].trim().toUpperCase());
+			}
+		}
+
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		if(!threads.isCurrentThreadCpuTimeSupported()){
+			System.out.println("This JVM can't measure thread CPU time, only throughput will be reported");
+		}
+
+		for(int suite : suites){
+			for(CryptoBackend backend : backends){
+				CryptoBackend other = (backend == CryptoBackend.JCA ? CryptoBackend.BOUNCYCASTLE : CryptoBackend.JCA);
+				
+				run(suite, backend, other, 8);	//Warm up the JIT for this suite first
+				run(suite, other, backend, 8);
+				
+				Result result = run(suite, backend, backend, megabytes);
+				System.out.printf("%-36s %-12s %8.1f MB/s   send %7.2f ms CPU/MB   receive %7.2f ms CPU/MB%n", CipherSuitePolicy.getSuiteName(suite), backend,
+					megabytes / (result.wallNanos / 1e9),
+					result.sendCpuNanos / 1e6 / megabytes,
+					result.receiveCpuNanos / 1e6 / megabytes);
+			}
+		}
+	}
+
+	static class Result {
+		long wallNanos;
+		long sendCpuNanos;
+		long receiveCpuNanos;
+	}
+
+	static Result run(final int suite, CryptoBackend clientBackend, final CryptoBackend serverBackend, int megabytes) throws Exception{
+		final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		final ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+		final long totalBytes = megabytes * 1024L * 1024L;
+		final long[] receiveCpu = new long[1];
+		final Exception[] serverError = new Exception[1];
+
+		//The receiving side: accept one connection, read everything and throw it away
+		Thread server = new Thread(new Runnable(){
+			@Override
+			public void run(){
+				try{
+					Socket socket = serverSocket.accept();
+					TlsServerProtocol protocol = new TlsServerProtocol(socket.getInputStream(), socket.getOutputStream(), new SecureRandom());
+					protocol.accept(new BenchmarkPSKTlsServer(suite, serverBackend));
+
+					long startCpu = threads.getCurrentThreadCpuTime();
+					InputStream in = protocol.getInputStream();
+					byte[] buffer = new byte[CHUNK_SIZE];
+					long received = 0;
+					while(received < totalBytes){
+						int read = in.read(buffer);
+						if(read < 0){
+							break;
+						}
+						received += read;
+					}
+					receiveCpu[0] = threads.getCurrentThreadCpuTime() - startCpu;
+
+					protocol.close();
+					socket.close();
+				} catch(Exception e){
+					serverError[0] = e;
+				}
+			}
+		});
+		server.setDaemon(true);	//Don't keep the JVM alive if the client side fails
+		server.start();
+
+		Socket socket = new Socket(serverSocket.getInetAddress(), serverSocket.getLocalPort());
+		TlsClientProtocol protocol = new TlsClientProtocol(socket.getInputStream(), socket.getOutputStream(), new SecureRandom());
+		protocol.connect(new ControlProtocolHandler.StreamingPSKTlsClient(AUTH_DATA, null, null, new int[]{suite}, clientBackend.createCipherFactory()));
+
+		byte[] chunk = new byte[CHUNK_SIZE];
+		Arrays.fill(chunk, (byte) 0x5a);
+
+		long startWall = System.nanoTime();
+		long startCpu = threads.getCurrentThreadCpuTime();
+		OutputStream out = protocol.getOutputStream();
+		for(long sent = 0; sent < totalBytes; sent += CHUNK_SIZE){
+			out.write(chunk);
+		}
+		long sendCpu = threads.getCurrentThreadCpuTime() - startCpu;
+
+		server.join();
+		long wall = System.nanoTime() - startWall;
+
+		protocol.close();
+		socket.close();
+		serverSocket.close();
+
+		if(serverError[0] != null){
+			throw serverError[0];
+		}
+
+		Result result = new Result();
+		result.wallNanos = wall;
+		result.sendCpuNanos = sendCpu;
+		result.receiveCpuNanos = receiveCpu[0];
+		return result;
+	}
+
+	//A server that only accepts the one suite being measured
+	static class BenchmarkPSKTlsServer extends PSKTlsServer{
+		private final int suite;
+
+		public BenchmarkPSKTlsServer(int suite, CryptoBackend backend){
+			super(backend.createCipherFactory(), new TlsPSKIdentityManager(){
+				@Override
+				public byte[] getHint(){
+					return null;
+				}
+
+				@Override
+				public byte[] getPSK(byte[] identity){
+					return Hex.decode(AUTH_DATA);
+				}
+			});
+			this.suite = suite;
+		}
+
+		@Override
+		protected int[] getCipherSuites(){
+			return new int[]{suite};
+		}
+
+		@Override
+		protected ProtocolVersion getMaximumVersion(){
+			return ProtocolVersion.TLSv12;	//The GCM and SHA256 suites need TLS 1.2
+		}
+	}
+}
@@ -0,0 +1,190 @@
+package net;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import net.protobufs.SteammessagesRemoteclientDiscovery;
+import net.protobufs.SteammessagesRemoteclientDiscovery.CMsgRemoteClientBroadcastStatus;
+
+/*
+ * Replays a busy network's worth of discovery traffic through DiscoveryProtocolHandler.handlePacket and measures what
+ * metrics cost: status packets from 256 servers, with 1% garbage mixed in.
+ *
+ * Metrics.ENABLED is fixed when the JVM starts, so each measurement is a fresh JVM, alternating with and without
+ * -Dnet.metrics=off. Each JVM reports its fastest batch, since noise only ever makes a batch slower, and how the JIT
+ * treated a JVM varies more than metrics cost, so the medians over every JVM are compared.
+ *
+ * On a noisy machine the difference can be smaller than the noise, so the cost of the counter increments themselves
+ * (one per packet) is measured too, as the floor on what metrics add.
+ */
+public class DiscoveryReplayBenchmark {
+	private static final int SERVERS = 256;
+	private static final int ROUNDS = 7;
+	private static final int BATCHES = 10;
+
+	public static void main(String[] args) throws Exception {
+		if(args.length > 0 && args[0].equals("replay")){
+			replay(Integer.parseInt(args[1]));
+			return;
+		}
+
+		int packets = (args.length > 0 ? Integer.parseInt(args[0]) : 1000000);	//Per batch
+		double[] on = new double[ROUNDS];
+		double[] off = new double[ROUNDS];
+		for(int round = 0; round < ROUNDS; round++){
+			on[round] = runJvm(true, packets);
+			off[round] = runJvm(false, packets);
+			System.out.printf("Round %d: %.1f ns/packet with metrics, %.1f ns/packet without%n", round + 1, on[round], off[round]);
+		}
+
+		Arrays.sort(on);
+		Arrays.sort(off);
+		double withMetrics = on[ROUNDS / 2];
+		double without = off[ROUNDS / 2];
+		System.out.printf("Median: %.1f ns/packet with metrics, %.1f without, %.2f%% overhead%n", withMetrics, without, (withMetrics / without - 1) * 100);
+
+		double increment = measureIncrement();
+		System.out.printf("A counter increment takes %.1f ns, %.2f%% of a packet%n", increment, increment / without * 100);
+	}
+
+	//Nanoseconds per StripedCounter.increment() on one thread, the same as the discovery thread does
+	private static double measureIncrement(){
+		StripedCounter counter = new StripedCounter();
+		int count = 100000000;
+		long best = Long.MAX_VALUE;
+		for(int batch = 0; batch < BATCHES; batch++){
+			long start = System.nanoTime();
+			for(int i = 0; i < count; i++){
+				counter.increment();
+			}
+			best = Math.min(best, System.nanoTime() - start);
+		}
+
+		if(counter.sum() != (long) count * BATCHES){	//Also keeps the JIT from dropping the loop
+			throw new AssertionError("Lost increments");
+		}
+		return best / (double) count;
+	}
+
+	//Runs the replay in a new JVM and returns its nanoseconds per packet
+	private static double runJvm(boolean metrics, int packets) throws IOException, InterruptedException {
+		List<String> command = new ArrayList<String>();
+		command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		if(!metrics){
+			command.add("-Dnet.metrics=off");
+		}
+		command.add(DiscoveryReplayBenchmark.class.getName());
+		command.add("replay");
+		command.add(Integer.toString(packets));
+
+		Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+		BufferedReader output = new BufferedReader(new InputStreamReader(process.getInputStream(), "UTF-8"));
+		StringBuilder log = new StringBuilder();	//The bad packet warnings, and errors if it fails
+		String result = null;
+		String line;
+		while((line = output.readLine()) != null){
+			if(line.startsWith("ns/packet ")){
+				result = line.substring(10);
+			} else{
+				log.append(line).append('\n');
+			}
+		}
+
+		if(process.waitFor() != 0 || result == null){
+			System.out.print(log);
+			throw new IOException("The replay JVM failed");
+		}
+		return Double.parseDouble(result);
+	}
+
+	private static void replay(int count) throws IOException {
+		DatagramPacket[] packets = makeTraffic();
+		DiscoveryProtocolHandler handler = new DiscoveryProtocolHandler(76561190000000000L, 1, "127.0.0.1");
+
+		for(int i = 0; i < count; i++){	//Warm up
+			handle(handler, packets[i % packets.length]);
+		}
+
+		long best = Long.MAX_VALUE;
+		for(int batch = 0; batch < BATCHES; batch++){
+			long start = System.nanoTime();
+			for(int i = 0; i < count; i++){
+				handle(handler, packets[i % packets.length]);
+			}
+			best = Math.min(best, System.nanoTime() - start);
+		}
+
+		System.out.println("ns/packet " + (best / (double) count));
+	}
+
+	private static void handle(DiscoveryProtocolHandler handler, DatagramPacket packet){
+		try{
+			handler.handlePacket(packet);
+		} catch(IOException e){
+			//Some of the garbage gets past the preheader check, that's part of the traffic
+		}
+	}
+
+	private static DatagramPacket[] makeTraffic() throws IOException {
+		Random random = new Random(42);
+		DatagramPacket[] packets = new DatagramPacket[SERVERS * 10];
+
+		for(int i = 0; i < packets.length; i++){
+			InetAddress server = InetAddress.getByAddress(new byte[]{10, 0, (byte) (i % SERVERS / 256), (byte) (i % SERVERS)});
+			byte[] data;
+			if(random.nextInt(100) == 0){
+				data = new byte[64 + random.nextInt(256)];
+				random.nextBytes(data);
+			} else{
+				data = makeStatusPacket(i % SERVERS, random);
+			}
+			packets[i] = new DatagramPacket(data, data.length, server, DiscoveryProtocolHandler.DISCOVERY_PORT);
+		}
+
+		return packets;
+	}
+
+	//The same layout sendStatusPacket uses: preheader, little endian header length, header, body length, body. AllocationBudget uses it too.
+	static byte[] makeStatusPacket(int server, Random random) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+
+		byte[] header = SteammessagesRemoteclientDiscovery.CMsgRemoteClientBroadcastHeader.newBuilder().
+				setClientId(1000 + server).
+				setMsgType(SteammessagesRemoteclientDiscovery.ERemoteClientBroadcastMsg.k_ERemoteClientBroadcastMsgStatus).
+				build().toByteArray();
+		byte[] body = CMsgRemoteClientBroadcastStatus.newBuilder().
+				addUsers(CMsgRemoteClientBroadcastStatus.User.newBuilder().setSteamid(76561190000000000L + server).setAuthKeyId(server)).
+				setVersion(10).
+				setMinVersion(6).
+				setConnectPort(DiscoveryProtocolHandler.DISCOVERY_PORT).
+				setHostname("STREAMING-PC-" + server).
+				setOstype(-203).
+				setIs64Bit(true).
+				setEuniverse(1).
+				setTimestamp(1500000000 + random.nextInt(1000)).
+				setScreenLocked(random.nextBoolean()).
+				setGamesRunning(random.nextInt(4) == 0).
+				addMacAddresses(String.format("00:1a:2b:3c:%02x:%02x", server / 256, server % 256)).
+				build().toByteArray();
+
+		out.write(DiscoveryProtocolHandler.PACKET_PREHEADER);
+		out.writeInt(Integer.reverseBytes(header.length));
+		out.write(header);
+		out.writeInt(Integer.reverseBytes(body.length));
+		out.write(body);
+		return bytes.toByteArray();
+	}
+}
@@ -0,0 +1,54 @@
+package net;
+
+import java.net.InetAddress;
+import java.util.Random;
+
+import net.protobufs.SteammessagesRemoteclient.CMsgRemoteClientAppStatus;
+import net.protobufs.SteammessagesRemoteclient.CMsgRemoteClientAppStatus.AppStatus;
+import net.protobufs.SteammessagesRemoteclientDiscovery.CMsgRemoteClientBroadcastStatus;
+
+/*
+ * Fills a FleetIndex with a made up room of servers and libraries and times queries against it.
+ */
+public class FleetIndexBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		int serverCount = (args.length > 0 ? Integer.parseInt(args[0]) : 500);
+		int appsPerServer = (args.length > 1 ? Integer.parseInt(args[1]) : 2000);
+		int queries = 1000000;
+
+		Random random = new Random(42);
+		FleetIndex index = new FleetIndex();
+
+		long startBuild = System.nanoTime();
+		for(int i = 0; i < serverCount; i++){
+			InetAddress server = InetAddress.getByAddress(new byte[]{10, 0, (byte) (i >> 8), (byte) i});
+			AppCatalog catalog = new AppCatalog(server);
+			index.track(catalog);
+
+			CMsgRemoteClientAppStatus.Builder message = CMsgRemoteClientAppStatus.newBuilder();
+			for(int app = 0; app < appsPerServer; app++){
+				int state = (random.nextInt(10) == 0 ? AppState.FULLY_INSTALLED | AppState.UPDATE_REQUIRED : AppState.FULLY_INSTALLED);
+				message.addStatusUpdates(AppStatus.newBuilder().setAppId(random.nextInt(20000) * 10).setAppState(state));
+			}
+			catalog.update(message.build());
+
+			index.serverStatusReceived(server, null, CMsgRemoteClientBroadcastStatus.newBuilder().
+					setScreenLocked(random.nextBoolean()).
+					setGamesRunning(random.nextInt(4) == 0).
+					build());
+		}
+		System.out.printf("Indexed %d servers with %d apps each in %.1f ms%n", serverCount, appsPerServer, (System.nanoTime() - startBuild) / 1e6);
+
+		int found = 0;
+		for(int round = 0; round < 3; round++){	//The first rounds are warm up
+			long start = System.nanoTime();
+			for(int i = 0; i < queries; i++){
+				found += index.count(new FleetIndex.Query(random.nextInt(20000) * 10).idleAndReady());
+			}
+			long elapsed = System.nanoTime() - start;
+
+			System.out.printf("Round %d: %.2f us per idle-and-ready query (%d matches in total)%n", round, elapsed / 1e3 / queries, found);
+		}
+	}
+}
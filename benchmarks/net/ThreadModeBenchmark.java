@@ -0,0 +1,320 @@
+package net;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * How many monitored hosts each ThreadMode keeps up with, and what each connection costs.
+ *
+ * Every "host" is a connection to a local server that sends an 8 byte heartbeat to all of them every 500 ms. Each
+ * connection has the same shape as a ControlProtocolHandler: a loop blocked reading the socket, and a writer blocked
+ * waiting for something to send. The host count doubles each step until connections stop keeping up (some haven't seen
+ * a heartbeat within two intervals), threads can't be made, or the limit is reached. Memory per connection is the
+ * process's resident size and the heap, before and after, divided by the count.
+ *
+ * Every connection is two file descriptors (both ends are in this process), so raise ulimit -n for big runs. Run it
+ * on Java 21+ to get virtual threads, on older JVMs VIRTUAL is the same as PLATFORM.
+ *
+ * Memory the JVM has touched stays resident after it's freed, so for resident sizes that mean anything run one mode per
+ * JVM (ThreadModeBenchmark <limit> VIRTUAL) with a fixed, pre-touched heap (-Xms1g -Xmx1g -XX:+AlwaysPreTouch).
+ *
+ * Before the hosts, each mode does a real loopback PSK handshake with StreamingPSKTlsClient on one of its threads (the
+ * same connection CipherSuiteBenchmark uses), so the TLS code is known to work on a virtual thread and a JDK that
+ * VIRTUAL needs. It stops with an exception if it doesn't.
+ */
+public class ThreadModeBenchmark {
+	private static final long HEARTBEAT_INTERVAL = 500;	//Milliseconds
+
+	public static void main(String[] args) throws Exception {
+		int limit = (args.length > 0 ? Integer.parseInt(args[0]) : 8000);
+		ThreadMode[] modes = (args.length > 1 ? new ThreadMode[]{ThreadMode.valueOf(args[1])} : ThreadMode.values());
+		System.out.println("Virtual threads " + (ThreadMode.isVirtualAvailable() ? "available" : "not available, VIRTUAL runs on platform threads"));
+
+		for(ThreadMode mode : modes){
+			checkHandshake(mode);
+			for(int hosts = 1000; hosts <= limit; hosts *= 2){
+				if(!run(mode, hosts)){
+					break;
+				}
+			}
+		}
+	}
+
+	private static void checkHandshake(ThreadMode mode) throws Exception {
+		final Throwable[] error = new Throwable[1];
+		Thread client = mode.newThreadFactory(mode + " handshake ").newThread(new Runnable(){
+			@Override
+			public void run(){
+				try{
+					CipherSuiteBenchmark.run(CipherSuitePolicy.PREFERRED_SUITES[0], CryptoBackend.BOUNCYCASTLE, CryptoBackend.BOUNCYCASTLE, 1);
+				} catch(Throwable e){	//NoClassDefFoundError is what a missing JDK class looks like
+					error[0] = e;
+				}
+			}
+		});
+		long start = System.nanoTime();
+		client.start();
+		client.join();
+		long elapsed = System.nanoTime() - start;
+
+		if(error[0] != null){
+			throw new Exception("The loopback TLS handshake failed on " + mode + " threads", error[0]);
+		}
+		System.out.printf("%-8s loopback TLS handshake and 1 MB on a %s thread in %.0f ms%n", mode, mode.resolve(), elapsed / 1e6);
+	}
+
+	//Returns false if this many hosts was too many
+	private static boolean run(ThreadMode mode, int hosts) throws Exception {
+		HeartbeatServer server = new HeartbeatServer();
+		Thread serverThread = new Thread(server, "Heartbeat server");
+		serverThread.setDaemon(true);
+		serverThread.start();
+
+		long rssBefore = residentBytes();
+		long heapBefore = usedHeap();
+
+		ExecutorService threads = mode.newExecutor(mode + " host ");
+		List<Host> started = new ArrayList<Host>();
+		String failure = null;
+		long start = System.nanoTime();
+
+		try{
+			for(int i = 0; i < hosts; i++){
+				Host host = new Host(server.getPort());
+				started.add(host);
+				threads.execute(host.reader);
+				threads.execute(host.writer);
+			}
+		} catch(Throwable e){	//Usually "unable to create native thread"
+			failure = e.toString();
+		}
+
+		//Wait until every host has had a heartbeat, or it's clear some won't
+		long deadline = System.currentTimeMillis() + HEARTBEAT_INTERVAL * 2 + hosts;	//Connecting takes a while too
+		int alive = 0;
+		while(failure == null && System.currentTimeMillis() < deadline){
+			alive = countAlive(started, 1);
+			if(alive == hosts){
+				break;
+			}
+			Thread.sleep(50);
+		}
+		long connected = System.nanoTime() - start;
+
+		//Then check they all keep up for a few more intervals, missing at most the one in flight
+		long[] before = new long[started.size()];
+		for(int i = 0; i < before.length; i++){
+			before[i] = started.get(i).heartbeats.get();
+		}
+		long roundsBefore = server.getRounds();
+		Thread.sleep(HEARTBEAT_INTERVAL * 3);
+		long rounds = server.getRounds() - roundsBefore;
+		int keepingUp = 0;
+		for(int i = 0; i < before.length; i++){
+			if(started.get(i).heartbeats.get() - before[i] >= rounds - 1){
+				keepingUp++;
+			}
+		}
+
+		long rssPer = (residentBytes() - rssBefore) / Math.max(1, started.size());
+		long heapPer = (usedHeap() - heapBefore) / Math.max(1, started.size());
+
+		System.out.printf("%-8s %5d hosts: %s in %.0f ms, %d keeping up, %s resident and %.1f KB heap per connection%s%n",
+				mode, hosts, alive == hosts ? "all connected" : alive + " connected", connected / 1e6, keepingUp,
+				rssBefore < 0 ? "unknown" : String.format("%.1f KB", rssPer / 1e3), heapPer / 1e3, failure == null ? "" : " (" + failure + ")");
+
+		for(Host host : started){
+			host.close();
+		}
+		threads.shutdownNow();
+		threads.awaitTermination(10, TimeUnit.SECONDS);
+		server.close(serverThread);
+
+		return failure == null && alive == hosts && keepingUp == hosts;
+	}
+
+	private static int countAlive(List<Host> hosts, int heartbeats){
+		int alive = 0;
+		for(Host host : hosts){
+			if(host.heartbeats.get() >= heartbeats){
+				alive++;
+			}
+		}
+		return alive;
+	}
+
+	//One monitored host, the same two blocked threads a control connection has
+	private static class Host {
+		final AtomicLong heartbeats = new AtomicLong();
+		final LinkedBlockingQueue<byte[]> outbound = new LinkedBlockingQueue<byte[]>();
+		volatile Socket socket;
+
+		final Runnable reader;
+		final Runnable writer;
+
+		Host(final int port){
+			reader = new Runnable(){
+				@Override
+				public void run(){
+					try{
+						socket = new Socket(InetAddress.getLoopbackAddress(), port);
+						DataInputStream input = new DataInputStream(socket.getInputStream());
+						while(true){
+							input.readLong();
+							heartbeats.incrementAndGet();
+						}
+					} catch(IOException e){
+						//Closed at the end of the run
+					}
+				}
+			};
+
+			writer = new Runnable(){
+				@Override
+				public void run(){
+					try{
+						while(true){
+							byte[] message = outbound.take();
+							if(message.length == 0){
+								return;
+							}
+							socket.getOutputStream().write(message);
+						}
+					} catch(InterruptedException e){
+						//Shut down
+					} catch(IOException e){
+						//Closed
+					}
+				}
+			};
+		}
+
+		void close() throws IOException{
+			outbound.add(new byte[0]);
+			Socket current = socket;
+			if(current != null){
+				current.close();
+			}
+		}
+	}
+
+	//Accepts connections and sends every one a heartbeat each interval, on one thread
+	private static class HeartbeatServer implements Runnable {
+		private final Selector selector;
+		private final ServerSocketChannel channel;
+		private final List<SocketChannel> clients = new ArrayList<SocketChannel>();
+		private final AtomicInteger rounds = new AtomicInteger();
+		private volatile boolean running = true;
+
+		HeartbeatServer() throws IOException{
+			selector = Selector.open();
+			channel = ServerSocketChannel.open();
+			channel.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 4096);
+			channel.configureBlocking(false);
+			channel.register(selector, SelectionKey.OP_ACCEPT);
+		}
+
+		int getPort() throws IOException{
+			return ((InetSocketAddress) channel.getLocalAddress()).getPort();
+		}
+
+		long getRounds(){
+			return rounds.get();
+		}
+
+		@Override
+		public void run(){
+			ByteBuffer heartbeat = ByteBuffer.allocate(8);
+			long next = System.currentTimeMillis() + HEARTBEAT_INTERVAL;
+
+			try{
+				while(running){
+					selector.select(Math.max(1, next - System.currentTimeMillis()));
+					if(!selector.selectedKeys().isEmpty()){
+						selector.selectedKeys().clear();
+						SocketChannel client;
+						while((client = channel.accept()) != null){
+							client.configureBlocking(true);	//Heartbeats are tiny, the writes never block for long
+							clients.add(client);
+						}
+					}
+
+					if(System.currentTimeMillis() >= next){
+						for(SocketChannel client : clients){
+							heartbeat.clear();
+							heartbeat.putLong(0, System.nanoTime());
+							try{
+								client.write(heartbeat);
+							} catch(IOException e){
+								//That host is gone
+							}
+						}
+						rounds.incrementAndGet();
+						next += HEARTBEAT_INTERVAL;
+					}
+				}
+			} catch(IOException e){
+				if(running){
+					e.printStackTrace();
+				}
+			}
+		}
+
+		void close(Thread thread) throws IOException, InterruptedException {
+			running = false;
+			selector.wakeup();
+			thread.join();
+			channel.close();
+			for(SocketChannel client : clients){
+				client.close();
+			}
+			selector.close();
+		}
+	}
+
+	//From /proc on Linux, -1 anywhere else
+	private static long residentBytes(){
+		File status = new File("/proc/self/status");
+		if(!status.isFile()){
+			return -1;
+		}
+
+		try{
+			for(String line : Files.readAllLines(status.toPath(), Charset.forName("UTF-8"))){
+				if(line.startsWith("VmRSS:")){
+					return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+				}
+			}
+		} catch(IOException e){
+			//Fall through
+		}
+		return -1;
+	}
+
+	private static long usedHeap() throws InterruptedException {
+		for(int i = 0; i < 3; i++){
+			System.gc();
+			Thread.sleep(50);
+		}
+		Runtime runtime = Runtime.getRuntime();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
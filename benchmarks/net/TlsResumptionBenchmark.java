@@ -0,0 +1,84 @@
+package net;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import net.protobufs.SteammessagesRemoteclientDiscovery.CMsgRemoteClientBroadcastStatus;
+
+/*
+ * Connects to a streaming server over and over, first doing a full TLS handshake every time and then resuming the
+ * cached session, and prints how long it took to get from opening the socket to being authenticated in each mode.
+ */
+public class TlsResumptionBenchmark {
+
+	public static void main(String[] args) throws Exception {
+		if(args.length != 3 && args.length != 4){
+			System.out.println("Usage: TlsResumptionBenchmark <Server IP> <Control port> <AuthData> (Iterations)");
+			System.exit(1);
+		}
+		
+		InetAddress server = InetAddress.getByName(args[0]);
+		CMsgRemoteClientBroadcastStatus status = CMsgRemoteClientBroadcastStatus.newBuilder().
+				setConnectPort(Integer.parseInt(args[1])).
+				build();
+		int iterations = (args.length == 4 ? Integer.parseInt(args[3]) : 20);
+		
+		report("Full handshake", run(server, status, args[2], null, iterations));
+		report("Resumed handshake", run(server, status, args[2], new TlsSessionCache(), iterations));
+	}
+	
+	private static long[] run(InetAddress server, CMsgRemoteClientBroadcastStatus status, String authData, TlsSessionCache cache, int iterations) throws InterruptedException{
+		long[] latencies = new long[iterations];
+		int resumed = 0;
+		
+		for(int i = 0; i < iterations; i++){
+			ControlProtocolHandler handler = new ControlProtocolHandler(server, status, authData);
+			handler.setSessionCache(cache);
+			
+			Thread thread = new Thread(handler);
+			thread.start();
+			
+			if(!handler.awaitAuthenticated(10, TimeUnit.SECONDS)){
+				System.err.println("Connection " + i + " was not authenticated in time");
+				handler.stop();
+				thread.join();
+				return Arrays.copyOf(latencies, i);
+			}
+			
+			latencies[i] = handler.getConnectLatency();
+			if(handler.isSessionResumed()){
+				resumed++;
+			}
+			
+			handler.stop();
+			thread.join();
+		}
+		
+		if(cache != null){
+			System.out.println(resumed + " of " + iterations + " connections resumed a cached session");
+		}
+		
+		return latencies;
+	}
+	
+	private static void report(String name, long[] latencies){
+		if(latencies.length == 0){
+			System.out.println(name + ": no successful connections");
+			return;
+		}
+		
+		Arrays.sort(latencies);
+		
+		long total = 0;
+		for(long latency : latencies){
+			total += latency;
+		}
+		
+		System.out.printf("%s: %d connections, mean %.2f ms, p50 %.2f ms, min %.2f ms, max %.2f ms%n", name, latencies.length,
+				total / (double) latencies.length / 1e6,
+				latencies[latencies.length / 2] / 1e6,
+				latencies[0] / 1e6,
+				latencies[latencies.length - 1] / 1e6);
+	}
+}
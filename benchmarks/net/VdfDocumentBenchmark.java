@@ -0,0 +1,117 @@
+package net;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+/*
+ * Writes out a made up localconfig.vdf the size of a heavily used account's and compares VdfDocument against parsing
+ * the whole file into maps of Strings: time to open the file and look up SharedAuth, and heap held by the result.
+ */
+public class VdfDocumentBenchmark {
+	private static final String PATH = "UserLocalConfigStore/SharedAuth/76561190000000000/AuthData";
+
+	public static void main(String[] args) throws Exception {
+		int apps = (args.length > 0 ? Integer.parseInt(args[0]) : 20000);
+		int iterations = 50;
+
+		File file = File.createTempFile("localconfig", ".vdf");
+		file.deleteOnExit();
+		Files.write(file.toPath(), makeLocalconfig(apps).getBytes(Charset.forName("UTF-8")));
+		System.out.printf("localconfig.vdf with %d apps, %.1f MB%n", apps, file.length() / 1e6);
+
+		for(int round = 0; round < 3; round++){	//The first rounds are warm up
+			long start = System.nanoTime();
+			String lazyFound = null;
+			for(int i = 0; i < iterations; i++){
+				lazyFound = VdfDocument.open(file).getString(PATH);
+			}
+			long lazy = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			String eagerFound = null;
+			for(int i = 0; i < iterations; i++){
+				eagerFound = eagerGet(eagerParse(VdfTokenizer.map(file)), PATH);
+			}
+			long eager = System.nanoTime() - start;
+
+			if(lazyFound == null || !lazyFound.equals(eagerFound)){
+				throw new IllegalStateException("The parsers disagree: " + lazyFound + " and " + eagerFound);
+			}
+			System.out.printf("Round %d: lazy %.2f ms, eager %.2f ms per open and lookup%n", round, lazy / 1e6 / iterations, eager / 1e6 / iterations);
+		}
+
+		//Heap held by a parsed file. The lazy document is measured after the lookup, so it includes the blocks on the path.
+		long before = usedHeap();
+		VdfDocument document = VdfDocument.open(file);
+		document.getString(PATH);
+		long lazyHeap = Math.max(0, usedHeap() - before);	//Small enough to get lost in the noise
+
+		before = usedHeap();
+		Map<String, Object> tree = eagerParse(VdfTokenizer.map(file));
+		long eagerHeap = usedHeap() - before;
+
+		System.out.printf("Heap held: lazy %.1f KB, eager %.1f KB%n", lazyHeap / 1e3, eagerHeap / 1e3);
+		System.out.printf("(%d and %d top level keys)%n", document.getRoot().getChildCount(), tree.size());	//Keeps both alive until after they're measured
+	}
+
+	private static String makeLocalconfig(int apps){
+		Random random = new Random(42);
+		StringBuilder builder = new StringBuilder();
+		builder.append("\"UserLocalConfigStore\"\n{\n\t\"Software\"\n\t{\n\t\t\"Valve\"\n\t\t{\n\t\t\t\"Steam\"\n\t\t\t{\n\t\t\t\t\"apps\"\n\t\t\t\t{\n");
+		for(int i = 0; i < apps; i++){
+			builder.append("\t\t\t\t\t\"").append(i * 10).append("\"\n\t\t\t\t\t{\n");
+			builder.append("\t\t\t\t\t\t\"LastPlayed\"\t\t\"").append(1400000000 + random.nextInt(100000000)).append("\"\n");
+			builder.append("\t\t\t\t\t\t\"Playtime\"\t\t\"").append(random.nextInt(100000)).append("\"\n");
+			builder.append("\t\t\t\t\t\t\"cloud\"\n\t\t\t\t\t\t{\n\t\t\t\t\t\t\t\"last_sync_state\"\t\t\"synchronized\"\n\t\t\t\t\t\t}\n");
+			builder.append("\t\t\t\t\t}\n");
+		}
+		builder.append("\t\t\t\t}\n\t\t\t}\n\t\t}\n\t}\n");
+		builder.append("\t\"SharedAuth\"\n\t{\n\t\t\"76561190000000000\"\n\t\t{\n\t\t\t\"AuthData\"\t\t\"0123456789ABCDEF0123456789ABCDEF\"\n\t\t}\n\t}\n}\n");
+		return builder.toString();
+	}
+
+	//What a straightforward parser does: every key and value becomes a String, every block a map
+	private static Map<String, Object> eagerParse(ByteBuffer buffer){
+		VdfTokenizer tokenizer = new VdfTokenizer(buffer);
+		return eagerBlock(tokenizer);
+	}
+
+	private static Map<String, Object> eagerBlock(VdfTokenizer tokenizer){
+		Map<String, Object> block = new LinkedHashMap<String, Object>();
+		while(tokenizer.next() == VdfTokenizer.Token.STRING){
+			String key = tokenizer.tokenString();
+			VdfTokenizer.Token token = tokenizer.next();
+			if(token == VdfTokenizer.Token.STRING){
+				block.put(key, tokenizer.tokenString());
+			} else if(token == VdfTokenizer.Token.OPEN){
+				block.put(key, eagerBlock(tokenizer));
+			} else{
+				break;
+			}
+		}
+		return block;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static String eagerGet(Map<String, Object> tree, String path){
+		Object node = tree;
+		for(String key : path.split("/")){
+			node = ((Map<String, Object>) node).get(key);
+		}
+		return (String) node;
+	}
+
+	private static long usedHeap() throws InterruptedException {
+		for(int i = 0; i < 3; i++){
+			System.gc();
+			Thread.sleep(50);
+		}
+		Runtime runtime = Runtime.getRuntime();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
@@ -0,0 +1,152 @@
+package net;
+
+import java.net.InetAddress;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import net.protobufs.SteammessagesRemoteclient.CMsgRemoteClientAppStatus;
+import net.protobufs.SteammessagesRemoteclient.CMsgRemoteClientAppStatus.AppStatus;
+
+/*
+ * Everything a streaming server has told us about its apps (9502 CMsgRemoteClientAppStatus), keyed by app ID.
+ *
+ * The server sends partial updates, and big libraries send a lot of them, so each update is merged into what we
+ * already have for that app instead of replacing it: app_state and shortcut_info are replaced when present, and
+ * update_info is merged field by field, since progress updates only carry the counters that moved.
+ *
+ * The control connection is the only writer. Readers (UIs and the like) call getSnapshot(), which hands out an
+ * immutable copy tagged with a version number. The copy is only made once per version, so polling an unchanged
+ * catalog costs nothing.
+ */
+public class AppCatalog {
+	private final InetAddress server;
+	private final IntObjectMap<AppStatus> apps = new IntObjectMap<AppStatus>(256);
+	private long version = 0;	//Goes up by one for every update that changed something
+	private Snapshot snapshot = new Snapshot(0, new IntObjectMap<AppStatus>());	//The last snapshot handed out
+	private final CopyOnWriteArrayList<AppCatalogListener> listeners = new CopyOnWriteArrayList<AppCatalogListener>();
+
+	public AppCatalog(InetAddress server){
+		this.server = server;
+	}
+
+	//Merges every app in the message into the catalog
+	public void update(CMsgRemoteClientAppStatus message){
+		for(int i = 0; i < message.getStatusUpdatesCount(); i++){
+			update(message.getStatusUpdates(i));
+		}
+	}
+
+	//Merges one app's status into the catalog. Returns the merged status.
+	public synchronized AppStatus update(AppStatus status){
+		int appID = status.getAppId();
+		AppStatus existing = apps.get(appID);
+		AppStatus merged = (existing == null ? status : merge(existing, status));
+
+		if(existing == null || !merged.equals(existing)){	//Servers resend the same status a lot, those don't count as a change
+			apps.put(appID, merged);
+			version++;
+			
+			for(AppCatalogListener listener : listeners){
+				listener.appStatusChanged(this, existing, status, merged);
+			}
+		}
+
+		return merged;
+	}
+
+	static AppStatus merge(AppStatus existing, AppStatus update){
+		AppStatus.Builder builder = existing.toBuilder();
+		merge(builder, update);
+		return builder.build();
+	}
+
+	//Merges the update into the builder. ControlProtocolHandler uses it to merge updates that are waiting for us.
+	static void merge(AppStatus.Builder builder, AppStatus update){
+		if(update.hasAppState()){
+			builder.setAppState(update.getAppState());
+		}
+		if(update.hasUpdateInfo()){
+			builder.mergeUpdateInfo(update.getUpdateInfo());	//Only the fields that were sent are overwritten
+		}
+		if(update.hasShortcutInfo()){
+			builder.setShortcutInfo(update.getShortcutInfo());	//Replaced whole, merging would append the categories again
+		}
+	}
+
+	public synchronized AppStatus get(int appID){
+		return apps.get(appID);
+	}
+
+	public synchronized int size(){
+		return apps.size();
+	}
+
+	public synchronized long getVersion(){
+		return version;
+	}
+
+	public synchronized Snapshot getSnapshot(){
+		if(snapshot.getVersion() != version){
+			snapshot = new Snapshot(version, new IntObjectMap<AppStatus>(apps));
+		}
+
+		return snapshot;
+	}
+
+	public InetAddress getServer(){
+		return server;
+	}
+
+	public void addListener(AppCatalogListener listener){
+		listeners.add(listener);
+	}
+
+	/*
+	 * With replay, the listener is also told about every app already in the catalog (previous is null, update and
+	 * current are the app's status). That happens under the same lock as updates, so it can't hear an app's old status
+	 * after a newer one.
+	 */
+	public synchronized void addListener(AppCatalogListener listener, boolean replay){
+		listeners.add(listener);
+
+		if(replay){
+			for(int appID : apps.keys()){
+				AppStatus status = apps.get(appID);
+				listener.appStatusChanged(this, null, status, status);
+			}
+		}
+	}
+
+	public void removeListener(AppCatalogListener listener){
+		listeners.remove(listener);
+	}
+
+	/*
+	 * The catalog as it was at one version. Never changes, so it can be read from any thread without locking.
+	 * Compare versions to see whether anything changed since the last snapshot.
+	 */
+	public static class Snapshot {
+		private final long version;
+		private final IntObjectMap<AppStatus> apps;
+
+		Snapshot(long version, IntObjectMap<AppStatus> apps){
+			this.version = version;
+			this.apps = apps;
+		}
+
+		public long getVersion(){
+			return version;
+		}
+
+		public AppStatus get(int appID){
+			return apps.get(appID);
+		}
+
+		public int size(){
+			return apps.size();
+		}
+
+		public int[] getAppIDs(){
+			return apps.keys();
+		}
+	}
+}
@@ -0,0 +1,13 @@
+package net;
+
+import net.protobufs.SteammessagesRemoteclient.CMsgRemoteClientAppStatus.AppStatus;
+
+/*
+ * Gets told about every change to an AppCatalog, after the update has been merged in.
+ * Called on the control connection's dispatcher (one thread at a time, in order) while the catalog is locked, so keep
+ * it quick.
+ */
+public interface AppCatalogListener {
+	//previous is null the first time the server mentions the app. update is what the server sent, current is the merged result.
+	void appStatusChanged(AppCatalog catalog, AppStatus previous, AppStatus update, AppStatus current);
+}
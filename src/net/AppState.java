@@ -0,0 +1,48 @@
+package net;
+
+/*
+ * The bits of AppStatus.app_state. These are Steam's EAppState flags, the same ones that show up as StateFlags in
+ * appmanifest files. An app can have several at once, an update in progress is UPDATE_REQUIRED | UPDATE_RUNNING | ...
+ */
+public final class AppState {
+	public static final int INVALID = 0;
+	public static final int UNINSTALLED = 1;
+	public static final int UPDATE_REQUIRED = 2;
+	public static final int FULLY_INSTALLED = 4;
+	public static final int ENCRYPTED = 8;
+	public static final int LOCKED = 16;
+	public static final int FILES_MISSING = 32;
+	public static final int APP_RUNNING = 64;
+	public static final int FILES_CORRUPT = 128;
+	public static final int UPDATE_RUNNING = 256;
+	public static final int UPDATE_PAUSED = 512;
+	public static final int UPDATE_STARTED = 1024;
+	public static final int UNINSTALLING = 2048;
+	public static final int BACKUP_RUNNING = 4096;
+	public static final int RECONFIGURING = 65536;
+	public static final int VALIDATING = 131072;
+	public static final int ADDING_FILES = 262144;
+	public static final int PREALLOCATING = 524288;
+	public static final int DOWNLOADING = 1048576;
+	public static final int STAGING = 2097152;
+	public static final int COMMITTING = 4194304;
+	public static final int UPDATE_STOPPING = 8388608;
+
+	//Anything that means the app can't be launched right now even though it's installed
+	private static final int NOT_READY = UPDATE_REQUIRED | ENCRYPTED | LOCKED | FILES_MISSING | FILES_CORRUPT | UPDATE_RUNNING |
+			UPDATE_PAUSED | UPDATE_STARTED | UNINSTALLING | BACKUP_RUNNING | RECONFIGURING | VALIDATING | ADDING_FILES |
+			PREALLOCATING | DOWNLOADING | STAGING | COMMITTING | UPDATE_STOPPING;
+
+	private AppState(){
+	}
+
+	//Some version of the app is on the disk, up to date or not
+	public static boolean isInstalled(int state){
+		return state != INVALID && (state & UNINSTALLED) == 0;
+	}
+
+	//Installed, fully updated and not busy, so it can be launched right away
+	public static boolean isReady(int state){
+		return (state & FULLY_INSTALLED) != 0 && (state & NOT_READY) == 0;
+	}
+}
@@ -1,12 +1,13 @@
 package net;
 
 import java.io.File;
-import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
-import java.util.List;
 
 public class AuthKeyFinder {
+	private static final byte[] SHARED_AUTH = "SharedAuth".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] AUTH_DATA = "AuthData".getBytes(StandardCharsets.US_ASCII);
+	
 	public static void main(String args[]){
 		File userdata = null;	//This will contain the file object for Steam's userdata folder
 		
@@ -40,27 +41,88 @@ public class AuthKeyFinder {
         
         String accountIDFolders[] = userdata.list();	//A list of all the accounts that have been logged into this computer
         
-        if(accountIDFolders.length == 0){
+        if(accountIDFolders == null || accountIDFolders.length == 0){
         	System.out.println("No accounts found. Are you currently running and logged into Steam?");
         	System.exit(1);
         }
         
-        for(String accountID : accountIDFolders){	//Loop through each folder
-        	File localconfig = new File(userdata, accountID + "\\config\\localconfig.vdf");	//The file object for the localconfig file
-        	List<String> list = null;	//Holds a list of all the lines in the file
-			try {
-				list = Files.readAllLines(localconfig.toPath(), StandardCharsets.UTF_8);	//Read each one into the list
-			} catch (IOException e) {
-				System.err.println("Error when parsing file: " + localconfig.toString());
-				e.printStackTrace();
+        //Only localconfigs that changed since the last run are read, see SharedAuthCache
+        File cacheFile = new File(System.getProperty("user.home"), ".sharedauth-cache");
+        SharedAuthCache cache = new SharedAuthCache(userdata, cacheFile);
+        
+        for(SharedAuthCache.Credential credential : cache.scan().values()){
+        	System.out.println(credential.getStreamingID());	//The streaming ID
+        	System.out.println(credential.getAuthData());	//The AuthData key
+        }
+	}
+	
+	/*
+	 * Finds the SharedAuth block in a localconfig.vdf and returns {streaming ID, AuthData}, or null if there isn't one.
+	 * The block looks like
+	 * 	"SharedAuth"
+	 * 	{
+	 * 		"<streaming ID>"
+	 * 		{
+	 * 			"AuthData"		"<key>"
+	 * 		}
+	 * 	}
+	 * Keys are matched ignoring case, like Steam does. Scanning stops as soon as AuthData has been found, and only the
+	 * streaming IDs and the value we want are turned into Strings.
+	 */
+	public static String[] findSharedAuth(ByteBuffer localconfig){
+		VdfTokenizer tokenizer = new VdfTokenizer(localconfig);
+		boolean atKey = true;	//Keys and values alternate inside a block, this keeps a value that happens to say SharedAuth from matching
+		VdfTokenizer.Token token;
+		
+		while((token = tokenizer.next()) != VdfTokenizer.Token.END){
+			if(token != VdfTokenizer.Token.STRING){
+				atKey = true;
+				continue;
 			}
 			
-			int authLocation = list.indexOf("	\"SharedAuth\"");	//Find the location in the list of '	"SharedAuth"'
+			if(atKey && tokenizer.tokenEqualsIgnoreCase(SHARED_AUTH)){
+				if(tokenizer.next() == VdfTokenizer.Token.OPEN){
+					return readSharedAuth(tokenizer);
+				}
+				continue;	//SharedAuth with a plain value, the next token is a key again
+			}
+			atKey = !atKey;
+		}
+		
+		return null;
+	}
+	
+	//Reads the inside of the SharedAuth block, the tokenizer is just past its {. Goes through every child block until one has AuthData.
+	private static String[] readSharedAuth(VdfTokenizer tokenizer){
+		VdfTokenizer.Token token;
+		while((token = tokenizer.next()) == VdfTokenizer.Token.STRING){
+			String streamingID = tokenizer.tokenString();
 			
-			if(authLocation != -1){	//If it found an entry
-				System.out.println(list.get(authLocation + 2).trim());	//Print the line 2 after SharedAuth (the streaming ID)
-				System.out.println(list.get(authLocation + 3).trim());	//Print the line 3 after SharedAuth (the AuthData key)
+			token = tokenizer.next();
+			if(token == VdfTokenizer.Token.STRING){	//A plain value, not an account's block
+				continue;
+			} else if(token != VdfTokenizer.Token.OPEN){
+				break;
 			}
-        }
+			
+			while((token = tokenizer.next()) == VdfTokenizer.Token.STRING){
+				boolean authData = tokenizer.tokenEqualsIgnoreCase(AUTH_DATA);
+				
+				token = tokenizer.next();
+				if(token == VdfTokenizer.Token.OPEN){	//Some other block, not interested
+					tokenizer.skipBlock();
+				} else if(token == VdfTokenizer.Token.STRING && authData){
+					return new String[]{streamingID, tokenizer.tokenString()};
+				} else if(token != VdfTokenizer.Token.STRING){
+					return null;	//A key with no value, the file is broken
+				}
+			}
+			
+			if(token != VdfTokenizer.Token.CLOSE){	//Same
+				return null;
+			}
+		}
+		
+		return null;
 	}
 }
@@ -0,0 +1,119 @@
+package net;
+
+import java.lang.reflect.Field;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.bouncycastle.crypto.tls.CipherSuite;
+
+/*
+ * Decides which cipher suites the control connection offers, in order of preference.
+ * The preferred list leads with the AEAD (GCM) PSK suites, which skip the separate HMAC-SHA1 pass and CBC padding the
+ * old TLS_PSK_WITH_AES_128_CBC_SHA suite pays for on every record. Servers that pick from the list never notice the
+ * difference, but if a server kills the handshake instead we remember it and only offer it the fallback list from then on.
+ */
+public class CipherSuitePolicy {
+	public static final int[] PREFERRED_SUITES = {
+		CipherSuite.TLS_PSK_WITH_AES_128_GCM_SHA256,
+		CipherSuite.TLS_PSK_WITH_AES_256_GCM_SHA384,
+		CipherSuite.TLS_PSK_WITH_AES_128_CBC_SHA256,
+		CipherSuite.TLS_PSK_WITH_AES_128_CBC_SHA
+	};
+	public static final int[] LEGACY_SUITES = {
+		CipherSuite.TLS_PSK_WITH_AES_128_CBC_SHA	//What Steam has always accepted
+	};
+
+	private static final CipherSuitePolicy defaultPolicy = new CipherSuitePolicy(PREFERRED_SUITES, LEGACY_SUITES);
+
+	private final int[] suites;
+	private final int[] fallbackSuites;
+	private final Set<InetAddress> fallbackServers;	//Servers that rejected a handshake with the preferred suites
+
+	public CipherSuitePolicy(int[] suites, int[] fallbackSuites){
+		if(suites.length == 0 || fallbackSuites.length == 0){
+			throw new IllegalArgumentException("A cipher suite policy needs at least one suite in each list");
+		}
+
+		this.suites = suites.clone();
+		this.fallbackSuites = fallbackSuites.clone();
+		this.fallbackServers = Collections.newSetFromMap(new ConcurrentHashMap<InetAddress, Boolean>());
+	}
+
+	//A policy that offers only the given suites and never falls back, used for benchmarking single suites
+	public static CipherSuitePolicy only(int... suites){
+		return new CipherSuitePolicy(suites, suites);
+	}
+
+	public static CipherSuitePolicy getDefault(){
+		return defaultPolicy;
+	}
+
+	/*
+	 * Builds a policy from a comma separated list of suite names as they appear in BouncyCastle's CipherSuite class,
+	 * for example "TLS_PSK_WITH_AES_128_GCM_SHA256,TLS_PSK_WITH_AES_128_CBC_SHA". Falls back to the legacy list.
+	 */
+	public static CipherSuitePolicy parse(String suiteNames){
+		String[] names = suiteNames.split(",");
+		int[] parsed = new int[names.length];
+
+		for(int i = 0; i < names.length; i++){
+			parsed[i] = getSuite(names[i].trim());
+		}
+
+		return new CipherSuitePolicy(parsed, LEGACY_SUITES);
+	}
+
+	public static int getSuite(String name){
+		try{
+			Field field = CipherSuite.class.getField(name);
+			return field.getInt(null);
+		} catch(NoSuchFieldException e){
+			throw new IllegalArgumentException("Unknown cipher suite: " + name);
+		} catch(IllegalAccessException e){
+			throw new IllegalArgumentException("Unknown cipher suite: " + name);
+		}
+	}
+
+	//The reverse of getSuite, for printing
+	public static String getSuiteName(int suite){
+		for(Field field : CipherSuite.class.getFields()){
+			try{
+				if(field.getType() == int.class && field.getInt(null) == suite){
+					return field.getName();
+				}
+			} catch(IllegalAccessException e){
+				//All of CipherSuite's fields are public, this won't happen
+			}
+		}
+
+		return "0x" + Integer.toHexString(suite);
+	}
+
+	//The suites to offer this server, in order of preference
+	public int[] getCipherSuites(InetAddress server){
+		if(server != null && fallbackServers.contains(server)){
+			return fallbackSuites.clone();
+		}
+
+		return suites.clone();
+	}
+
+	/*
+	 * Called when a handshake with the server failed. Returns true if the server should be retried with the fallback list,
+	 * false if it was already getting the fallback list (or the lists are the same) so there's nothing else to try.
+	 */
+	public boolean markRejected(InetAddress server){
+		if(Arrays.equals(suites, fallbackSuites)){
+			return false;
+		}
+
+		return fallbackServers.add(server);
+	}
+
+	public boolean isFallingBack(InetAddress server){
+		return fallbackServers.contains(server);
+	}
+}
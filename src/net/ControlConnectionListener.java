@@ -0,0 +1,16 @@
+package net;
+
+import java.io.IOException;
+
+/*
+ * Gets told when a ControlProtocolHandler's connection comes up and goes down.
+ * Both are called in order on the connection's ControlDispatcher, not the read thread, but a slow listener still holds
+ * up the ones after it.
+ */
+public interface ControlConnectionListener {
+	//The server accepted our authentication (9501 with a success result)
+	void authenticated(ControlProtocolHandler connection);
+
+	//The connection ended. cause is null if it was closed with stop(), otherwise it's what broke it.
+	void disconnected(ControlProtocolHandler connection, IOException cause);
+}
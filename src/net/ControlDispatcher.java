@@ -0,0 +1,206 @@
+package net;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Runs the slow part of handling control messages (updating the app catalog, calling listeners) off the socket's read
+ * thread, so a slow listener can't hold up ping responses and get us disconnected. The read thread still decodes each
+ * packet and answers anything the server is waiting on, then hands the rest here.
+ *
+ * Work is queued on lanes. Everything on one lane runs one at a time, in the order it was dispatched, on a shared pool,
+ * so per-lane ordering is the same as before while different lanes (different EMsgs, or whatever key the caller picks)
+ * run in parallel. A lane only takes a pool thread while it has work queued.
+ *
+ * Each lane can have a queue limit. When a droppable lane is full the oldest queued task is thrown away, and the drop
+ * is counted. Only use one for tasks where a newer one makes the older ones pointless. Lanes without a limit never drop, that's for things
+ * like auth and stream responses where losing one would be a bug.
+ */
+public class ControlDispatcher {
+	private static ExecutorService sharedExecutor = null;
+
+	public enum DropPolicy {
+		DROP_OLDEST,	//Make room by throwing away the task that has waited longest
+		DROP_NEWEST	//Throw away the task being dispatched
+	}
+
+	private final ExecutorService executor;
+	private final HashMap<Object, Lane> lanes = new HashMap<Object, Lane>();	//Guarded by itself
+	private final AtomicLong dropped = new AtomicLong();
+
+	private int defaultQueueLimit = -1;	//-1 means unbounded
+	private final HashMap<Object, Integer> queueLimits = new HashMap<Object, Integer>();	//Guarded by lanes
+	private DropPolicy dropPolicy = DropPolicy.DROP_OLDEST;
+	private int batchSize = 32;	//Tasks a lane runs before giving its thread back, so one busy lane can't hog the pool
+
+	public ControlDispatcher(){
+		this(getSharedExecutor());
+	}
+
+	public ControlDispatcher(ExecutorService executor){
+		this.executor = executor;
+	}
+
+	//A pool of daemon threads shared by every dispatcher that isn't given its own
+	public static synchronized ExecutorService getSharedExecutor(){
+		if(sharedExecutor == null){
+			sharedExecutor = Executors.newCachedThreadPool(new ThreadFactory(){
+				private final AtomicInteger count = new AtomicInteger();
+
+				@Override
+				public Thread newThread(Runnable runnable){
+					Thread thread = new Thread(runnable, "Control dispatcher " + count.incrementAndGet());
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+
+		return sharedExecutor;
+	}
+
+	/*
+	 * Queues a task on the lane for the key. Returns false if something was dropped to stay within the lane's limit,
+	 * either this task or an older one, depending on the drop policy.
+	 */
+	public boolean dispatch(Object key, Runnable task){
+		Lane lane;
+		synchronized(lanes){
+			lane = lanes.get(key);
+			if(lane == null){
+				Integer limit = queueLimits.get(key);
+				lane = new Lane(limit == null ? defaultQueueLimit : limit);
+				lanes.put(key, lane);
+			}
+		}
+
+		return lane.add(task);
+	}
+
+	//Limits how many tasks can wait on the key's lane. -1 for no limit.
+	public void setQueueLimit(Object key, int limit){
+		synchronized(lanes){
+			queueLimits.put(key, limit);
+
+			Lane lane = lanes.get(key);
+			if(lane != null){
+				lane.limit = limit;
+			}
+		}
+	}
+
+	//The limit for lanes that haven't been given their own
+	public void setDefaultQueueLimit(int limit){
+		this.defaultQueueLimit = limit;
+	}
+
+	public void setDropPolicy(DropPolicy dropPolicy){
+		this.dropPolicy = dropPolicy;
+	}
+
+	public void setBatchSize(int batchSize){
+		this.batchSize = Math.max(1, batchSize);
+	}
+
+	//How many tasks have been thrown away because their lane was full
+	public long getDroppedCount(){
+		return dropped.get();
+	}
+
+	//How many tasks are waiting on the key's lane
+	public int getQueuedCount(Object key){
+		Lane lane;
+		synchronized(lanes){
+			lane = lanes.get(key);
+		}
+
+		return lane == null ? 0 : lane.size();
+	}
+
+	/*
+	 * One serial queue. At most one pool thread is running a lane's tasks at a time, which is what keeps them in order.
+	 */
+	private class Lane implements Runnable {
+		private final ArrayDeque<Runnable> tasks = new ArrayDeque<Runnable>();
+		private volatile int limit;
+		private boolean scheduled = false;	//True while the lane is submitted to, or running on, the pool
+
+		Lane(int limit){
+			this.limit = limit;
+		}
+
+		boolean add(Runnable task){
+			boolean accepted = true;
+			boolean schedule = false;
+
+			synchronized(this){
+				if(limit >= 0 && tasks.size() >= limit){
+					dropped.incrementAndGet();
+					accepted = false;
+
+					if(dropPolicy == DropPolicy.DROP_NEWEST || tasks.isEmpty()){
+						return false;
+					}
+					tasks.poll();
+				}
+
+				tasks.add(task);
+
+				if(!scheduled){
+					scheduled = true;
+					schedule = true;
+				}
+			}
+
+			if(schedule){
+				submit();
+			}
+
+			return accepted;
+		}
+
+		synchronized int size(){
+			return tasks.size();
+		}
+
+		@Override
+		public void run(){
+			for(int i = 0; i < batchSize; i++){
+				Runnable task;
+				synchronized(this){
+					task = tasks.poll();
+					if(task == null){
+						scheduled = false;
+						return;
+					}
+				}
+
+				try{
+					task.run();
+				} catch(RuntimeException e){	//One bad handler shouldn't take the lane down with it
+					Log.error("Exception thrown while handling a control message", e);
+				}
+			}
+
+			submit();	//Still more to do, go to the back of the pool's queue so other lanes get a turn
+		}
+
+		private void submit(){
+			try{
+				executor.execute(this);
+			} catch(RejectedExecutionException e){	//The pool was shut down, nothing is going to run these
+				synchronized(this){
+					dropped.addAndGet(tasks.size());
+					tasks.clear();
+					scheduled = false;
+				}
+			}
+		}
+	}
+}
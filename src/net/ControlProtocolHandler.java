@@ -1,25 +1,36 @@
 package net;
 
 import java.io.DataInputStream;
-import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
-import java.io.PrintStream;
 import java.net.InetAddress;
 import java.net.Socket;
-import java.nio.charset.Charset;
+import java.net.SocketException;
 import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-
-import javax.xml.bind.DatatypeConverter;
+import java.util.LinkedHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.bouncycastle.crypto.tls.AlertLevel;
-import org.bouncycastle.crypto.tls.CipherSuite;
+import org.bouncycastle.crypto.tls.DefaultTlsCipherFactory;
 import org.bouncycastle.crypto.tls.PSKTlsClient;
 import org.bouncycastle.crypto.tls.ServerOnlyTlsAuthentication;
 import org.bouncycastle.crypto.tls.TlsAuthentication;
+import org.bouncycastle.crypto.tls.TlsCipherFactory;
 import org.bouncycastle.crypto.tls.TlsClientProtocol;
+import org.bouncycastle.crypto.tls.TlsFatalAlert;
 import org.bouncycastle.crypto.tls.TlsPSKIdentity;
+import org.bouncycastle.crypto.tls.TlsSession;
 
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
 import com.google.protobuf.GeneratedMessage;
 
 import net.protobufs.SteammessagesRemoteclient.*;
@@ -28,65 +39,156 @@ import net.protobufs.SteammessagesRemoteclientDiscovery.CMsgRemoteClientBroadcas
 public class ControlProtocolHandler implements Runnable{
 	private final String authData;	//Get this by running the AuthKeyFinder on a computer while logged into Steam
 	private final String CLIENT_NAME = "3rd party client";
-	private static final byte[] magicBytes = "VT01".getBytes(Charset.forName("UTF-8"));
 	
 	private InetAddress serverIP;	//The streaming server's IP address
 	private CMsgRemoteClientBroadcastStatus serverStatus;	//This contains additional information for making the connection. The object can be created byt the DiscoveryProtocolHandler class.
-	private boolean connectionRunning = false;	//This is used to safely indicate when the connection is ready to stop
-	private DataOutputStream output = null;
+	private volatile boolean connectionRunning = false;	//This is used to safely indicate when the connection is ready to stop
+	private volatile boolean stopped = false;	//Set by stop() and never cleared, so a stop() before or during connecting isn't lost
+	private volatile ControlWriter writer = null;	//Everything we send goes through this, see sendMessage
+	private long sendTimeout = 5000;	//Milliseconds startStream waits for room in the send queue
+	private volatile PingScheduler pingScheduler = null;	//Gets told about ping responses (9506)
+	private volatile Socket socket = null;	//Volatile since stop() closes it from another thread
+	private boolean handshakeAlert = false;	//True if the last handshake ended with a fatal TLS alert, rather than the connection just going away
+	private TlsSessionCache sessionCache = TlsSessionCache.getSharedCache();	//Where TLS sessions are kept for resumption. Set to null to always do a full handshake
+	private CipherSuitePolicy cipherSuitePolicy = CipherSuitePolicy.getDefault();	//Which cipher suites we offer the server
+	private CryptoBackend cryptoBackend = CryptoBackend.BOUNCYCASTLE;	//What does the record layer's encryption, see CryptoBackend
+	private volatile int cipherSuite = -1;	//The cipher suite the server picked
 	
-	/*
-	 * This contains a list of all the currently running streams that have been launched via this class.
-	 */
-	private HashMap<InetAddress, CMsgRemoteClientStartStreamResponse> streamTable;
+	//Timing for the connection, used to see how much session resumption saves
+	private long connectStartTime = 0;	//System.nanoTime() when run() started connecting
+	private volatile long authenticatedTime = 0;	//System.nanoTime() when the server accepted our authentication
+	private volatile boolean sessionResumed = false;	//True if the TLS handshake resumed a cached session
+	private final CountDownLatch authenticatedLatch = new CountDownLatch(1);
+	private LaunchTimeline timeline;	//When each stage of connecting started and ended, stream sessions carry on from it
+	
+	private volatile IOException failure = null;	//Why the connection ended, if it didn't end because of stop()
+	
+	//Shared by every connection, see Metrics
+	private static final StripedCounter[] FRAMES_RECEIVED = new StripedCounter[17];	//By EMsg - 9500, the last one is for anything else. Filled in as they're seen.
+	private static final StripedCounter[] FRAMES_SENT = new StripedCounter[17];
+	private static final StripedCounter CONNECT_ATTEMPTS = Metrics.getShared().counter("control_connect_attempts_total", "TCP connections attempted to streaming servers");
+	private static final StripedCounter HANDSHAKE_FAILURES = Metrics.getShared().counter("control_handshake_failures_total", "TLS handshakes that failed");
+	private static final StripedCounter PARSE_FAILURES = Metrics.getShared().counter("control_parse_failures_total", "Control messages that couldn't be parsed");
+	private static final StripedCounter CONNECTIONS_OPEN = Metrics.getShared().gauge("control_connections_open", "Control connections with the read loop running");
+	private static final LatencyHistogram HANDSHAKE_TIMES = Metrics.getShared().histogram("control_handshake_seconds", "How long TLS handshakes with streaming servers took");
+	
+	//For profiling with Java Flight Recorder, see JfrEventType
+	private static final JfrEventType HANDSHAKE_EVENT = JfrEventType.create("net.TlsHandshake", "TLS Handshake", "Steam Streaming",
+			new String[]{"server", "succeeded", "resumed", "cipherSuite", "handshakeDuration"},
+			new Class<?>[]{String.class, boolean.class, boolean.class, int.class, long.class},
+			"handshakeDuration");
+	private static final JfrEventType FRAME_DECODE_EVENT = JfrEventType.create("net.ControlFrameDecode", "Control Frame Decode", "Steam Streaming",
+			new String[]{"server", "emsg", "size", "known", "decodeDuration"},
+			new Class<?>[]{String.class, int.class, int.class, boolean.class, long.class},
+			"decodeDuration");	//From the body being read to it being handled, including what's done on the read thread like answering auth and pings
+	private final CopyOnWriteArrayList<ControlConnectionListener> listeners;
+	
+	private StreamSessionRegistry sessionRegistry = StreamSessionRegistry.getSharedRegistry();	//Every stream we've asked this server for, see startStream
+	
+	private AppCatalog appCatalog;	//Everything the server has told us about its apps (9502)
+	private final LinkedHashMap<Integer, CMsgRemoteClientAppStatus.AppStatus.Builder> pendingAppStatus = new LinkedHashMap<Integer, CMsgRemoteClientAppStatus.AppStatus.Builder>();	//9502s the catalog hasn't had yet, merged by app ID. Guarded by itself.
+	private boolean appStatusQueued = false;	//True while a flushAppStatus is waiting on the dispatcher. Guarded by pendingAppStatus.
+	
+	private final ConcurrentLinkedQueue<SettableFuture<CMsgRemoteClientGetControllerConfigResponse>> pendingConfigs = new ConcurrentLinkedQueue<SettableFuture<CMsgRemoteClientGetControllerConfigResponse>>();	//9510s waiting for their 9511, oldest first
+	private final ReentrantLock configLock = new ReentrantLock();	//Held while queueing and sending a 9510, so they go out in queue order
+	
+	private ThreadFactory threadFactory = null;	//Makes the writer thread, null for an ordinary platform thread. See ThreadMode.
+	
+	private ControlDispatcher dispatcher;	//Runs handlers and listeners off the read thread, see the read loop
+	private static final Integer CONNECTION_LANE = 0;	//Dispatcher lane for connection listeners, so authenticated and disconnected arrive in order
 	
 	public ControlProtocolHandler(InetAddress serverIP, CMsgRemoteClientBroadcastStatus serverStatus, String authData){
 		this.serverIP = serverIP;
 		this.serverStatus = serverStatus;
 		this.authData = authData;
-		this.streamTable = new HashMap<InetAddress, CMsgRemoteClientStartStreamResponse>();
+		this.appCatalog = new AppCatalog(serverIP);
+		this.timeline = new LaunchTimeline(serverIP);
+		this.listeners = new CopyOnWriteArrayList<ControlConnectionListener>();
+		this.dispatcher = new ControlDispatcher();
+	}
+	
+	/*
+	 * Makes a fresh connection to the same server, used for reconnecting. It keeps the old connection's settings,
+	 * listeners and everything the old connection learned (the stream sessions and app catalog), and uses the same server
+	 * status from discovery, so nothing has to be rediscovered.
+	 */
+	public ControlProtocolHandler(ControlProtocolHandler previous){
+		this(previous.serverIP, previous.serverStatus, previous.authData);
+		
+		this.sessionCache = previous.sessionCache;
+		this.cipherSuitePolicy = previous.cipherSuitePolicy;
+		this.cryptoBackend = previous.cryptoBackend;
+		this.sendTimeout = previous.sendTimeout;
+		this.threadFactory = previous.threadFactory;
+		this.timeline = new LaunchTimeline(serverIP, previous.timeline.getStats());
+		this.listeners.addAll(previous.listeners);
+		
+		this.sessionRegistry = previous.sessionRegistry;
+		this.appCatalog = previous.appCatalog;	//The catalog belongs to the server rather than the connection, so just keep using it
+		this.dispatcher = previous.dispatcher;	//Same lanes, so anything the old connection queued is handled before what this one receives
 	}
 
 	@Override
 	public void run() {
-		//Create a TCP connection to the server on the specified port, or default to 27036
-		Socket socket = null;
+		connectStartTime = System.nanoTime();
 		
+		//Create a TCP connection to the server on the specified port, or default to 27036
 		short portNumber = 27036;
 		
 		if(serverStatus.getConnectPort() != 0){
 			portNumber = (short) serverStatus.getConnectPort();
 		}
 		
-		try{
-			socket = new Socket(serverIP, portNumber);
-		} catch(IOException e){
-			System.err.println("Exception thrown when creating TCP connction to port " + portNumber);
-			e.printStackTrace();
+		//Sets up a TLS session over a new TCP connection, resuming the last session with this server if we have one
+		TlsClientProtocol protocol = null;
+		while(protocol == null && !stopped){
+			try {
+				protocol = openConnection(portNumber);
+			} catch (IOException e) {
+				closeSocket();
+				
+				if(stopped){	//stop() closed the socket under the handshake, which says nothing about the server
+					break;
+				}
+				
+				if(socket == null || !socket.isConnected()){	//The TCP connection itself failed, trying again won't help
+					Log.error("Exception thrown when creating TCP connction to port {}", portNumber, e);
+					failure = e;
+					break;
+				}
+				
+				//The handshake failed. Each retry takes something away, so this always ends.
+				if(sessionCache != null && sessionCache.get(serverIP, authData) != null && (handshakeAlert || e instanceof EOFException)){	//Some servers drop the connection instead of ignoring a session they don't know, so forget it and do a full handshake
+					Log.warn("Exception thrown when resuming the TLS session, retrying with a full handshake");
+					sessionCache.invalidate(serverIP, authData);
+				} else if(handshakeAlert && cipherSuitePolicy.markRejected(serverIP)){	//Or the server didn't like our cipher suites. Only an alert says so, markRejected lasts.
+					Log.warn("TLS handshake failed with the preferred cipher suites, retrying with the fallback suites");
+				} else{
+					Log.error("Exception throw when connecting via TLS", e);
+					failure = e;
+					break;
+				}
+			}
 		}
 		
-		//Sets up a TLS session over the newly created TCP connection
-		TlsClientProtocol protocol = null;
-		try {
-			protocol = new TlsClientProtocol(socket.getInputStream(), socket.getOutputStream(), new SecureRandom());
-		} catch (IOException e) {
-			System.err.println("Exception thrown when setting up the TLS connection");
-			e.printStackTrace();
+		if(protocol != null){
+			connectionRunning = true;	//Mark the connection as active. Set before looking at stopped, so a stop() after the check still clears it
 		}
 		
-		//Attempts to connect the new TLS session
-		//TODO Replace this with a try with resources
-		try {
-			protocol.connect(new StreamingPSKTlsClient(this.authData));
-		} catch (IOException e) {
-			System.err.println("Exception throw when connecting via TLS");
-			e.printStackTrace();
+		if(protocol == null || stopped){	//Nothing to do without a connection, or stop() was called while we were connecting
+			connectionRunning = false;
+			closeSocket();
+			failPendingStreams();
+			failPendingConfigs();
+			notifyDisconnected();
+			return;
 		}
 		
-		output = new DataOutputStream(protocol.getOutputStream());	//This is the output stream for the connection. Write data to this.
+		writer = new ControlWriter(protocol.getOutputStream(), this);	//This writes to the connection for everyone, see sendMessage
+		writer.start(threadFactory);
 		DataInputStream input = new DataInputStream(protocol.getInputStream());	//This is the input stream for the connection. Read data from this.
 	
-		connectionRunning = true;	//Mark the connection as active
+		CONNECTIONS_OPEN.increment();
 		
 		//Continuously handle incoming and outgoing packets. Everything received from here should be a protobuf packet, with some header info.
 		while(connectionRunning){
@@ -96,153 +198,432 @@ public class ControlProtocolHandler implements Runnable{
 				length = Integer.reverseBytes(input.readInt());	//Similarly to the Discovery protocol, the first byte is the length of the header
 				@SuppressWarnings("unused")
 				int magicBytes = input.readInt();	//This is Valve's "magic" number, although it doesn't do anything. Always VT01. (Might be in little endian, can't remember. TODO Test this
-				emsg = input.readInt();	//This variable corresponds to the body's (protobuf) type. 
+				emsg = Integer.reverseBytes(input.readInt());	//This variable corresponds to the body's (protobuf) type. Little endian, same as when we send it.
 				@SuppressWarnings("unused")
 				int blank = Integer.reverseBytes(input.readInt());	//This one is always 0.
+				getFrameCounter(FRAMES_RECEIVED, emsg & 0x7fffffff).increment();
 			} catch(IOException e){
-				System.err.println("Exception thrown when reading a packet in the Control stream.");
-				e.printStackTrace();
-				System.exit(1);
+				if(!connectionRunning){	//stop() closed the socket under us, so this is expected
+					break;
+				}
+				Log.error("Exception thrown when reading a packet in the Control stream.", e);
+				if(failure == null){	//If the writer failed first, that's the real reason
+					failure = e;
+				}
+				//Whoever is running us (see SupervisedConnection) decides whether to reconnect
+				break;
 			}
 			
+			boolean traced = FRAME_DECODE_EVENT.isEnabled();
+			long decodeStart = (traced ? System.nanoTime() : 0);
 			byte[] messageBytes = new byte[length - 8];	//The body of the packet, raw protobuf data. Don't remember for sure why -8, but I'm guessing if each of the above 4 values are 2 bytes each, that's where the number comes from.
 			
 			try{
-				input.read(messageBytes);
+				input.readFully(messageBytes);	//A plain read() can return before the whole body has arrived
 			} catch(IOException e){
-				System.err.println("Exception thrown when reading a packet in the Control stream.");
-				e.printStackTrace();
-				System.exit(1);
+				if(!connectionRunning){
+					break;
+				}
+				Log.error("Exception thrown when reading a packet in the Control stream.", e);
+				if(failure == null){
+					failure = e;
+				}
+				break;
 			}
 			
-			//Similarly to the DiscoveryProtocolHandler, here we use a switch statement to create a protobuf object from the read data.
 			GeneratedMessage message = null;
 			
 			try{	//I'm lazy and don't want to write a try-catch statement for every possible exception thrower
-				switch(emsg & 0x7fffffff){	//Don't remember why 0x7fffffff, but it has something to do with getting the emsg values to match up with a protobuf enum I think.
-					case 9500:	//A request for authentication from the server
-						message = CMsgRemoteClientAuth.parseFrom(messageBytes);
-						
-						//The rest of this block is setting up and sending an authentication request to the server.
-						CMsgRemoteClientAuth messageCasted = (CMsgRemoteClientAuth) message;	//I'm just tired of typing ((CmsgRemoteClientAuth) message)
-						CMsgRemoteClientBroadcastStatus messageStatus = messageCasted.getStatus();	//The embodied CMsgRemoteClientBroadcastStatus protobuf sent with the original authentication method.
-						
-						CMsgRemoteClientAuth authMessage = CMsgRemoteClientAuth.newBuilder(messageCasted).	//Create a new response. Pretty much the same as the old one, except the status object is rebuilt
-								setStatus(CMsgRemoteClientBroadcastStatus.newBuilder(messageStatus).	//With the client's hostname.
-										setHostname(CLIENT_NAME).
-										build()).
-								build();
-						
-						byte[] authMessageBytes = authMessage.toByteArray();	//Turn the protobuf into a byte array in preparation for being transmitted
-						
-						int authLength = authMessageBytes.length + 8;	//Set the length for the packet about to be sent
-						output.writeInt(Integer.reverseBytes(authLength));	//Send the length of the coming packet
-						
-						output.write(magicBytes);	//Send the magic bytes. Might need to be little endian, can't remember. TODO Test this
-						
-						int authEmsg = Integer.reverseBytes(9500 | 0x80000000);	//Create the emsg. Don't remember why 0x80000000, but theres a good reason why.
-						output.writeInt(authEmsg);	//Write the emsg to the stream
-						
-						output.writeInt(0);	//Write a 0 integer to the stream
-						
-						output.write(authMessageBytes);	//And finally write the protobuf out.
-						
-						break;
-					case 9501:	//A response from an authentication request sent to the server
-						message = CMsgRemoteClientAuthResponse.parseFrom(messageBytes);
-						
-						//TODO Check the received Eresult against a table of know values
-						CMsgRemoteClientAuthResponse authResponseMessage = CMsgRemoteClientAuthResponse.newBuilder().
-								setEresult(1).	//Lots of possible values for this, 1 means success. Here's a list of values: https://github.com/SteamRE/SteamKit/blob/master/Resources/SteamLanguage/eresult.steamd
-								build();
-						
-						byte[] authResponseMessageBytes = authResponseMessage.toByteArray();
-						
-						int authResponseLength = authResponseMessageBytes.length + 8;	//Set the length for the packet about to be sent
-						output.writeInt(Integer.reverseBytes(authResponseLength));	//Send the length of the coming packet
-						
-						output.write(magicBytes);	//Send the magic bytes. Might need to be little endian, can't remember. TODO Test this
-						
-						int authResponseEmsg = Integer.reverseBytes(9501 | 0x80000000);	//Create the emsg. 9501 is the code for an authentication response packet.
-						output.writeInt(authResponseEmsg);	//Write the emsg to the stream
-						
-						output.writeInt(0);	//Write a 0 integer to the stream
-						
-						output.write(authResponseMessageBytes);	//Sends the body out.
-						
-						break;
-					case 9502:	//Various information about a game, includes things like download time left, categories, and it's ID.
-						message = CMsgRemoteClientAppStatus.parseFrom(messageBytes);
-						
-						break;
-					case 9503:	//A request from the server to for the client to start a stream. We ignore these.
-						message = CMsgRemoteClientStartStream.parseFrom(messageBytes);
-						
-						break;
-					case 9504:	//A response from the server regarding or stream request.
-						message = CMsgRemoteClientStartStreamResponse.parseFrom(messageBytes);
-						
-						if(((CMsgRemoteClientStartStreamResponse) message).getELaunchResult() == 1){	//If the launch was successful,
-							streamTable.put(this.getServer(), (CMsgRemoteClientStartStreamResponse) message);	//Add the server InetAddress and StartStreamResponse protobuf the table
-						} else{
-							System.err.println("Stream from the server at " + this.getServer().getHostAddress() + " did not launch properly!");
-						}
-						
-						break;
-					case 9505:	//A ping message from the server. This is how the server know we're still there. I think. Why can't it just check to see if the connection's been closed instead?
-						message = CMsgRemoteClientPing.parseFrom(messageBytes);
-						
-						CMsgRemoteClientPingResponse pingResponseMessage = CMsgRemoteClientPingResponse.newBuilder().	//Create the ping response protobuf to send
-								build();	//Nothing to set here, move along..
-						
-						//Most of this stuff is the same as the other case blocks, so not going to retype comments here. TODO Write a function for this, this is bad OOP and hard to maintain
-						byte[] pingResponseMessageBytes = pingResponseMessage.toByteArray();
-						
-						int pingResponseLength = pingResponseMessageBytes.length + 8;
-						output.writeInt(Integer.reverseBytes(pingResponseLength));
-						
-						output.write(magicBytes);
-						
-						int pingResponseEmsg = Integer.reverseBytes(9506 | 0x80000000);
-						output.writeInt(pingResponseEmsg);
-						
-						output.writeInt(0);
-						
-						output.write(pingResponseMessageBytes);
-										
-						break;
-					case 9506:	//A ping response from the server (we get this if we ping the server)
-						message = CMsgRemoteClientPingResponse.parseFrom(messageBytes);
-						
-						break;
-					
-				}
+				message = handleMessage(emsg & 0x7fffffff, messageBytes);	//Don't remember why 0x7fffffff, but it has something to do with getting the emsg values to match up with a protobuf enum I think.
 			} catch(IOException e){
-				System.err.println("Expcetion thrown while handling a control packet");
-				e.printStackTrace();
+				PARSE_FAILURES.increment();
+				Log.error("Expcetion thrown while handling a control packet", e);
 			}
 			
+			if(traced){
+				FRAME_DECODE_EVENT.commit(serverIP.getHostAddress(), emsg & 0x7fffffff, messageBytes.length, message != null, System.nanoTime() - decodeStart);
+			}
+			
+		}
+		
+		CONNECTIONS_OPEN.add(-1);
+		
+		PingScheduler scheduler = pingScheduler;
+		if(scheduler != null){	//Nobody left to ping
+			scheduler.stop();
 		}
 		
+		writer.close();
+		
 		//Close the TLS connection nicely
         try {
 			protocol.close();
 		} catch (IOException e) {
-			System.err.println("Exception thrown when attempting to stop the TLS connction!");
-			e.printStackTrace();
+			if(connectionRunning){	//If stop() was called the connection is already gone
+				Log.error("Exception thrown when attempting to stop the TLS connction!", e);
+			}
 		}
         
         //Close the TCP connection nicely
-        try {
+        closeSocket();
+        
+        connectionRunning = false;	//A read failure leaves it set, and startStream looks at it
+        failPendingStreams();
+        failPendingConfigs();
+        notifyDisconnected();
+	}
+	
+	/*
+	 * Hands a 9502 to the catalog on the dispatcher. These are partial, so none can be dropped, but while the catalog is
+	 * behind they're merged by app ID into what's already waiting (the same way the catalog merges them), so a big
+	 * library or a slow catalog listener costs one entry per app instead of a queue that grows without end.
+	 */
+	private void queueAppStatus(CMsgRemoteClientAppStatus appStatus){
+		boolean schedule;
+		synchronized(pendingAppStatus){
+			for(int i = 0; i < appStatus.getStatusUpdatesCount(); i++){
+				CMsgRemoteClientAppStatus.AppStatus update = appStatus.getStatusUpdates(i);
+				CMsgRemoteClientAppStatus.AppStatus.Builder pending = pendingAppStatus.get(update.getAppId());
+				if(pending == null){
+					pendingAppStatus.put(update.getAppId(), update.toBuilder());
+				} else{
+					AppCatalog.merge(pending, update);
+				}
+			}
+			
+			schedule = !appStatusQueued;
+			appStatusQueued = true;
+		}
+		
+		if(schedule){
+			dispatcher.dispatch(9502, new Runnable(){
+				@Override
+				public void run(){
+					flushAppStatus();
+				}
+			});
+		}
+	}
+	
+	private void flushAppStatus(){
+		ArrayList<CMsgRemoteClientAppStatus.AppStatus.Builder> updates;
+		synchronized(pendingAppStatus){
+			updates = new ArrayList<CMsgRemoteClientAppStatus.AppStatus.Builder>(pendingAppStatus.values());
+			pendingAppStatus.clear();
+			appStatusQueued = false;
+		}
+		
+		for(CMsgRemoteClientAppStatus.AppStatus.Builder update : updates){
+			appCatalog.update(update.build());
+		}
+	}
+	
+	/*
+	 * Similarly to the DiscoveryProtocolHandler, here we use a switch statement to create a protobuf object from the read data.
+	 * Decoding and anything the server is waiting on (auth, ping responses) happen right here on the read thread. The rest
+	 * goes to the dispatcher, one lane per EMsg, so a slow listener can't stop us answering pings.
+	 * Returns null for EMsgs we don't know. Package private for AllocationBudget.
+	 */
+	GeneratedMessage handleMessage(int emsg, byte[] messageBytes) throws IOException{
+		GeneratedMessage message = null;
+		
+		switch(emsg){
+			case 9500:	//A request for authentication from the server
+				message = CMsgRemoteClientAuth.parseFrom(messageBytes);
+				
+				//The rest of this block is setting up and sending an authentication request to the server.
+				CMsgRemoteClientAuth messageCasted = (CMsgRemoteClientAuth) message;	//I'm just tired of typing ((CmsgRemoteClientAuth) message)
+				CMsgRemoteClientBroadcastStatus messageStatus = messageCasted.getStatus();	//The embodied CMsgRemoteClientBroadcastStatus protobuf sent with the original authentication method.
+				
+				CMsgRemoteClientAuth authMessage = CMsgRemoteClientAuth.newBuilder(messageCasted).	//Create a new response. Pretty much the same as the old one, except the status object is rebuilt
+						setStatus(CMsgRemoteClientBroadcastStatus.newBuilder(messageStatus).	//With the client's hostname.
+								setHostname(CLIENT_NAME).
+								build()).
+						build();
+				
+				sendMessage(9500, authMessage, true);	//And send it back
+				
+				break;
+			case 9501:	//A response from an authentication request sent to the server
+				message = CMsgRemoteClientAuthResponse.parseFrom(messageBytes);
+				
+				if(((CMsgRemoteClientAuthResponse) message).getEresult() == 1){	//The server accepted us, so the connection is ready for stream requests
+					authenticatedTime = System.nanoTime();
+					timeline.end(LaunchStats.Stage.AUTHENTICATION, authenticatedTime);
+					authenticatedLatch.countDown();
+					notifyAuthenticated();
+				}
+				
+				//TODO Check the received Eresult against a table of know values
+				CMsgRemoteClientAuthResponse authResponseMessage = CMsgRemoteClientAuthResponse.newBuilder().
+						setEresult(1).	//Lots of possible values for this, 1 means success. Here's a list of values: https://github.com/SteamRE/SteamKit/blob/master/Resources/SteamLanguage/eresult.steamd
+						build();
+				
+				sendMessage(9501, authResponseMessage, true);	//9501 is the code for an authentication response packet.
+				
+				break;
+			case 9502:	//Various information about a game, includes things like download time left, categories, and it's ID.
+				CMsgRemoteClientAppStatus appStatus = CMsgRemoteClientAppStatus.parseFrom(messageBytes);
+				message = appStatus;
+				
+				queueAppStatus(appStatus);
+				
+				break;
+			case 9503:	//A request from the server to for the client to start a stream. We ignore these.
+				message = CMsgRemoteClientStartStream.parseFrom(messageBytes);
+				
+				break;
+			case 9504:	//A response from the server regarding or stream request.
+				final CMsgRemoteClientStartStreamResponse startStreamResponse = CMsgRemoteClientStartStreamResponse.parseFrom(messageBytes);
+				message = startStreamResponse;
+				
+				dispatcher.dispatch(9504, new Runnable(){
+					@Override
+					public void run(){
+						streamStarted(startStreamResponse);
+					}
+				});
+				
+				break;
+			case 9505:	//A ping message from the server. This is how the server know we're still there. I think. Why can't it just check to see if the connection's been closed instead?
+				message = CMsgRemoteClientPing.parseFrom(messageBytes);
+				
+				CMsgRemoteClientPingResponse pingResponseMessage = CMsgRemoteClientPingResponse.newBuilder().	//Create the ping response protobuf to send
+						build();	//Nothing to set here, move along..
+				
+				sendMessage(9506, pingResponseMessage, true);
+								
+				break;
+			case 9506:	//A ping response from the server (we get this if we ping the server)
+				message = CMsgRemoteClientPingResponse.parseFrom(messageBytes);
+				
+				PingScheduler scheduler = pingScheduler;
+				if(scheduler != null){	//Let the scheduler match it up with the ping it sent
+					scheduler.pingResponseReceived(System.nanoTime());
+				}
+				
+				break;
+			case 9511:	//The controller config we asked for with 9510
+				final CMsgRemoteClientGetControllerConfigResponse configResponse = CMsgRemoteClientGetControllerConfigResponse.parseFrom(messageBytes);
+				message = configResponse;
+				
+				dispatcher.dispatch(9511, new Runnable(){	//So whatever is waiting on the future doesn't run on the read thread
+					@Override
+					public void run(){
+						controllerConfigReceived(configResponse);
+					}
+				});
+				
+				break;
+		}
+		
+		return message;
+	}
+	
+	private void streamStarted(CMsgRemoteClientStartStreamResponse message){
+		StreamSession session = sessionRegistry.responseReceived(this, serverIP, message);	//Matches it up with the oldest request still waiting on this connection
+		
+		if(session.getState() != StreamSession.State.LAUNCHED){
+			Log.warn("Stream from the server at {} did not launch properly!", serverIP.getHostAddress());
+		}
+	}
+	
+	//Requests the server will never answer now. On the 9504 lane so any responses that did arrive are handled first.
+	private void failPendingStreams(){
+		dispatcher.dispatch(9504, new Runnable(){
+			@Override
+			public void run(){
+				sessionRegistry.failPending(ControlProtocolHandler.this);
+			}
+		});
+	}
+	
+	private void controllerConfigReceived(CMsgRemoteClientGetControllerConfigResponse message){
+		SettableFuture<CMsgRemoteClientGetControllerConfigResponse> future = pendingConfigs.poll();	//Answered in the order they were asked
+		
+		if(future == null){
+			Log.warn("Got a controller config from {} that nobody asked for", serverIP.getHostAddress());
+			return;
+		}
+		
+		future.set(message);
+	}
+	
+	private void failPendingConfigs(){
+		dispatcher.dispatch(9511, new Runnable(){	//After any responses that did arrive
+			@Override
+			public void run(){
+				IOException closed = new IOException("The connection to " + serverIP.getHostAddress() + " closed before it sent the controller config", failure);
+				for(SettableFuture<CMsgRemoteClientGetControllerConfigResponse> future = pendingConfigs.poll(); future != null; future = pendingConfigs.poll()){
+					future.setException(closed);
+				}
+			}
+		});
+	}
+	
+	private void notifyAuthenticated(){
+		dispatcher.dispatch(CONNECTION_LANE, new Runnable(){
+			@Override
+			public void run(){
+				for(ControlConnectionListener listener : listeners){
+					listener.authenticated(ControlProtocolHandler.this);
+				}
+			}
+		});
+	}
+	
+	private void notifyDisconnected(){
+		final IOException cause = failure;
+		
+		dispatcher.dispatch(CONNECTION_LANE, new Runnable(){	//Same lane as authenticated, so they can't arrive the wrong way around
+			@Override
+			public void run(){
+				for(ControlConnectionListener listener : listeners){
+					listener.disconnected(ControlProtocolHandler.this, cause);
+				}
+			}
+		});
+	}
+	
+	//Called by the writer thread when a write fails. Closing the socket wakes the read loop up so the connection ends.
+	void writeFailed(IOException e){
+		Log.error("Exception thrown when writing to the Control stream.", e);
+		failure = e;
+		closeSocket();
+	}
+	
+	//Opens the TCP connection and runs the TLS handshake over it
+	private TlsClientProtocol openConnection(short portNumber) throws IOException{
+		socket = null;	//So a failed connect isn't mistaken for a failed handshake on the last socket
+		handshakeAlert = false;
+		CONNECT_ATTEMPTS.increment();
+		timeline.begin(LaunchStats.Stage.TCP_CONNECT, System.nanoTime());
+		socket = new Socket(serverIP, portNumber);
+		timeline.end(LaunchStats.Stage.TCP_CONNECT, System.nanoTime());
+		if(stopped){	//stop() came while we were connecting, when there was no socket for it to close
+			throw new SocketException("Connection stopped");
+		}
+		
+		TlsClientProtocol protocol = new TlsClientProtocol(socket.getInputStream(), socket.getOutputStream(), new SecureRandom());
+		StreamingPSKTlsClient client = new StreamingPSKTlsClient(this.authData, serverIP, sessionCache, cipherSuitePolicy.getCipherSuites(serverIP), cryptoBackend.createCipherFactory());
+		long handshakeStart = System.nanoTime();
+		timeline.begin(LaunchStats.Stage.TLS_HANDSHAKE, handshakeStart);
+		try{
+			protocol.connect(client);
+		} catch(IOException e){
+			HANDSHAKE_FAILURES.increment();
+			handshakeAlert = (e instanceof TlsFatalAlert || client.isAlertReceived());
+			if(HANDSHAKE_EVENT.isEnabled()){
+				HANDSHAKE_EVENT.commit(serverIP.getHostAddress(), false, false, -1, System.nanoTime() - handshakeStart);
+			}
+			throw e;
+		}
+		long handshakeDone = System.nanoTime();
+		HANDSHAKE_TIMES.record(handshakeDone - handshakeStart);
+		if(HANDSHAKE_EVENT.isEnabled()){
+			HANDSHAKE_EVENT.commit(serverIP.getHostAddress(), true, client.isSessionResumed(), client.getSelectedCipherSuite(), handshakeDone - handshakeStart);
+		}
+		timeline.end(LaunchStats.Stage.TLS_HANDSHAKE, handshakeDone);
+		timeline.begin(LaunchStats.Stage.AUTHENTICATION, handshakeDone);	//The server sends 9500 as soon as the handshake is done
+		
+		sessionResumed = client.isSessionResumed();
+		cipherSuite = client.getSelectedCipherSuite();
+		
+		return protocol;
+	}
+	
+	private void closeSocket(){
+		if(socket == null){
+			return;
+		}
+		
+		try {
 			socket.close();
 		} catch (IOException e) {
-			System.err.println("Exception thrown when attempting to stop the TCP connection!");
-			e.printStackTrace();
+			Log.error("Exception thrown when attempting to stop the TCP connection!", e);
 		}
-		
 	}
 	
-	public void startStream(int app_id, int maxXResolution, int maxYResolution) throws IOException{
+	//Stops the connection. Closing the socket is what unblocks the read loop. Also works before run() or during the handshake.
+	public void stop(){
+		stopped = true;
+		connectionRunning = false;
+		closeSocket();
+	}
+	
+	//Blocks until the server has accepted our authentication, returns false if that didn't happen in time
+	public boolean awaitAuthenticated(long timeout, TimeUnit unit) throws InterruptedException{
+		return authenticatedLatch.await(timeout, unit);
+	}
+	
+	//Nanoseconds from starting to connect to being authenticated, or -1 if we aren't authenticated yet
+	public long getConnectLatency(){
+		return authenticatedTime == 0 ? -1 : authenticatedTime - connectStartTime;
+	}
+	
+	public boolean isAuthenticated(){
+		return authenticatedTime != 0;
+	}
+	
+	//System.nanoTime() when the server accepted our authentication, 0 if it hasn't
+	public long getAuthenticatedTime(){
+		return authenticatedTime;
+	}
+	
+	//The exception that ended the connection, or null if it's still running or was stopped with stop()
+	public IOException getFailure(){
+		return failure;
+	}
+	
+	public void addConnectionListener(ControlConnectionListener listener){
+		listeners.add(listener);
+	}
+	
+	public void removeConnectionListener(ControlConnectionListener listener){
+		listeners.remove(listener);
+	}
+	
+	void setPingScheduler(PingScheduler pingScheduler){
+		this.pingScheduler = pingScheduler;
+	}
+	
+	public boolean isSessionResumed(){
+		return sessionResumed;
+	}
+	
+	public void setSessionCache(TlsSessionCache sessionCache){
+		this.sessionCache = sessionCache;
+	}
+	
+	public void setCipherSuitePolicy(CipherSuitePolicy cipherSuitePolicy){
+		this.cipherSuitePolicy = cipherSuitePolicy;
+	}
+	
+	//Where handlers and listeners run. Set it before run(), reconnects keep using the same one.
+	//What the writer thread is made with, so it can be a virtual thread like the read loop. Null for a platform thread.
+	public void setThreadFactory(ThreadFactory threadFactory){
+		this.threadFactory = threadFactory;
+	}
+	
+	public void setDispatcher(ControlDispatcher dispatcher){
+		this.dispatcher = dispatcher;
+	}
+	
+	public ControlDispatcher getDispatcher(){
+		return dispatcher;
+	}
+	
+	public void setCryptoBackend(CryptoBackend cryptoBackend){
+		this.cryptoBackend = cryptoBackend;
+	}
+	
+	//The cipher suite the server picked, or -1 before the handshake is done
+	public int getCipherSuite(){
+		return cipherSuite;
+	}
+	
+	//Asks the server to start the app streaming. The returned session follows it through to launched or failed.
+	public StreamSession startStream(int app_id, int maxXResolution, int maxYResolution) throws IOException{
 		CMsgRemoteClientStartStream message = CMsgRemoteClientStartStream.newBuilder().
 				setAppId(app_id).
 				setGamepadCount(0).
@@ -252,59 +633,256 @@ public class ControlProtocolHandler implements Runnable{
 				setMaximumResolutionY(maxYResolution).
 				build();
 		
-		byte[] message_bytes = message.toByteArray();
+		if(!connectionRunning){	//Registering it would keep this connection in the registry for a response that won't come
+			throw new IOException("Not connected to " + serverIP.getHostAddress());
+		}
 		
-		int length = message_bytes.length + 8;
-		output.writeInt(Integer.reverseBytes(length));
+		final StreamSession session = sessionRegistry.requested(this, serverIP, app_id, timeline);	//Before sending, the response can come back quickly
+		try{
+			sendMessage(9503, message, new Runnable(){
+				@Override
+				public void run(){
+					sessionRegistry.sent(session);
+				}
+			});
+		} catch(IOException e){
+			sessionRegistry.failed(session);
+			throw e;
+		}
 		
-		output.write(magicBytes);
+		return session;
+	}	
+	
+	/*
+	 * Asks the server for an app's controller config (9510). The future completes with the response (9511), or fails if
+	 * the connection closes first. Responses don't say which request they answer, so requests are queued and sent under
+	 * the same lock to keep the two in the same order. ControllerConfigCache keeps these around so they aren't refetched.
+	 */
+	public ListenableFuture<CMsgRemoteClientGetControllerConfigResponse> getControllerConfig(int appID, int controllerIndex){
+		SettableFuture<CMsgRemoteClientGetControllerConfigResponse> future = SettableFuture.create();
+		CMsgRemoteClientGetControllerConfig message = CMsgRemoteClientGetControllerConfig.newBuilder().
+				setAppId(appID).
+				setControllerIndex(controllerIndex).
+				build();
 		
-		int emsg = Integer.reverseBytes(9503 | 0x80000000);
-		output.writeInt(emsg);
+		configLock.lock();	//Not synchronized, sending can block and a virtual thread would pin its carrier waiting
+		try{
+			pendingConfigs.add(future);
+			try{
+				sendMessage(9510, message, false);
+			} catch(IOException e){
+				pendingConfigs.remove(future);
+				future.setException(e);
+			}
+		} finally{
+			configLock.unlock();
+		}
 		
-		output.writeInt(0);
+		return future;
+	}
+	
+	//Sends a ping to the server. Its response (9506) goes to the PingScheduler, if there is one.
+	public void sendPing() throws IOException{
+		sendMessage(9505, CMsgRemoteClientPing.newBuilder().build(), true);
+	}
+	
+	/*
+	 * Writes one protobuf message to the server. Every packet in the control protocol looks like this:
+	 * 	1. The length of everything after the magic bytes, little endian
+	 * 	2. The magic bytes, VT01
+	 * 	3. The emsg, little endian, with the high bit set to say the body is a protobuf
+	 * 	4. The length of the protobuf header, always 0 since we don't send one
+	 * 	5. The body
+	 * The read loop, startStream and the ping scheduler all send from different threads, so nobody writes to the stream
+	 * directly. Messages are queued on the ControlWriter, which frames and writes them on its own thread. Urgent ones
+	 * (auth and pings) skip ahead of everything else. Other messages wait up to sendTimeout for room in the queue.
+	 */
+	private void sendMessage(int emsg, GeneratedMessage message, boolean urgent) throws IOException{
+		ControlWriter writer = getConnectedWriter();
+		getFrameCounter(FRAMES_SENT, emsg).increment();
 		
-		output.write(message_bytes);
-	}	
+		if(urgent){
+			if(!writer.offer(emsg, message, true)){
+				throw new IOException("Too many urgent messages queued for " + serverIP.getHostAddress());
+			}
+		} else{
+			writer.send(emsg, message, sendTimeout, TimeUnit.MILLISECONDS);
+		}
+	}
 	
+	//A bulk message, with a callback for when it has actually been written
+	private void sendMessage(int emsg, GeneratedMessage message, Runnable written) throws IOException{
+		ControlWriter writer = getConnectedWriter();
+		getFrameCounter(FRAMES_SENT, emsg).increment();
+		writer.send(emsg, message, sendTimeout, TimeUnit.MILLISECONDS, written);
+	}
+	
+	//The counter for the EMsg, made the first time it's needed. Threads racing to make one get the same counter from the registry.
+	private static StripedCounter getFrameCounter(StripedCounter[] counters, int emsg){
+		int index = emsg - 9500;
+		if(index < 0 || index >= counters.length - 1){
+			index = counters.length - 1;
+		}
+		
+		StripedCounter counter = counters[index];
+		if(counter == null){
+			String label = (index == counters.length - 1 ? "other" : Integer.toString(emsg));
+			if(counters == FRAMES_RECEIVED){
+				counter = Metrics.getShared().counter("control_frames_received_total", "Control messages received, by EMsg", "emsg", label);
+			} else{
+				counter = Metrics.getShared().counter("control_frames_sent_total", "Control messages queued to send, by EMsg", "emsg", label);
+			}
+			counters[index] = counter;
+		}
+		return counter;
+	}
+	
+	private ControlWriter getConnectedWriter() throws IOException{
+		ControlWriter writer = this.writer;
+		if(writer == null){
+			throw new IOException("Not connected to " + serverIP.getHostAddress());
+		}
+		return writer;
+	}
+	
+	//True if there's room to send right now, so something like startStream won't have to wait
+	public boolean isWritable(){
+		ControlWriter writer = this.writer;
+		return writer != null && !writer.isSaturated();
+	}
+	
+	//The writer for the current connection, or null if we aren't connected yet
+	public ControlWriter getWriter(){
+		return writer;
+	}
+	
+	public void setSendTimeout(long timeout, TimeUnit unit){
+		this.sendTimeout = unit.toMillis(timeout);
+	}
+	
+	public AppCatalog getAppCatalog(){
+		return appCatalog;
+	}
+	
+	//This connection's launch stages. Fill in discovery with DiscoveryProtocolHandler.markDiscovery if you have it.
+	public LaunchTimeline getTimeline(){
+		return timeline;
+	}
+	
+	//Where the stage timings go, set it before run()
+	public void setLaunchStats(LaunchStats stats){
+		this.timeline = new LaunchTimeline(serverIP, stats);
+	}
+	
+	public StreamSessionRegistry getSessionRegistry(){
+		return sessionRegistry;
+	}
+	
+	//Set it before run(). Reconnects keep using the same one.
+	public void setSessionRegistry(StreamSessionRegistry sessionRegistry){
+		this.sessionRegistry = sessionRegistry;
+	}
+	
+	/*
+	 * The launched stream on this server, in the shape of the old stream table. It's a copy now, and only ever has the
+	 * newest stream in it. Use the session registry to see all of them, or to be told when they change.
+	 */
 	public HashMap<InetAddress, CMsgRemoteClientStartStreamResponse> getStreamTable(){
-		return this.streamTable;
+		HashMap<InetAddress, CMsgRemoteClientStartStreamResponse> table = new HashMap<InetAddress, CMsgRemoteClientStartStreamResponse>();
+		
+		StreamSession latest = sessionRegistry.getLatestLaunched(serverIP);
+		if(latest != null){
+			table.put(serverIP, latest.getResponse());
+		}
+		
+		return table;
 	}
 	
 	//This deals with the boring parts of the connection (TLS). To be honest I think I copy/pasted most of this from somewhere on the Internet
 	static class StreamingPSKTlsClient extends PSKTlsClient{
+		private final String authData;
+		private final InetAddress server;
+		private final TlsSessionCache sessionCache;
+		private final int[] cipherSuites;
+		private TlsSession offeredSession = null;	//The cached session we asked the server to resume, if any
+		private boolean sessionResumed = false;
+		private volatile boolean alertReceived = false;	//The server sent a fatal alert
+		
 		public StreamingPSKTlsClient(String authData){
-			super(new Steam_PSKIdentity(authData));
+			this(authData, null, null, CipherSuitePolicy.LEGACY_SUITES, new DefaultTlsCipherFactory());
+		}
+		
+		public StreamingPSKTlsClient(String authData, InetAddress server, TlsSessionCache sessionCache, int[] cipherSuites, TlsCipherFactory cipherFactory){
+			super(cipherFactory, new Steam_PSKIdentity(authData));
+			this.authData = authData;
+			this.server = server;
+			this.sessionCache = sessionCache;
+			this.cipherSuites = cipherSuites;
+		}
+		
+		@Override
+		public TlsSession getSessionToResume(){
+			if(sessionCache == null || server == null){
+				return null;
+			}
+			
+			offeredSession = sessionCache.get(server, authData);
+			return offeredSession;
+		}
+		
+		@Override
+		public void notifySessionID(byte[] sessionID){
+			super.notifySessionID(sessionID);
+			
+			//The server echoes our session ID back if it agreed to resume, anything else means a full handshake is happening
+			sessionResumed = offeredSession != null && sessionID != null && sessionID.length > 0 && Arrays.equals(offeredSession.getSessionID(), sessionID);
+		}
+		
+		@Override
+		public void notifyHandshakeComplete() throws IOException{
+			super.notifyHandshakeComplete();
+			
+			if(sessionCache != null && server != null){
+				sessionCache.put(server, authData, context.getResumableSession());	//Null or unresumable sessions (no session ID from the server) just clear the entry
+			}
+		}
+		
+		public boolean isSessionResumed(){
+			return sessionResumed;
 		}
 		
 		@Override
 		public int[] getCipherSuites(){
-			return new int[]{
-					CipherSuite.TLS_PSK_WITH_AES_128_CBC_SHA
-			};
+			return cipherSuites;	//See CipherSuitePolicy
+		}
+		
+		public int getSelectedCipherSuite(){
+			return selectedCipherSuite;
+		}
+		
+		public boolean isAlertReceived(){
+			return alertReceived;
 		}
 
 	    public void notifyAlertRaised(short alertLevel, short alertDescription, String message, Exception cause){
-        	PrintStream out = (alertLevel == AlertLevel.fatal) ? System.err : System.out;
-            out.println("TLS client raised alert (AlertLevel." + alertLevel + ", AlertDescription." + alertDescription + ")");
-            if (message != null) {
-                out.println(message);
-            }
+        	Log.Level level = (alertLevel == AlertLevel.fatal) ? Log.Level.ERROR : Log.Level.INFO;
+            Log.log(level, "TLS client raised alert (AlertLevel.{}, AlertDescription.{}) {}", alertLevel, alertDescription, message == null ? "" : message);
             if (cause != null) {
-                cause.printStackTrace(out);
+                Log.log(level, "Cause of the alert", cause, null, null);
             }
         }
 
         public void notifyAlertReceived(short alertLevel, short alertDescription){
-            @SuppressWarnings("resource")
-			PrintStream out = (alertLevel == AlertLevel.fatal) ? System.err : System.out;
-            out.println("TLS client received alert (AlertLevel." + alertLevel + ", AlertDescription." + alertDescription + ")");
+            if(alertLevel == AlertLevel.fatal){
+                alertReceived = true;
+            }
+            Log.log((alertLevel == AlertLevel.fatal) ? Log.Level.ERROR : Log.Level.INFO, "TLS client received alert (AlertLevel.{}, AlertDescription.{})", alertLevel, alertDescription, null);
         }
 
         public TlsAuthentication getAuthentication() throws IOException{
         	return new ServerOnlyTlsAuthentication(){
                 public void notifyServerCertificate(org.bouncycastle.crypto.tls.Certificate serverCertificate) throws IOException{
-                    System.out.println("in getAuthentication");
+                    Log.debug("in getAuthentication");
                 }
             };
         }
@@ -332,7 +910,7 @@ public class ControlProtocolHandler implements Runnable{
         	
         	@Override
         	public byte[] getPSK(){
-        		return DatatypeConverter.parseHexBinary(authData);	//The AuthKey is the PSK.
+        		return Hex.decode(authData);	//The AuthKey is the PSK.
         	}
 
         }
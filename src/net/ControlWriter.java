@@ -0,0 +1,334 @@
+package net;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.google.protobuf.CodedOutputStream;
+import com.google.protobuf.GeneratedMessage;
+
+/*
+ * The only thing that writes to a control connection. Everyone else (the read loop answering auth and pings, the ping
+ * scheduler, whoever calls startStream) hands it a message and goes back to what they were doing, and one thread
+ * writes them out, so packets can never interleave and nobody waits on the socket.
+ *
+ * There are two lanes. The priority lane is for the small messages that keep the connection alive (auth, pings), and
+ * always goes first, so a ping response never sits behind a pile of stream requests. The bulk lane is everything else
+ * and is bounded: offer() returns false and send() blocks while it's full, which is the caller's signal to slow down.
+ *
+ * Whatever is queued when the writer wakes up is framed into one buffer and handed to TLS as a single write, which
+ * means one TLS record and one TCP segment for a burst of messages instead of five of each per message. The buffer is
+ * flushed once both lanes are empty, right after the priority lane is drained (so keepalives aren't held back by bulk
+ * messages queued behind them), and whenever it gets past maxBatchBytes.
+ */
+public class ControlWriter implements Runnable {
+	private static final byte[] MAGIC_BYTES = "VT01".getBytes(Charset.forName("UTF-8"));
+	private static final int HEADER_LENGTH = 16;
+
+	private final OutputStream output;
+	private final ControlProtocolHandler connection;	//Told when writing fails so it can tear the connection down
+	private static final JfrEventType FRAME_ENCODE_EVENT = JfrEventType.create("net.ControlFrameEncode", "Control Frame Encode", "Steam Streaming",
+			new String[]{"server", "emsg", "size", "encodeDuration"},
+			new Class<?>[]{String.class, int.class, int.class, long.class},
+			"encodeDuration");	//Framing and serializing into the batch buffer, the write itself is per batch
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private final Condition notFull = lock.newCondition();
+	private final ArrayDeque<Outbound> priority = new ArrayDeque<Outbound>();
+	private final ArrayDeque<Outbound> bulk = new ArrayDeque<Outbound>();
+	private final int priorityCapacity;
+	private final int bulkCapacity;
+	private final int maxBatchBytes;
+
+	private boolean closed = false;
+	private IOException failure = null;
+	private Thread thread = null;
+
+	private byte[] buffer = new byte[4096];	//Only touched by the writer thread
+	private int buffered = 0;
+	private final ArrayList<Runnable> writtenCallbacks = new ArrayList<Runnable>();	//For messages in the buffer, run after the next flush
+
+	//Counters for seeing how much coalescing is going on
+	private volatile long messagesWritten = 0;
+	private volatile long flushes = 0;
+
+	public ControlWriter(OutputStream output, ControlProtocolHandler connection){
+		this(output, connection, 64, 256, 16384);
+	}
+
+	public ControlWriter(OutputStream output, ControlProtocolHandler connection, int priorityCapacity, int bulkCapacity, int maxBatchBytes){
+		this.output = output;
+		this.connection = connection;
+		this.priorityCapacity = priorityCapacity;
+		this.bulkCapacity = bulkCapacity;
+		this.maxBatchBytes = maxBatchBytes;
+	}
+
+	public void start(){
+		start(null);
+	}
+
+	//Starts the writer on a thread from the factory (a virtual thread, say), or an ordinary daemon thread if it's null
+	public void start(ThreadFactory threadFactory){
+		lock.lock();
+		try{
+			if(thread == null){
+				String name = "Control writer " + connection.getServer().getHostAddress();
+				if(threadFactory == null){
+					thread = new Thread(this, name);
+					thread.setDaemon(true);
+				} else{
+					thread = threadFactory.newThread(this);
+					thread.setName(name);
+				}
+				thread.start();
+			}
+		} finally{
+			lock.unlock();
+		}
+	}
+
+	//Queues a message without waiting. Returns false if its lane is full.
+	public boolean offer(int emsg, GeneratedMessage message, boolean urgent) throws IOException{
+		lock.lock();
+		try{
+			checkOpen();
+
+			ArrayDeque<Outbound> lane = (urgent ? priority : bulk);
+			if(lane.size() >= (urgent ? priorityCapacity : bulkCapacity)){
+				return false;
+			}
+
+			lane.add(new Outbound(emsg, message, null));
+			notEmpty.signal();
+			return true;
+		} finally{
+			lock.unlock();
+		}
+	}
+
+	//Queues a bulk message, waiting for room if the lane is full. Throws if there still isn't any after the timeout.
+	public void send(int emsg, GeneratedMessage message, long timeout, TimeUnit unit) throws IOException{
+		send(emsg, message, timeout, unit, null);
+	}
+
+	//Same, and runs written on the writer thread once the message has been flushed to the connection
+	public void send(int emsg, GeneratedMessage message, long timeout, TimeUnit unit, Runnable written) throws IOException{
+		long remaining = unit.toNanos(timeout);
+
+		lock.lock();
+		try{
+			while(true){
+				checkOpen();
+
+				if(bulk.size() < bulkCapacity){
+					bulk.add(new Outbound(emsg, message, written));
+					notEmpty.signal();
+					return;
+				}
+
+				if(remaining <= 0){
+					throw new IOException("Timed out waiting for room in the control connection's send queue");
+				}
+
+				try{
+					remaining = notFull.awaitNanos(remaining);
+				} catch(InterruptedException e){
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while waiting to send on the control connection", e);
+				}
+			}
+		} finally{
+			lock.unlock();
+		}
+	}
+
+	//Stops the writer. Anything still queued is dropped, the connection is going away anyway.
+	public void close(){
+		lock.lock();
+		try{
+			closed = true;
+			priority.clear();
+			bulk.clear();
+			notEmpty.signalAll();
+			notFull.signalAll();
+		} finally{
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void run(){
+		try{
+			while(true){
+				Outbound next;
+				boolean urgent;
+
+				lock.lock();
+				try{
+					while(!closed && priority.isEmpty() && bulk.isEmpty()){
+						notEmpty.await();
+					}
+					if(closed){
+						return;
+					}
+
+					urgent = !priority.isEmpty();
+					next = (urgent ? priority.poll() : bulk.poll());
+					if(!urgent){
+						notFull.signal();
+					}
+				} finally{
+					lock.unlock();
+				}
+
+				append(next);
+
+				//Flush points: the priority lane just ran dry, there's nothing left at all, or the batch got big
+				boolean flush;
+				lock.lock();
+				try{
+					flush = (urgent && priority.isEmpty()) || (priority.isEmpty() && bulk.isEmpty());
+				} finally{
+					lock.unlock();
+				}
+
+				if(flush || buffered >= maxBatchBytes){
+					flush();
+				}
+			}
+		} catch(InterruptedException e){
+			//Only happens if someone interrupts the thread to get rid of it
+		} catch(IOException e){
+			lock.lock();
+			try{
+				if(closed){	//The socket was closed under us on purpose
+					return;
+				}
+				failure = e;
+				closed = true;
+				priority.clear();
+				bulk.clear();
+				notFull.signalAll();
+			} finally{
+				lock.unlock();
+			}
+
+			connection.writeFailed(e);
+		}
+	}
+
+	//Frames the message into the buffer, see ControlProtocolHandler.sendMessage for the layout
+	private void append(Outbound outbound) throws IOException{
+		int bodyLength = outbound.message.getSerializedSize();
+		int frameLength = HEADER_LENGTH + bodyLength;
+
+		if(buffered > 0 && buffered + frameLength > maxBatchBytes){	//Don't let a batch grow past the limit
+			flush();
+		}
+
+		boolean traced = FRAME_ENCODE_EVENT.isEnabled();	//Timed after the flush, so it's just the encoding
+		long encodeStart = (traced ? System.nanoTime() : 0);
+		if(buffered + frameLength > buffer.length){
+			buffer = Arrays.copyOf(buffer, Math.max(buffered + frameLength, buffer.length * 2));
+		}
+
+		writeIntLE(bodyLength + 8, buffered);
+		System.arraycopy(MAGIC_BYTES, 0, buffer, buffered + 4, 4);
+		writeIntLE(outbound.emsg | 0x80000000, buffered + 8);
+		writeIntLE(0, buffered + 12);
+
+		CodedOutputStream body = CodedOutputStream.newInstance(buffer, buffered + HEADER_LENGTH, bodyLength);
+		outbound.message.writeTo(body);
+		body.checkNoSpaceLeft();
+
+		buffered += frameLength;
+		messagesWritten++;
+		if(traced){
+			FRAME_ENCODE_EVENT.commit(connection.getServer().getHostAddress(), outbound.emsg, frameLength, System.nanoTime() - encodeStart);
+		}
+		if(outbound.written != null){
+			writtenCallbacks.add(outbound.written);
+		}
+	}
+
+	private void flush() throws IOException{
+		if(buffered == 0){
+			return;
+		}
+
+		output.write(buffer, 0, buffered);	//One write means one TLS record
+		output.flush();
+		buffered = 0;
+		flushes++;
+
+		for(Runnable callback : writtenCallbacks){
+			callback.run();
+		}
+		writtenCallbacks.clear();
+	}
+
+	private void writeIntLE(int value, int offset){
+		buffer[offset] = (byte) value;
+		buffer[offset + 1] = (byte) (value >>> 8);
+		buffer[offset + 2] = (byte) (value >>> 16);
+		buffer[offset + 3] = (byte) (value >>> 24);
+	}
+
+	//Must hold the lock
+	private void checkOpen() throws IOException{
+		if(failure != null){
+			throw new IOException("The control connection failed to write", failure);
+		}
+		if(closed){
+			throw new IOException("The control connection is closed");
+		}
+	}
+
+	//How many bulk messages are waiting. Compare to getBulkCapacity() to see how close callers are to being held up.
+	public int getQueuedCount(){
+		lock.lock();
+		try{
+			return bulk.size();
+		} finally{
+			lock.unlock();
+		}
+	}
+
+	public int getBulkCapacity(){
+		return bulkCapacity;
+	}
+
+	//True if a bulk offer() would fail right now
+	public boolean isSaturated(){
+		return getQueuedCount() >= bulkCapacity;
+	}
+
+	public long getMessagesWritten(){
+		return messagesWritten;
+	}
+
+	public long getFlushes(){
+		return flushes;
+	}
+
+	private static class Outbound {
+		final int emsg;
+		final GeneratedMessage message;
+		final Runnable written;	//Can be null
+
+		Outbound(int emsg, GeneratedMessage message, Runnable written){
+			this.emsg = emsg;
+			this.message = message;
+			this.written = written;
+		}
+	}
+}
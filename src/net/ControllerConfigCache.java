@@ -0,0 +1,268 @@
+package net;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import net.protobufs.SteammessagesRemoteclient.CMsgRemoteClientGetControllerConfigResponse;
+
+/*
+ * Controller configs (the config_vdf from 9511), kept so launching the same app again doesn't have to ask the server.
+ *
+ * Configs are stored by the SHA-1 of their contents, and a small index maps (app ID, controller index) to a hash, so
+ * apps that share a config (most of them use the default) only store it once. Contents are kept in memory up to
+ * maxBytes, least recently used first out, and if there's a directory they're also written there as <hash>.vdf next to
+ * an index file, so the cache survives restarts. Evicted configs are read back from disk when they're needed again.
+ */
+public class ControllerConfigCache {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String INDEX_FILE = "index.txt";
+
+	private final File directory;	//Null to only cache in memory
+	private final long maxBytes;
+
+	private final HashMap<Long, String> index = new HashMap<Long, String>();	//(app ID, controller index) to content hash
+	private final LinkedHashMap<String, byte[]> contents = new LinkedHashMap<String, byte[]>(16, 0.75f, true);	//Content hash to config, least recently used first
+	private long cachedBytes = 0;
+
+	private final ReentrantLock lock = new ReentrantLock();	//Not synchronized, reading and writing the files can block and a virtual thread would pin its carrier
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+
+	public ControllerConfigCache(){
+		this(null, 4 * 1024 * 1024);
+	}
+
+	public ControllerConfigCache(File directory, long maxBytes){
+		this.directory = directory;
+		this.maxBytes = maxBytes;
+
+		if(directory != null){
+			if(!directory.isDirectory() && !directory.mkdirs()){
+				Log.warn("Couldn't create the controller config cache at {}, only caching in memory", directory);
+			} else{
+				loadIndex();
+			}
+		}
+	}
+
+	/*
+	 * The app's controller config. Straight from the cache if we have it, otherwise it's fetched over the connection and
+	 * cached. The future fails if the server doesn't send one.
+	 */
+	public ListenableFuture<byte[]> get(ControlProtocolHandler connection, final int appID, final int controllerIndex){
+		byte[] cached = getCached(appID, controllerIndex);
+		if(cached != null){
+			hits.incrementAndGet();
+			return Futures.immediateFuture(cached);
+		}
+
+		misses.incrementAndGet();
+		final SettableFuture<byte[]> result = SettableFuture.create();
+
+		Futures.addCallback(connection.getControllerConfig(appID, controllerIndex), new FutureCallback<CMsgRemoteClientGetControllerConfigResponse>(){
+			@Override
+			public void onSuccess(CMsgRemoteClientGetControllerConfigResponse response){
+				if(response.getEresult() != 1){
+					result.setException(new IOException("The server wouldn't send the controller config for app " + appID + ", eresult " + response.getEresult()));
+					return;
+				}
+
+				byte[] config = response.getConfigVdf().toByteArray();
+				put(appID, controllerIndex, config);
+				result.set(config);
+			}
+
+			@Override
+			public void onFailure(Throwable t){
+				result.setException(t);
+			}
+		});
+
+		return result;
+	}
+
+	//The cached config, or null if we don't have one
+	public byte[] getCached(int appID, int controllerIndex){
+		lock.lock();
+		try{
+			String hash = index.get(key(appID, controllerIndex));
+			if(hash == null){
+				return null;
+			}
+
+			byte[] config = contents.get(hash);
+			if(config == null && directory != null){	//Evicted from memory, but it should still be on disk
+				try{
+					config = Files.readAllBytes(new File(directory, hash + ".vdf").toPath());
+					store(hash, config);
+				} catch(IOException e){
+					index.remove(key(appID, controllerIndex));	//Gone from disk too, fetch it again
+					return null;
+				}
+			}
+
+			return config;
+		} finally{
+			lock.unlock();
+		}
+	}
+
+	//Caches a config, returns its content hash
+	public String put(int appID, int controllerIndex, byte[] config){
+		lock.lock();
+		try{
+			String hash = hash(config);
+			String previous = index.put(key(appID, controllerIndex), hash);
+
+			if(!contents.containsKey(hash)){
+				store(hash, config);
+
+				if(directory != null){
+					writeFile(new File(directory, hash + ".vdf"), config);
+				}
+			}
+
+			if(directory != null && !hash.equals(previous)){
+				saveIndex();
+			}
+			if(previous != null && !hash.equals(previous) && !index.containsValue(previous)){	//Nothing uses the old config any more
+				byte[] unused = contents.remove(previous);
+				if(unused != null){
+					cachedBytes -= unused.length;
+				}
+				if(directory != null){
+					new File(directory, previous + ".vdf").delete();
+				}
+			}
+
+			return hash;
+		} finally{
+			lock.unlock();
+		}
+	}
+
+	//Forgets the app's config, so the next get() asks the server again
+	public void invalidate(int appID, int controllerIndex){
+		lock.lock();
+		try{
+			if(index.remove(key(appID, controllerIndex)) != null && directory != null){
+				saveIndex();
+			}
+		} finally{
+			lock.unlock();
+		}
+	}
+
+	public long getHits(){
+		return hits.get();
+	}
+
+	public long getMisses(){
+		return misses.get();
+	}
+
+	//Bytes of config held in memory
+	public long getCachedBytes(){
+		lock.lock();
+		try{
+			return cachedBytes;
+		} finally{
+			lock.unlock();
+		}
+	}
+
+	//Must hold the lock
+	private void store(String hash, byte[] config){
+		contents.put(hash, config);
+		cachedBytes += config.length;
+
+		Iterator<Map.Entry<String, byte[]>> eldest = contents.entrySet().iterator();
+		while(cachedBytes > maxBytes && eldest.hasNext()){
+			Map.Entry<String, byte[]> entry = eldest.next();
+			if(entry.getKey().equals(hash)){	//Never evict what was just added
+				continue;
+			}
+			cachedBytes -= entry.getValue().length;
+			eldest.remove();
+		}
+	}
+
+	private static long key(int appID, int controllerIndex){
+		return ((long) appID << 32) | (controllerIndex & 0xffffffffL);
+	}
+
+	private static String hash(byte[] config){
+		try{
+			return Hex.encode(MessageDigest.getInstance("SHA-1").digest(config));
+		} catch(NoSuchAlgorithmException e){
+			throw new IllegalStateException("SHA-1 is always available", e);
+		}
+	}
+
+	//Index lines look like "<app ID> <controller index> <hash>"
+	private void loadIndex(){
+		File file = new File(directory, INDEX_FILE);
+		if(!file.isFile()){
+			return;
+		}
+
+		try(BufferedReader reader = Files.newBufferedReader(file.toPath(), UTF8)){
+			String line;
+			while((line = reader.readLine()) != null){
+				String[] parts = line.trim().split(" ");
+				if(parts.length != 3){
+					continue;
+				}
+
+				try{
+					index.put(key(Integer.parseInt(parts[0]), Integer.parseInt(parts[1])), parts[2]);
+				} catch(NumberFormatException e){
+					//A damaged line, skip it
+				}
+			}
+		} catch(IOException e){
+			Log.warn("Couldn't read the controller config cache index, starting empty", e);
+			index.clear();
+		}
+	}
+
+	private void saveIndex(){
+		StringBuilder builder = new StringBuilder();
+		for(Map.Entry<Long, String> entry : index.entrySet()){
+			long key = entry.getKey();
+			builder.append((int) (key >>> 32)).append(' ').append((int) key).append(' ').append(entry.getValue()).append('\n');
+		}
+
+		writeFile(new File(directory, INDEX_FILE), builder.toString().getBytes(UTF8));
+	}
+
+	//Writes to a temporary file first and moves it into place, so a crash never leaves half a file behind
+	private static void writeFile(File file, byte[] data){
+		File temporary = new File(file.getPath() + ".tmp");
+
+		try{
+			Files.write(temporary.toPath(), data);
+			Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch(IOException e){
+			Log.warn("Couldn't write {} to the controller config cache", file, e);
+			temporary.delete();
+		}
+	}
+}
@@ -0,0 +1,23 @@
+package net;
+
+import org.bouncycastle.crypto.tls.DefaultTlsCipherFactory;
+import org.bouncycastle.crypto.tls.TlsCipherFactory;
+
+/*
+ * Which code does the encryption and MACs for the control connection's TLS records.
+ * BOUNCYCASTLE is BouncyCastle's pure Java engines, which the JIT can't turn into AES-NI instructions.
+ * JCA goes through javax.crypto Cipher and Mac objects, which can. The handshake is the same either way.
+ */
+public enum CryptoBackend {
+	BOUNCYCASTLE,
+	JCA;
+
+	public TlsCipherFactory createCipherFactory(){
+		switch(this){
+			case JCA:
+				return new JcaTlsCipherFactory();
+			default:
+				return new DefaultTlsCipherFactory();
+		}
+	}
+}
@@ -0,0 +1,429 @@
+package net;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.management.JMException;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import net.protobufs.SteammessagesRemoteclientDiscovery.CMsgRemoteClientBroadcastStatus;
+
+/*
+ * Serves discovery's host table as JSON over HTTP on localhost, for other tools that want to know what servers are
+ * around without running discovery themselves (there can only be one per machine, it needs port 27036).
+ *
+ * GET /servers returns {"version": n, "servers": [...]}. The JSON is rendered once each time a server's status actually
+ * changes, not per request, so every poller in between gets the same bytes. Each rendering has an ETag, and a request
+ * with a matching If-None-Match gets a 304 with no body. Adding ?wait=<seconds> (up to 60) to one of those turns it
+ * into a long poll: it's answered as soon as the table changes, or with a 304 when the wait runs out. A waiting request
+ * doesn't hold a thread, it's parked in a list and the whole list is answered together, so thousands of pollers cost a
+ * connection each and not much else.
+ *
+ * Steam IDs are strings in the JSON, they don't fit in a JavaScript number.
+ *
+ * GET /metrics is the Metrics registry in Prometheus text format.
+ */
+public class DiscoveryHttpServer implements DiscoveryListener {
+	private static final int MAX_WAIT = 60;	//Seconds
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final HttpServer server;
+	private final ExecutorService threads;	//Runs the HTTP server and answers parked polls
+	private final ScheduledThreadPoolExecutor timeouts;
+	private final String etagPrefix = "\"" + Long.toString(System.currentTimeMillis(), 36) + "-";	//So a restarted server doesn't hand out old ETags for different tables
+
+	private final HashMap<InetAddress, CMsgRemoteClientBroadcastStatus> statuses = new HashMap<InetAddress, CMsgRemoteClientBroadcastStatus>();	//Only touched by the discovery thread
+	private final ReentrantLock lock = new ReentrantLock();	//Makes publishing a snapshot and parking a poll atomic, so no change is missed
+	private volatile Snapshot snapshot;
+	private Set<Poll> polls = new HashSet<Poll>();	//Guarded by lock, a set so timed out polls come out cheaply
+	private volatile boolean stopped = false;	//Set under lock, so nothing is parked or published after stop() took the polls
+
+	public DiscoveryHttpServer(int port) throws IOException{
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 256);
+		threads = Executors.newFixedThreadPool(4, newThreadFactory("Discovery HTTP "));
+		timeouts = new ScheduledThreadPoolExecutor(1, newThreadFactory("Discovery HTTP timeouts "));
+		timeouts.setRemoveOnCancelPolicy(true);	//Most polls are answered before they time out
+
+		snapshot = render(0);
+		server.setExecutor(threads);
+		server.createContext("/servers", new HttpHandler(){
+			@Override
+			public void handle(HttpExchange exchange) throws IOException{
+				handleServers(exchange);
+			}
+		});
+		server.createContext("/metrics", new HttpHandler(){
+			@Override
+			public void handle(HttpExchange exchange) throws IOException{
+				handleMetrics(exchange);
+			}
+		});
+	}
+
+	private static ThreadFactory newThreadFactory(final String prefix){
+		return new ThreadFactory(){
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable runnable){
+				Thread thread = new Thread(runnable, prefix + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+
+	public void start(){
+		server.start();
+	}
+
+	//Stops accepting requests, answers parked polls with a 304 and waits up to delay seconds for requests in progress
+	public void stop(int delay){
+		Set<Poll> parked;
+		lock.lock();
+		try{
+			stopped = true;
+			parked = polls;
+			polls = new HashSet<Poll>();
+		} finally{
+			lock.unlock();
+		}
+
+		for(Poll poll : parked){
+			poll.answer(null);
+		}
+		server.stop(delay);
+		threads.shutdown();
+		timeouts.shutdownNow();
+	}
+
+	public int getPort(){
+		return server.getAddress().getPort();
+	}
+
+	@Override
+	public void serverStatusReceived(InetAddress server, CMsgRemoteClientBroadcastStatus previous, CMsgRemoteClientBroadcastStatus status){
+		if(stopped || status.equals(statuses.put(server, status))){	//Servers answer every discovery packet, usually with the same thing
+			return;
+		}
+
+		final Snapshot changed = render(snapshot.version + 1);
+		final Set<Poll> waiting;
+		lock.lock();
+		try{
+			if(stopped){
+				return;
+			}
+			snapshot = changed;
+			waiting = polls;
+			polls = new HashSet<Poll>();
+		} finally{
+			lock.unlock();
+		}
+
+		if(!waiting.isEmpty()){	//Not on the discovery thread, it has packets to answer
+			try{
+				threads.execute(new Runnable(){
+					@Override
+					public void run(){
+						for(Poll poll : waiting){
+							poll.answer(changed);
+						}
+					}
+				});
+			} catch(RejectedExecutionException e){	//stop() came after we took these, they're all there is left to answer
+				for(Poll poll : waiting){
+					poll.answer(changed);
+				}
+			}
+		}
+	}
+
+	private void handleServers(HttpExchange exchange) throws IOException{
+		if(!exchange.getRequestMethod().equals("GET") && !exchange.getRequestMethod().equals("HEAD")){
+			exchange.getResponseHeaders().set("Allow", "GET, HEAD");
+			exchange.sendResponseHeaders(405, -1);
+			exchange.close();
+			return;
+		}
+
+		String ifNoneMatch = exchange.getRequestHeaders().getFirst("If-None-Match");
+		int wait = getWait(exchange.getRequestURI().getRawQuery());
+
+		Snapshot current;
+		lock.lock();
+		try{
+			current = snapshot;
+			if(matches(ifNoneMatch, current.etag) && wait > 0 && !stopped){	//Nothing new yet, park it until there is
+				final Poll poll = new Poll(exchange, current);
+				polls.add(poll);
+				poll.timeout = timeouts.schedule(new Runnable(){
+					@Override
+					public void run(){
+						lock.lock();
+						try{
+							polls.remove(poll);
+						} finally{
+							lock.unlock();
+						}
+						poll.answer(null);
+					}
+				}, wait, TimeUnit.SECONDS);
+				return;
+			}
+		} finally{
+			lock.unlock();
+		}
+
+		send(exchange, current, !matches(ifNoneMatch, current.etag));
+	}
+
+	//Prometheus scrapes are every few seconds at most, so this is rendered each time
+	private void handleMetrics(HttpExchange exchange) throws IOException{
+		try{
+			byte[] text = Metrics.getShared().toPrometheus().getBytes(UTF8);
+			exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+			exchange.sendResponseHeaders(200, text.length);
+			exchange.getResponseBody().write(text);
+		} finally{
+			exchange.close();
+		}
+	}
+
+	//The ?wait= parameter in seconds, 0 if there isn't one
+	private static int getWait(String query){
+		if(query == null){
+			return 0;
+		}
+
+		for(String parameter : query.split("&")){
+			if(parameter.startsWith("wait=")){
+				try{
+					return Math.max(0, Math.min(MAX_WAIT, Integer.parseInt(parameter.substring(5))));
+				} catch(NumberFormatException e){
+					return 0;
+				}
+			}
+		}
+		return 0;
+	}
+
+	private static boolean matches(String ifNoneMatch, String etag){
+		if(ifNoneMatch == null){
+			return false;
+		}
+
+		for(String tag : ifNoneMatch.split(",")){
+			tag = tag.trim();
+			if(tag.startsWith("W/")){	//Weak comparison is fine, our tags are only ever for identical bytes
+				tag = tag.substring(2);
+			}
+			if(tag.equals(etag) || tag.equals("*")){
+				return true;
+			}
+		}
+		return false;
+	}
+
+	//Sends the snapshot, or a 304 if the poller already has it. A 304 still needs the ETag and Cache-Control a 200 would have had.
+	private static void send(HttpExchange exchange, Snapshot snapshot, boolean modified) throws IOException{
+		try{
+			exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+			exchange.getResponseHeaders().set("ETag", snapshot.etag);
+			if(!modified){
+				exchange.sendResponseHeaders(304, -1);
+				return;
+			}
+
+			exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+			if(exchange.getRequestMethod().equals("HEAD")){
+				exchange.sendResponseHeaders(200, -1);
+				return;
+			}
+
+			exchange.sendResponseHeaders(200, snapshot.json.length);
+			OutputStream body = exchange.getResponseBody();
+			body.write(snapshot.json);
+		} finally{
+			exchange.close();
+		}
+	}
+
+	//Renders every server's status, sorted by address so the same table always gives the same bytes
+	private Snapshot render(long version){
+		TreeMap<String, CMsgRemoteClientBroadcastStatus> sorted = new TreeMap<String, CMsgRemoteClientBroadcastStatus>();
+		for(Map.Entry<InetAddress, CMsgRemoteClientBroadcastStatus> entry : statuses.entrySet()){
+			sorted.put(entry.getKey().getHostAddress(), entry.getValue());
+		}
+
+		StringBuilder json = new StringBuilder(256 + sorted.size() * 256);
+		json.append("{\"version\":").append(version).append(",\"servers\":[");
+		boolean first = true;
+		for(Map.Entry<String, CMsgRemoteClientBroadcastStatus> entry : sorted.entrySet()){
+			CMsgRemoteClientBroadcastStatus status = entry.getValue();
+			if(!first){
+				json.append(',');
+			}
+			first = false;
+
+			json.append("{\"address\":");
+			appendString(json, entry.getKey());
+			json.append(",\"hostname\":");
+			appendString(json, status.getHostname());
+			json.append(",\"version\":").append(status.getVersion());
+			json.append(",\"minVersion\":").append(status.getMinVersion());
+			json.append(",\"connectPort\":").append(status.getConnectPort());
+			json.append(",\"osType\":").append(status.getOstype());
+			json.append(",\"is64Bit\":").append(status.getIs64Bit());
+			json.append(",\"screenLocked\":").append(status.getScreenLocked());
+			json.append(",\"gamesRunning\":").append(status.getGamesRunning());
+			json.append(",\"users\":[");
+			for(int i = 0; i < status.getUsersCount(); i++){
+				if(i > 0){
+					json.append(',');
+				}
+				json.append("{\"steamID\":\"").append(status.getUsers(i).getSteamid()).append("\",\"authKeyID\":").append(status.getUsers(i).getAuthKeyId() & 0xffffffffL).append('}');
+			}
+			json.append("]}");
+		}
+		json.append("]}");
+
+		return new Snapshot(version, etagPrefix + version + "\"", json.toString().getBytes(UTF8));
+	}
+
+	private static void appendString(StringBuilder json, String value){
+		json.append('"');
+		for(int i = 0; i < value.length(); i++){
+			char c = value.charAt(i);
+			switch(c){
+				case '"':
+					json.append("\\\"");
+					break;
+				case '\\':
+					json.append("\\\\");
+					break;
+				default:
+					if(c < 0x20){	//Control characters, hostnames shouldn't have any but they come off the network
+						json.append(String.format("\\u%04x", (int) c));
+					} else{
+						json.append(c);
+					}
+			}
+		}
+		json.append('"');
+	}
+
+	//One rendering of the table
+	private static class Snapshot {
+		final long version;
+		final String etag;
+		final byte[] json;
+
+		Snapshot(long version, String etag, byte[] json){
+			this.version = version;
+			this.etag = etag;
+			this.json = json;
+		}
+	}
+
+	//A long poll waiting for the table to change
+	private static class Poll {
+		final HttpExchange exchange;
+		final Snapshot parkedOn;	//What the poller already has, a 304 says so
+		final AtomicBoolean answered = new AtomicBoolean();
+		volatile ScheduledFuture<?> timeout;
+
+		Poll(HttpExchange exchange, Snapshot parkedOn){
+			this.exchange = exchange;
+			this.parkedOn = parkedOn;
+		}
+
+		//With the new snapshot, or null for a 304 when it times out. Only the first answer counts.
+		void answer(Snapshot snapshot){
+			if(!answered.compareAndSet(false, true)){
+				return;
+			}
+
+			ScheduledFuture<?> pending = timeout;
+			if(pending != null){
+				pending.cancel(false);
+			}
+
+			try{
+				send(exchange, snapshot == null ? parkedOn : snapshot, snapshot != null);
+			} catch(IOException e){	//The poller gave up and hung up
+				Log.debug("Couldn't answer a poll from {}", exchange.getRemoteAddress(), e);
+			}
+		}
+	}
+
+	public static void main(String[] args){
+		if(args.length != 4){
+			System.out.println("Usage: DiscoveryHttpServer <Steam ID> <Authentication ID> <Local IPv4 address> <HTTP port>");
+			System.exit(1);
+		}
+
+		long steamID = 0;
+		int authID = 0;
+		int port = 0;
+
+		try{
+			steamID = Long.parseLong(args[0]);
+			authID = Integer.parseInt(args[1]);
+			port = Integer.parseInt(args[3]);
+		} catch(NumberFormatException e){
+			System.err.println("Input was incorrectly formatted, exiting");
+			System.exit(1);
+		}
+
+		DiscoveryProtocolHandler dph = new DiscoveryProtocolHandler(steamID, authID, args[2]);
+		dph.addErrorListener(new ErrorListener(){
+			@Override
+			public void errorOccurred(Object source, Throwable error, boolean stopped){
+				if(stopped){	//Nothing left to serve
+					Log.error("Discovery stopped", error);
+					System.exit(1);
+				}
+			}
+		});
+
+		try{
+			DiscoveryHttpServer httpServer = new DiscoveryHttpServer(port);
+			dph.addListener(httpServer);
+			httpServer.start();
+			Log.info("Serving discovery on http://localhost:{}/servers", httpServer.getPort());
+		} catch(IOException e){
+			System.err.println("Couldn't start the HTTP server: " + e.getMessage());
+			System.exit(1);
+		}
+
+		try{
+			Metrics.getShared().registerMBean();	//For JConsole and JMX exporters, alongside /metrics
+		} catch(JMException e){
+			Log.warn("Couldn't register the metrics MBean", e);
+		}
+
+		dph.run();
+	}
+}
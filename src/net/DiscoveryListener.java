@@ -0,0 +1,14 @@
+package net;
+
+import java.net.InetAddress;
+
+import net.protobufs.SteammessagesRemoteclientDiscovery.CMsgRemoteClientBroadcastStatus;
+
+/*
+ * Gets told whenever a DiscoveryProtocolHandler hears a status packet from a streaming server.
+ * Called from the discovery thread, so keep it quick.
+ */
+public interface DiscoveryListener {
+	//previous is the last status from this server, or null if it's new
+	void serverStatusReceived(InetAddress server, CMsgRemoteClientBroadcastStatus previous, CMsgRemoteClientBroadcastStatus status);
+}
@@ -10,8 +10,12 @@ import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 
 import com.google.protobuf.GeneratedMessage;
 
@@ -28,13 +32,33 @@ public class DiscoveryProtocolHandler implements Runnable{
 	private final int authID;
 	private final String localIP;	//IP address of local machine
 
-	private DatagramSocket discoverySocket;	//The socket for discovering Steam streaming servers
+	private volatile DatagramSocket discoverySocket;	//The socket for discovering Steam streaming servers
 	/*
 	 * Keeps a list of all the Steam streaming servers
 	 * To keep the list from quickly growing in size, each Status object needs to identified by a key specific to the server.
 	 * Since the address/port needs to be recorded (remember, the hostname is optional in this protobuf), this value was chosen for the key.
 	 */
 	private HashMap<InetAddress, CMsgRemoteClientBroadcastStatus> serverTable;
+	private static final Log.Sampler BAD_PACKET_SAMPLER = new Log.Sampler(1, TimeUnit.MINUTES);	//Noisy networks send a lot of these
+	private static final StripedCounter PACKETS_RECEIVED = Metrics.getShared().counter("discovery_packets_received_total", "Discovery packets received");
+	private static final StripedCounter PACKETS_SENT = Metrics.getShared().counter("discovery_packets_sent_total", "Discovery and status packets sent");
+	private static final StripedCounter PARSE_FAILURES = Metrics.getShared().counter("discovery_parse_failures_total", "Discovery packets that couldn't be parsed");
+	private static final StripedCounter SERVERS = Metrics.getShared().gauge("discovery_servers", "Servers in the discovery tables");
+	private static final JfrEventType PACKET_EVENT = JfrEventType.create("net.DiscoveryPacket", "Discovery Packet", "Steam Streaming",
+			new String[]{"source", "size", "msgType", "handleDuration"},
+			new Class<?>[]{String.class, int.class, String.class, long.class},
+			"handleDuration");	//msgType is null for packets that were thrown out
+	private static final JfrEventType UPDATE_EVENT = JfrEventType.create("net.DiscoveryServerUpdate", "Discovery Server Update", "Steam Streaming",
+			new String[]{"server", "hostname", "newServer", "changed", "users", "screenLocked", "gamesRunning"},
+			new Class<?>[]{String.class, String.class, boolean.class, boolean.class, int.class, boolean.class, boolean.class});
+	private final CopyOnWriteArrayList<DiscoveryListener> listeners = new CopyOnWriteArrayList<DiscoveryListener>();	//Told about every status packet
+	private final CopyOnWriteArrayList<ErrorListener> errorListeners = new CopyOnWriteArrayList<ErrorListener>();
+	private volatile boolean running = false;
+	private volatile IOException failure = null;
+	
+	//For timing discovery, see markDiscovery
+	private volatile long discoverySentTime = 0;	//System.nanoTime() when the last discovery packet went out
+	private final ConcurrentHashMap<InetAddress, long[]> discoveryTimes = new ConcurrentHashMap<InetAddress, long[]>();	//Per server, when the discovery packet it answered was sent and when its answer arrived
 	
 	public DiscoveryProtocolHandler(long steamID, int authKey, String localIP){
 		this(steamID, authKey, 12345678L, localIP);
@@ -50,17 +74,20 @@ public class DiscoveryProtocolHandler implements Runnable{
 	
 	@Override
 	public void run() {
+		running = true;
+		
 		/*
-		 * Initialized the discovery variable, exits with error if an exception is thrown
+		 * Initialized the discovery variable, stops with an error if an exception is thrown
 		 */
 		try {
 			discoverySocket = new DatagramSocket(DISCOVERY_PORT);
+			discoverySocket.setSoTimeout((int) timeout);	//So discovery packets keep going out on a quiet network, and stop() is noticed
 		} catch (SocketException e) {
-			System.err.println("Error thrown when createing a new UDP socket on port " + DISCOVERY_PORT +
+			Log.error("Error thrown when createing a new UDP socket on port {}" +
 					". Check to see if Steam is running (you can't run the client and Steam at the same time, " +
-					"they use the same port because the client has to mock Steam");
-			e.printStackTrace();
-			System.exit(1);
+					"they use the same port because the client has to mock Steam", DISCOVERY_PORT, e);
+			fail(e);
+			return;
 		}
 		DatagramPacket packet = new DatagramPacket(new byte[8192], 8192);	//Creates a new object to hold a buffer of a received discovery packet
 		long lastTime = System.currentTimeMillis();	//Time when the last discovery packet was sent
@@ -70,53 +97,121 @@ public class DiscoveryProtocolHandler implements Runnable{
 		try {
 			sendDiscoveryPacket();
 		} catch (IOException e) {
-			e.printStackTrace();
+			Log.error("Error thrown when sending discovery packet.", e);
+			notifyError(e, false);
 		}
 		
-		while(true) {
+		while(running) {
 			try {
 				if(System.currentTimeMillis() - lastTime > timeout){	//This is done to prevent flooding the netwok
 					sendDiscoveryPacket();	//Constantly send a discovery packet to make sure other machines send them back
-					System.out.println("Discovery packet sent");
+					Log.debug("Discovery packet sent");	//Every ten seconds forever, so only worth seeing when debugging
 					lastTime = System.currentTimeMillis();	//Update the last packet sent time
 				}
 			} catch (IOException e1) {
-				System.err.println("Error thrown when sending discovery packet.");
-				e1.printStackTrace();
-				System.exit(1);
+				if(!running){	//stop() closed the socket
+					break;
+				}
+				Log.error("Error thrown when sending discovery packet.", e1);
+				fail(e1);
+				break;
 			}
 			try {
+				packet.setLength(packet.getData().length);	//receive() shrinks it to the last packet's size
 				discoverySocket.receive(packet);
+			} catch (SocketTimeoutException e) {
+				continue;	//Nothing heard, time to send another discovery packet
 			} catch (IOException e) {
-				System.err.println("Error thrown when receiving packet");
-				e.printStackTrace();
-				System.exit(1);
+				if(!running){
+					break;
+				}
+				Log.error("Error thrown when receiving packet", e);
+				fail(e);
+				break;
 			}
 			try {
 				handlePacket(packet);
-			} catch (IOException e) {
-				System.err.println("Error thrown when handling a packet");
-				e.printStackTrace();
-				System.exit(1);
+			} catch (IOException e) {	//One broken packet doesn't mean the next one will be
+				PARSE_FAILURES.increment();
+				Log.error("Error thrown when handling a packet", e);
+				notifyError(e, false);
 			}
 		}
+		
+		running = false;
+		discoverySocket.close();
+	}
+	
+	//Stops discovery. Closing the socket is what wakes the thread up.
+	public void stop(){
+		running = false;
+		
+		DatagramSocket socket = discoverySocket;
+		if(socket != null){
+			socket.close();
+		}
+	}
+	
+	public boolean isRunning(){
+		return running;
+	}
+	
+	//Why discovery stopped, if it stopped because of an error
+	public IOException getFailure(){
+		return failure;
+	}
+	
+	private void fail(IOException e){
+		failure = e;
+		running = false;
+		if(discoverySocket != null){
+			discoverySocket.close();
+		}
+		notifyError(e, true);
+	}
+	
+	private void notifyError(IOException e, boolean stopped){
+		for(ErrorListener listener : errorListeners){
+			listener.errorOccurred(this, e, stopped);
+		}
 	}
 	
-	private void handlePacket(DatagramPacket packet) throws IOException   {
+	void handlePacket(DatagramPacket packet) throws IOException   {	//Package private for DiscoveryReplayBenchmark
+		PACKETS_RECEIVED.increment();
+		if(!PACKET_EVENT.isEnabled()){
+			readPacket(packet);
+			return;
+		}
+		
+		long start = System.nanoTime();
+		String msgType = null;
+		try{
+			msgType = readPacket(packet);
+		} finally{
+			PACKET_EVENT.commit(packet.getAddress().getHostAddress(), packet.getLength(), msgType, System.nanoTime() - start);
+		}
+	}
+	
+	//Returns the packet's message type, or null if it was thrown out
+	private String readPacket(DatagramPacket packet) throws IOException   {
 		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(packet.getData()));	//Turn the packet into a DataInputStream
 		
 		byte[] preheaderBytes = new byte[PACKET_PREHEADER.length];
 		dis.read(preheaderBytes);	//Reads off the packet preheader into the preheaderByte array. The preheader is at the beginning of all discovery packets.
 		
 		if (!Arrays.equals(PACKET_PREHEADER, preheaderBytes)) {	//If the read bytes aren't equal the the preheader, report an error and return null
-			System.err.println("Captured packet does not contain the correct preheader bytes!");
-			return;
+			PARSE_FAILURES.increment();
+			if(BAD_PACKET_SAMPLER.allow()){
+				Log.warn("Captured packet from {} does not contain the correct preheader bytes! ({} more since the last one)", packet.getAddress(), BAD_PACKET_SAMPLER.takeSuppressed());
+			}
+			return null;
 		}
 		
 		int headerLength = Integer.reverseBytes(dis.readInt());	//The first byte of the header is the length of the packet's header in little endian format
 
 		if(headerLength < 0){	//Does a sanity check to see if the length is less that 0, if it is
-			return;	//Exit the function
+			PARSE_FAILURES.increment();
+			return null;	//Exit the function
 		}
 		
 		byte[] headerBytes = new byte[headerLength];
@@ -153,7 +248,24 @@ public class DiscoveryProtocolHandler implements Runnable{
 			case k_ERemoteClientBroadcastMsgStatus:	//This is sent when a discovery packet is received
 				body = SteammessagesRemoteclientDiscovery.CMsgRemoteClientBroadcastStatus.parseFrom(bodyBytes);
 				if(!packet.getAddress().equals(new InetSocketAddress(localIP, 27036).getAddress())){	//If the packet didn't come from this client, then
-					serverTable.put(packet.getAddress(), (CMsgRemoteClientBroadcastStatus) body);	//Puts the server entry into the list
+					long[] times = discoveryTimes.get(packet.getAddress());
+					if(times == null || times[0] != discoverySentTime){	//The first answer to our latest discovery packet
+						discoveryTimes.put(packet.getAddress(), new long[]{discoverySentTime, System.nanoTime()});
+					}
+					
+					CMsgRemoteClientBroadcastStatus previous = serverTable.put(packet.getAddress(), (CMsgRemoteClientBroadcastStatus) body);	//Puts the server entry into the list
+					if(previous == null){
+						SERVERS.increment();
+					}
+					if(UPDATE_EVENT.isEnabled()){
+						CMsgRemoteClientBroadcastStatus status = (CMsgRemoteClientBroadcastStatus) body;
+						UPDATE_EVENT.commit(packet.getAddress().getHostAddress(), status.getHostname(), previous == null, !status.equals(previous),
+								status.getUsersCount(), status.getScreenLocked(), status.getGamesRunning());
+					}
+					
+					for(DiscoveryListener listener : listeners){
+						listener.serverStatusReceived(packet.getAddress(), previous, (CMsgRemoteClientBroadcastStatus) body);
+					}
 				}
 				break;
 			case k_ERemoteClientBroadcastMsgOffline:
@@ -184,6 +296,8 @@ public class DiscoveryProtocolHandler implements Runnable{
 				body = SteammessagesRemoteclientDiscovery.CMsgRemoteDeviceStreamingCancelRequest.parseFrom(bodyBytes);
 				break;
 		}		
+		
+		return header.getMsgType().name();
 	}
 	
 	private void sendDiscoveryPacket() throws IOException {
@@ -239,6 +353,8 @@ public class DiscoveryProtocolHandler implements Runnable{
 		DatagramPacket packet = new DatagramPacket(buf, buf.length, new InetSocketAddress("255.255.255.255", DISCOVERY_PORT));	//Create a new UDP packet from the data, set it to transmit to the multicast address on port 27036
 		
 		discoverySocket.send(packet);	//Send the packet through the socket's object.
+		discoverySentTime = System.nanoTime();
+		PACKETS_SENT.increment();
 	}
 	
 	private void sendStatusPacket(InetAddress address) throws IOException {
@@ -331,10 +447,45 @@ public class DiscoveryProtocolHandler implements Runnable{
 		DatagramPacket packet = new DatagramPacket(buf, buf.length, new InetSocketAddress(address, 27036));	//Creates the packet, marks it to be sent to the discovery packet sender
 		
 		discoverySocket.send(packet);	//Send the packet through the socket's object.	
+		PACKETS_SENT.increment();
 	}
 	
 	public HashMap<InetAddress, CMsgRemoteClientBroadcastStatus> getServerTable(){
 		return serverTable;
 	}
+	
+	//Fills in the discovery stage of the timeline: how long the server took to answer the discovery packet it last answered
+	public boolean markDiscovery(LaunchTimeline timeline){
+		long[] times = discoveryTimes.get(timeline.getServer());
+		if(times == null || times[0] == 0){	//Never answered, or answered before we sent anything
+			return false;
+		}
+		
+		timeline.mark(LaunchStats.Stage.DISCOVERY, times[0], times[1]);
+		return true;
+	}
+
+	//Nanoseconds the server took to answer the discovery packet it last answered, or -1 if it hasn't answered one of ours
+	public long getDiscoveryRoundTrip(InetAddress server){
+		long[] times = discoveryTimes.get(server);
+		return (times == null || times[0] == 0 ? -1 : times[1] - times[0]);
+	}
+	
+	public void addListener(DiscoveryListener listener){
+		listeners.add(listener);
+	}
+	
+	public void removeListener(DiscoveryListener listener){
+		listeners.remove(listener);
+	}
+	
+	//Told about errors, including the one that stops discovery if it can't go on
+	public void addErrorListener(ErrorListener listener){
+		errorListeners.add(listener);
+	}
+	
+	public void removeErrorListener(ErrorListener listener){
+		errorListeners.remove(listener);
+	}
 
 }
@@ -0,0 +1,10 @@
+package net;
+
+/*
+ * Gets told about errors that used to end with System.exit, so whatever is hosting the client decides what happens.
+ * Called on the thread that hit the error.
+ */
+public interface ErrorListener {
+	//source is the handler or client the error happened in. stopped is true if it gave up because of it.
+	void errorOccurred(Object source, Throwable error, boolean stopped);
+}
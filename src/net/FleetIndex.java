@@ -0,0 +1,251 @@
+package net;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import net.protobufs.SteammessagesRemoteclient.CMsgRemoteClientAppStatus.AppStatus;
+import net.protobufs.SteammessagesRemoteclientDiscovery.CMsgRemoteClientBroadcastStatus;
+
+/*
+ * An inverted index over a whole room of streaming servers: for each app ID, which servers have it installed and which
+ * have it ready to launch, plus which servers are locked or busy according to their discovery broadcasts. It answers
+ * questions like "which idle server has app 570 installed and fully updated" without talking to any of them.
+ *
+ * Every server gets a small number, and each set of servers is a BitSet of those numbers, so a query is a handful of
+ * ANDs over a few longs. It's kept up to date incrementally by listening to each server's AppCatalog and to discovery.
+ */
+public class FleetIndex implements AppCatalogListener, DiscoveryListener {
+	private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();	//Updates come from every control thread, queries from anywhere
+
+	private final HashMap<InetAddress, Integer> serverNumbers = new HashMap<InetAddress, Integer>();
+	private final ArrayList<InetAddress> servers = new ArrayList<InetAddress>();	//Indexed by server number
+	private final BitSet freeNumbers = new BitSet();	//Numbers of removed servers, reused before making new ones
+
+	private final IntObjectMap<BitSet> installed = new IntObjectMap<BitSet>(1024);	//App ID to servers that have it on disk
+	private final IntObjectMap<BitSet> ready = new IntObjectMap<BitSet>(1024);	//App ID to servers that can launch it right now
+
+	private final BitSet discovered = new BitSet();	//Servers we have a broadcast status for
+	private final BitSet screenLocked = new BitSet();
+	private final BitSet gamesRunning = new BitSet();
+
+	//Indexes everything already in the catalog and follows it from now on
+	public void track(AppCatalog catalog){
+		catalog.addListener(this, true);	//Replayed under the catalog's lock, so a newer update can't be overwritten by the old status
+	}
+
+	public void untrack(AppCatalog catalog){
+		catalog.removeListener(this);
+		removeServer(catalog.getServer());
+	}
+
+	//Follows a discovery handler's status packets
+	public void track(DiscoveryProtocolHandler discovery){
+		discovery.addListener(this);
+	}
+
+	@Override
+	public void appStatusChanged(AppCatalog catalog, AppStatus previous, AppStatus update, AppStatus current){
+		if(previous != null && previous.getAppState() == current.getAppState()){	//Download progress and the like don't move the app in the index
+			return;
+		}
+
+		int appID = current.getAppId();
+		int state = current.getAppState();
+
+		lock.writeLock().lock();
+		try{
+			int number = getNumber(catalog.getServer());
+			setMember(installed, appID, number, AppState.isInstalled(state));
+			setMember(ready, appID, number, AppState.isReady(state));
+		} finally{
+			lock.writeLock().unlock();
+		}
+	}
+
+	@Override
+	public void serverStatusReceived(InetAddress server, CMsgRemoteClientBroadcastStatus previous, CMsgRemoteClientBroadcastStatus status){
+		if(previous != null && previous.getScreenLocked() == status.getScreenLocked() && previous.getGamesRunning() == status.getGamesRunning()){
+			return;	//Servers broadcast all the time, most of them change nothing we care about
+		}
+
+		lock.writeLock().lock();
+		try{
+			int number = getNumber(server);
+			discovered.set(number);
+			screenLocked.set(number, status.getScreenLocked());
+			gamesRunning.set(number, status.getGamesRunning());
+		} finally{
+			lock.writeLock().unlock();
+		}
+	}
+
+	//Forgets everything about a server, for when it's gone for good
+	public void removeServer(InetAddress server){
+		lock.writeLock().lock();
+		try{
+			Integer number = serverNumbers.remove(server);
+			if(number == null){
+				return;
+			}
+
+			clearMember(installed, number);
+			clearMember(ready, number);
+			discovered.clear(number);
+			screenLocked.clear(number);
+			gamesRunning.clear(number);
+
+			servers.set(number, null);
+			freeNumbers.set(number);
+		} finally{
+			lock.writeLock().unlock();
+		}
+	}
+
+	//The servers matching the query, in no particular order
+	public List<InetAddress> find(Query query){
+		lock.readLock().lock();
+		try{
+			BitSet matches = match(query);
+			List<InetAddress> result = new ArrayList<InetAddress>(matches.cardinality());
+
+			for(int number = matches.nextSetBit(0); number >= 0; number = matches.nextSetBit(number + 1)){
+				result.add(servers.get(number));
+			}
+
+			return result;
+		} finally{
+			lock.readLock().unlock();
+		}
+	}
+
+	public int count(Query query){
+		lock.readLock().lock();
+		try{
+			return match(query).cardinality();
+		} finally{
+			lock.readLock().unlock();
+		}
+	}
+
+	//Any one server matching the query, or null. Cheaper than find() when you just need somewhere to launch.
+	public InetAddress findAny(Query query){
+		lock.readLock().lock();
+		try{
+			BitSet matches = match(query);
+			int number = matches.nextSetBit(0);
+			return number < 0 ? null : servers.get(number);
+		} finally{
+			lock.readLock().unlock();
+		}
+	}
+
+	public int getServerCount(){
+		lock.readLock().lock();
+		try{
+			return serverNumbers.size();
+		} finally{
+			lock.readLock().unlock();
+		}
+	}
+
+	//Must hold the read lock
+	private BitSet match(Query query){
+		BitSet apps = (query.requireReady ? ready : installed).get(query.appID);
+		BitSet matches = (apps == null ? new BitSet() : (BitSet) apps.clone());
+
+		if(query.requireUnlocked || query.requireNoGamesRunning){	//Servers we haven't heard a broadcast from can't be known to be idle
+			matches.and(discovered);
+		}
+		if(query.requireUnlocked){
+			matches.andNot(screenLocked);
+		}
+		if(query.requireNoGamesRunning){
+			matches.andNot(gamesRunning);
+		}
+
+		return matches;
+	}
+
+	//Must hold the write lock
+	private int getNumber(InetAddress server){
+		Integer number = serverNumbers.get(server);
+		if(number != null){
+			return number;
+		}
+
+		int free = freeNumbers.nextSetBit(0);
+		if(free >= 0){
+			freeNumbers.clear(free);
+			servers.set(free, server);
+		} else{
+			free = servers.size();
+			servers.add(server);
+		}
+
+		serverNumbers.put(server, free);
+		return free;
+	}
+
+	private static void setMember(IntObjectMap<BitSet> index, int appID, int number, boolean member){
+		BitSet set = index.get(appID);
+
+		if(member){
+			if(set == null){
+				set = new BitSet();
+				index.put(appID, set);
+			}
+			set.set(number);
+		} else if(set != null){
+			set.clear(number);
+			if(set.isEmpty()){
+				index.remove(appID);
+			}
+		}
+	}
+
+	private static void clearMember(IntObjectMap<BitSet> index, int number){
+		for(int appID : index.keys()){
+			setMember(index, appID, number, false);
+		}
+	}
+
+	/*
+	 * What to look for. Start with an app ID and add requirements, for example
+	 * new FleetIndex.Query(570).ready().unlocked().noGamesRunning() for an idle server that can launch app 570 right now.
+	 */
+	public static class Query {
+		private final int appID;
+		private boolean requireReady = false;
+		private boolean requireUnlocked = false;
+		private boolean requireNoGamesRunning = false;
+
+		public Query(int appID){
+			this.appID = appID;
+		}
+
+		//Fully installed and updated, not just installed
+		public Query ready(){
+			requireReady = true;
+			return this;
+		}
+
+		public Query unlocked(){
+			requireUnlocked = true;
+			return this;
+		}
+
+		public Query noGamesRunning(){
+			requireNoGamesRunning = true;
+			return this;
+		}
+
+		//Shorthand for ready().unlocked().noGamesRunning()
+		public Query idleAndReady(){
+			return ready().unlocked().noGamesRunning();
+		}
+	}
+}
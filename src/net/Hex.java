@@ -0,0 +1,43 @@
+package net;
+
+/*
+ * Hex strings to bytes and back, for AuthData (the PSK) and config hashes. javax.xml.bind.DatatypeConverter did this
+ * before, but it was removed in Java 11, and VIRTUAL thread mode needs Java 21.
+ */
+final class Hex {
+	private static final char[] DIGITS = "0123456789abcdef".toCharArray();
+
+	private Hex(){
+	}
+
+	//Either case works. Throws IllegalArgumentException if it isn't an even number of hex digits.
+	static byte[] decode(String hex){
+		if(hex.length() % 2 != 0){
+			throw new IllegalArgumentException("Odd number of hex digits: " + hex.length());
+		}
+
+		byte[] bytes = new byte[hex.length() / 2];
+		for(int i = 0; i < bytes.length; i++){
+			bytes[i] = (byte) (digit(hex.charAt(i * 2)) << 4 | digit(hex.charAt(i * 2 + 1)));
+		}
+		return bytes;
+	}
+
+	//Lower case
+	static String encode(byte[] bytes){
+		char[] hex = new char[bytes.length * 2];
+		for(int i = 0; i < bytes.length; i++){
+			hex[i * 2] = DIGITS[(bytes[i] >> 4) & 0xf];
+			hex[i * 2 + 1] = DIGITS[bytes[i] & 0xf];
+		}
+		return new String(hex);
+	}
+
+	private static int digit(char c){
+		int digit = Character.digit(c, 16);
+		if(digit < 0){
+			throw new IllegalArgumentException("Not a hex digit: " + c);
+		}
+		return digit;
+	}
+}
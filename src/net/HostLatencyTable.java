@@ -0,0 +1,88 @@
+package net;
+
+import java.net.InetAddress;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/*
+ * Round trip times for every streaming server we've pinged, one LatencyHistogram (in nanoseconds) per server.
+ * Filled in by PingSchedulers, read by whatever needs to pick a server.
+ */
+public class HostLatencyTable {
+	private final ConcurrentMap<InetAddress, LatencyHistogram> histograms;
+
+	public HostLatencyTable(){
+		this.histograms = new ConcurrentHashMap<InetAddress, LatencyHistogram>();
+	}
+
+	//Returns the server's histogram, creating an empty one the first time
+	public LatencyHistogram getHistogram(InetAddress server){
+		LatencyHistogram histogram = histograms.get(server);
+
+		if(histogram == null){
+			LatencyHistogram created = new LatencyHistogram();
+			histogram = histograms.putIfAbsent(server, created);
+			if(histogram == null){
+				histogram = created;
+			}
+		}
+
+		return histogram;
+	}
+
+	public void record(InetAddress server, long roundTripNanos){
+		getHistogram(server).record(roundTripNanos);
+	}
+
+	public long getMedian(InetAddress server){
+		LatencyHistogram histogram = histograms.get(server);
+		return histogram == null ? -1 : histogram.getMedian();
+	}
+
+	public long getPercentile(InetAddress server, double percentile){
+		LatencyHistogram histogram = histograms.get(server);
+		return histogram == null ? -1 : histogram.getPercentile(percentile);
+	}
+
+	public long getMax(InetAddress server){
+		LatencyHistogram histogram = histograms.get(server);
+		return histogram == null ? -1 : histogram.getMax();
+	}
+
+	/*
+	 * The server with the lowest median round trip time, ties going to the lower 99th percentile.
+	 * Only servers that answered at least minSamples pings count. Returns null if there aren't any.
+	 */
+	public InetAddress getLowestLatencyServer(long minSamples){
+		InetAddress best = null;
+		long bestMedian = Long.MAX_VALUE;
+		long bestTail = Long.MAX_VALUE;
+
+		for(Map.Entry<InetAddress, LatencyHistogram> entry : histograms.entrySet()){
+			LatencyHistogram histogram = entry.getValue();
+			if(histogram.getCount() < minSamples || histogram.getCount() == 0){
+				continue;
+			}
+
+			long median = histogram.getMedian();
+			long tail = histogram.getPercentile(99);
+			if(median < bestMedian || (median == bestMedian && tail < bestTail)){
+				best = entry.getKey();
+				bestMedian = median;
+				bestTail = tail;
+			}
+		}
+
+		return best;
+	}
+
+	public Set<InetAddress> getServers(){
+		return histograms.keySet();
+	}
+
+	public void remove(InetAddress server){
+		histograms.remove(server);
+	}
+}
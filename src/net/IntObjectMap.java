@@ -0,0 +1,184 @@
+package net;
+
+import java.util.Arrays;
+
+/*
+ * A hash map from int keys to objects that doesn't box the keys. Open addressing with linear probing, so a lookup
+ * is a couple of array reads instead of an Integer allocation and a chain of HashMap nodes.
+ *
+ * Not thread safe. Iterate with getCapacity()/getKeyAt()/getValueAt(), skipping slots where getValueAt() is null.
+ */
+public class IntObjectMap<V> {
+	private static final int MIN_CAPACITY = 16;	//Always a power of two
+
+	private int[] keys;
+	private Object[] values;	//A null value marks an empty slot
+	private int size = 0;
+
+	public IntObjectMap(){
+		this(MIN_CAPACITY);
+	}
+
+	public IntObjectMap(int expectedSize){
+		int capacity = MIN_CAPACITY;
+		while(capacity < expectedSize * 2){	//Keep the table at most half full
+			capacity <<= 1;
+		}
+
+		keys = new int[capacity];
+		values = new Object[capacity];
+	}
+
+	public IntObjectMap(IntObjectMap<V> other){
+		keys = other.keys.clone();
+		values = other.values.clone();
+		size = other.size;
+	}
+
+	@SuppressWarnings("unchecked")
+	public V get(int key){
+		int mask = keys.length - 1;
+
+		for(int slot = mix(key) & mask; values[slot] != null; slot = (slot + 1) & mask){
+			if(keys[slot] == key){
+				return (V) values[slot];
+			}
+		}
+
+		return null;
+	}
+
+	public boolean containsKey(int key){
+		return get(key) != null;
+	}
+
+	//Returns the value that was there before, or null. Null values aren't allowed, use remove instead.
+	@SuppressWarnings("unchecked")
+	public V put(int key, V value){
+		if(value == null){
+			throw new NullPointerException("IntObjectMap can't hold null values");
+		}
+
+		int mask = keys.length - 1;
+		int slot = mix(key) & mask;
+
+		for(; values[slot] != null; slot = (slot + 1) & mask){
+			if(keys[slot] == key){
+				V previous = (V) values[slot];
+				values[slot] = value;
+				return previous;
+			}
+		}
+
+		keys[slot] = key;
+		values[slot] = value;
+		size++;
+
+		if(size * 2 > keys.length){
+			resize(keys.length * 2);
+		}
+
+		return null;
+	}
+
+	@SuppressWarnings("unchecked")
+	public V remove(int key){
+		int mask = keys.length - 1;
+		int slot = mix(key) & mask;
+
+		for(; values[slot] != null; slot = (slot + 1) & mask){
+			if(keys[slot] == key){
+				V previous = (V) values[slot];
+				values[slot] = null;
+				size--;
+				closeGap(slot);
+				return previous;
+			}
+		}
+
+		return null;
+	}
+
+	public void clear(){
+		Arrays.fill(values, null);
+		size = 0;
+	}
+
+	public int size(){
+		return size;
+	}
+
+	public boolean isEmpty(){
+		return size == 0;
+	}
+
+	public int getCapacity(){
+		return keys.length;
+	}
+
+	public int getKeyAt(int slot){
+		return keys[slot];
+	}
+
+	@SuppressWarnings("unchecked")
+	public V getValueAt(int slot){
+		return (V) values[slot];
+	}
+
+	//The keys in no particular order
+	public int[] keys(){
+		int[] result = new int[size];
+		int count = 0;
+
+		for(int slot = 0; slot < keys.length; slot++){
+			if(values[slot] != null){
+				result[count++] = keys[slot];
+			}
+		}
+
+		return result;
+	}
+
+	//After a removal, moves later entries of the probe run back so lookups don't stop early at the hole
+	private void closeGap(int gap){
+		int mask = keys.length - 1;
+
+		for(int slot = (gap + 1) & mask; values[slot] != null; slot = (slot + 1) & mask){
+			int home = mix(keys[slot]) & mask;
+
+			//The entry can fill the gap if its home slot isn't in the (cyclic) range between the gap and where it sits now
+			if(((slot - home) & mask) >= ((slot - gap) & mask)){
+				keys[gap] = keys[slot];
+				values[gap] = values[slot];
+				values[slot] = null;
+				gap = slot;
+			}
+		}
+	}
+
+	private void resize(int capacity){
+		int[] oldKeys = keys;
+		Object[] oldValues = values;
+
+		keys = new int[capacity];
+		values = new Object[capacity];
+		int mask = capacity - 1;
+
+		for(int i = 0; i < oldKeys.length; i++){
+			if(oldValues[i] != null){
+				int slot = mix(oldKeys[i]) & mask;
+				while(values[slot] != null){
+					slot = (slot + 1) & mask;
+				}
+				keys[slot] = oldKeys[i];
+				values[slot] = oldValues[i];
+			}
+		}
+	}
+
+	//App IDs are mostly multiples of 10, so spread the bits out before masking
+	private static int mix(int key){
+		int hash = key * 0x9e3779b9;
+		return hash ^ (hash >>> 16);
+	}
+}
@@ -0,0 +1,132 @@
+package net;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.bouncycastle.crypto.tls.AlertDescription;
+import org.bouncycastle.crypto.tls.TlsCipher;
+import org.bouncycastle.crypto.tls.TlsContext;
+import org.bouncycastle.crypto.tls.TlsFatalAlert;
+import org.bouncycastle.crypto.tls.TlsUtils;
+
+/*
+ * AES-GCM records done through a JCA Cipher, the JCA counterpart of BouncyCastle's TlsAEADCipher.
+ * The nonce is the 4 byte implicit part from the key block followed by the record's sequence number, which is also
+ * sent in the clear in front of the ciphertext (RFC 5288).
+ */
+class JcaTlsAEADCipher implements TlsCipher {
+	private static final int IMPLICIT_NONCE_LENGTH = 4;
+	private static final int EXPLICIT_NONCE_LENGTH = 8;
+	private static final int TAG_LENGTH = 16;
+	private static final int HEADER_LENGTH = 13;	//The additional data: sequence number, content type, version and plaintext length
+
+	private final TlsContext context;
+	private final Cipher encryptCipher;
+	private final Cipher decryptCipher;
+	private final SecretKeySpec encryptKey;
+	private final SecretKeySpec decryptKey;
+
+	//Reused for every record. Reads and writes can happen on different threads, so each side gets its own.
+	private final byte[] encryptNonce = new byte[IMPLICIT_NONCE_LENGTH + EXPLICIT_NONCE_LENGTH];
+	private final byte[] decryptNonce = new byte[IMPLICIT_NONCE_LENGTH + EXPLICIT_NONCE_LENGTH];
+	private final byte[] writeHeader = new byte[HEADER_LENGTH];
+	private final byte[] readHeader = new byte[HEADER_LENGTH];
+
+	JcaTlsAEADCipher(TlsContext context, int keySize) throws IOException{
+		this.context = context;
+
+		byte[] keyBlock = JcaTlsCipherFactory.calculateKeyBlock(context, (2 * keySize) + (2 * IMPLICIT_NONCE_LENGTH));
+
+		SecretKeySpec clientKey = new SecretKeySpec(keyBlock, 0, keySize, "AES");
+		SecretKeySpec serverKey = new SecretKeySpec(keyBlock, keySize, keySize, "AES");
+		int clientNonceOffset = 2 * keySize;
+		int serverNonceOffset = clientNonceOffset + IMPLICIT_NONCE_LENGTH;
+
+		boolean isServer = context.isServer();
+		encryptKey = (isServer ? serverKey : clientKey);
+		decryptKey = (isServer ? clientKey : serverKey);
+		System.arraycopy(keyBlock, isServer ? serverNonceOffset : clientNonceOffset, encryptNonce, 0, IMPLICIT_NONCE_LENGTH);
+		System.arraycopy(keyBlock, isServer ? clientNonceOffset : serverNonceOffset, decryptNonce, 0, IMPLICIT_NONCE_LENGTH);
+
+		try{
+			encryptCipher = Cipher.getInstance("AES/GCM/NoPadding");
+			decryptCipher = Cipher.getInstance("AES/GCM/NoPadding");
+		} catch(GeneralSecurityException e){
+			throw new TlsFatalAlert(AlertDescription.internal_error, e);
+		}
+	}
+
+	//True if this JVM's JCA can do AES-GCM at all (Java 7's SunJCE can't)
+	static boolean isAvailable(){
+		try{
+			Cipher.getInstance("AES/GCM/NoPadding");
+			return true;
+		} catch(GeneralSecurityException e){
+			return false;
+		}
+	}
+
+	@Override
+	public int getPlaintextLimit(int ciphertextLimit){
+		return ciphertextLimit - TAG_LENGTH - EXPLICIT_NONCE_LENGTH;
+	}
+
+	@Override
+	public byte[] encodePlaintext(long seqNo, short type, byte[] plaintext, int offset, int len) throws IOException{
+		byte[] output = new byte[EXPLICIT_NONCE_LENGTH + len + TAG_LENGTH];
+
+		TlsUtils.writeUint64(seqNo, encryptNonce, IMPLICIT_NONCE_LENGTH);	//The sequence number never repeats, so neither does the nonce
+		System.arraycopy(encryptNonce, IMPLICIT_NONCE_LENGTH, output, 0, EXPLICIT_NONCE_LENGTH);
+
+		writeHeader(writeHeader, seqNo, type, len);
+
+		try{
+			encryptCipher.init(Cipher.ENCRYPT_MODE, encryptKey, new GCMParameterSpec(TAG_LENGTH * 8, encryptNonce));
+			encryptCipher.updateAAD(writeHeader);
+			encryptCipher.doFinal(plaintext, offset, len, output, EXPLICIT_NONCE_LENGTH);
+		} catch(GeneralSecurityException e){
+			throw new TlsFatalAlert(AlertDescription.internal_error, e);
+		}
+
+		return output;
+	}
+
+	@Override
+	public byte[] decodeCiphertext(long seqNo, short type, byte[] ciphertext, int offset, int len) throws IOException{
+		int plaintextLength = len - EXPLICIT_NONCE_LENGTH - TAG_LENGTH;
+
+		if(plaintextLength < 0){
+			throw new TlsFatalAlert(AlertDescription.decode_error);
+		}
+
+		System.arraycopy(ciphertext, offset, decryptNonce, IMPLICIT_NONCE_LENGTH, EXPLICIT_NONCE_LENGTH);
+		writeHeader(readHeader, seqNo, type, plaintextLength);
+
+		byte[] output = new byte[plaintextLength];
+
+		try{
+			decryptCipher.init(Cipher.DECRYPT_MODE, decryptKey, new GCMParameterSpec(TAG_LENGTH * 8, decryptNonce));
+			decryptCipher.updateAAD(readHeader);
+			decryptCipher.doFinal(ciphertext, offset + EXPLICIT_NONCE_LENGTH, len - EXPLICIT_NONCE_LENGTH, output, 0);
+		} catch(AEADBadTagException e){
+			throw new TlsFatalAlert(AlertDescription.bad_record_mac, e);
+		} catch(GeneralSecurityException e){
+			throw new TlsFatalAlert(AlertDescription.internal_error, e);
+		}
+
+		return output;
+	}
+
+	private void writeHeader(byte[] header, long seqNo, short type, int length){
+		TlsUtils.writeUint64(seqNo, header, 0);
+		header[8] = (byte) type;
+		TlsUtils.writeVersion(context.getServerVersion(), header, 9);
+		header[11] = (byte) (length >>> 8);
+		header[12] = (byte) length;
+	}
+}
@@ -0,0 +1,229 @@
+package net;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.bouncycastle.crypto.tls.AlertDescription;
+import org.bouncycastle.crypto.tls.TlsCipher;
+import org.bouncycastle.crypto.tls.TlsContext;
+import org.bouncycastle.crypto.tls.TlsFatalAlert;
+import org.bouncycastle.crypto.tls.TlsUtils;
+
+/*
+ * AES-CBC with an HMAC, done through JCA Cipher and Mac objects so the JVM's AES and SHA intrinsics get used.
+ * This does the same thing as BouncyCastle's TlsBlockCipher (MAC-then-encrypt, explicit IVs from TLS 1.1 on), minus
+ * encrypt_then_mac and truncated HMAC, which StreamingPSKTlsClient never offers.
+ */
+class JcaTlsBlockCipher implements TlsCipher {
+	private static final int BLOCK_SIZE = 16;
+	private static final int HEADER_LENGTH = 13;	//Sequence number, content type, version and length, the bit of the record header the MAC covers
+
+	private final TlsContext context;
+	private final boolean useExplicitIV;
+	private final SecureRandom random;
+
+	private final Cipher encryptCipher;
+	private final Cipher decryptCipher;
+	private final SecretKeySpec encryptKey;
+	private final SecretKeySpec decryptKey;
+	private final Mac writeMac;
+	private final Mac readMac;
+	private final int macSize;
+	private final int digestBlockSize;	//Used to keep the MAC check constant time, see calculateMacConstantTime
+	private final int digestOverhead;
+
+	//Reused for every record. Reads and writes can happen on different threads, so each side gets its own.
+	private final byte[] writeHeader = new byte[HEADER_LENGTH];
+	private final byte[] readHeader = new byte[HEADER_LENGTH];
+	private final byte[] writeIV = new byte[BLOCK_SIZE];
+	private final byte[] dummyBlock;
+
+	JcaTlsBlockCipher(TlsContext context, int keySize, String macAlgorithm, int macSize, int digestBlockSize) throws IOException{
+		this.context = context;
+		this.useExplicitIV = TlsUtils.isTLSv11(context);
+		this.random = context.getSecureRandom();
+		this.macSize = macSize;
+		this.digestBlockSize = digestBlockSize;
+		this.digestOverhead = (digestBlockSize == 128 ? 16 : 8);	//SHA-384 pads to 128 byte blocks with a 16 byte length, SHA-1 and SHA-256 to 64 with 8
+		this.dummyBlock = new byte[digestBlockSize];
+
+		//TLS 1.0 takes the first IVs from the key block, later versions send one with every record
+		int keyBlockSize = (2 * macSize) + (2 * keySize) + (useExplicitIV ? 0 : 2 * BLOCK_SIZE);
+		byte[] keyBlock = JcaTlsCipherFactory.calculateKeyBlock(context, keyBlockSize);
+
+		int offset = 0;
+		SecretKeySpec clientMacKey = new SecretKeySpec(keyBlock, offset, macSize, macAlgorithm);
+		offset += macSize;
+		SecretKeySpec serverMacKey = new SecretKeySpec(keyBlock, offset, macSize, macAlgorithm);
+		offset += macSize;
+		SecretKeySpec clientKey = new SecretKeySpec(keyBlock, offset, keySize, "AES");
+		offset += keySize;
+		SecretKeySpec serverKey = new SecretKeySpec(keyBlock, offset, keySize, "AES");
+		offset += keySize;
+
+		boolean isServer = context.isServer();
+		encryptKey = (isServer ? serverKey : clientKey);
+		decryptKey = (isServer ? clientKey : serverKey);
+
+		try{
+			encryptCipher = Cipher.getInstance("AES/CBC/NoPadding");
+			decryptCipher = Cipher.getInstance("AES/CBC/NoPadding");
+			writeMac = Mac.getInstance(macAlgorithm);
+			readMac = Mac.getInstance(macAlgorithm);
+
+			writeMac.init(isServer ? serverMacKey : clientMacKey);
+			readMac.init(isServer ? clientMacKey : serverMacKey);
+
+			if(!useExplicitIV){	//With implicit IVs the CBC chain just carries on from record to record, so the ciphers are only set up once
+				IvParameterSpec clientIV = new IvParameterSpec(keyBlock, offset, BLOCK_SIZE);
+				offset += BLOCK_SIZE;
+				IvParameterSpec serverIV = new IvParameterSpec(keyBlock, offset, BLOCK_SIZE);
+
+				encryptCipher.init(Cipher.ENCRYPT_MODE, encryptKey, isServer ? serverIV : clientIV);
+				decryptCipher.init(Cipher.DECRYPT_MODE, decryptKey, isServer ? clientIV : serverIV);
+			}
+		} catch(GeneralSecurityException e){
+			throw new TlsFatalAlert(AlertDescription.internal_error, e);
+		}
+	}
+
+	@Override
+	public int getPlaintextLimit(int ciphertextLimit){
+		int plaintextLimit = ciphertextLimit;
+
+		plaintextLimit -= plaintextLimit % BLOCK_SIZE;
+		plaintextLimit -= macSize + 1;
+
+		if(useExplicitIV){
+			plaintextLimit -= BLOCK_SIZE;
+		}
+
+		return plaintextLimit;
+	}
+
+	@Override
+	public byte[] encodePlaintext(long seqNo, short type, byte[] plaintext, int offset, int len) throws IOException{
+		int paddingLength = BLOCK_SIZE - 1 - ((len + macSize) % BLOCK_SIZE);	//The padding bytes all hold the padding length, including the length byte itself
+		int encryptedLength = len + macSize + paddingLength + 1;
+		int ivLength = (useExplicitIV ? BLOCK_SIZE : 0);
+
+		byte[] output = new byte[ivLength + encryptedLength];
+
+		try{
+			//The MAC goes right after the plaintext, then the padding, and the lot gets encrypted in place
+			writeHeader(writeHeader, seqNo, type, len);
+			writeMac.update(writeHeader);
+			writeMac.update(plaintext, offset, len);
+
+			System.arraycopy(plaintext, offset, output, ivLength, len);
+			writeMac.doFinal(output, ivLength + len);
+
+			for(int i = ivLength + len + macSize; i < output.length; i++){
+				output[i] = (byte) paddingLength;
+			}
+
+			if(useExplicitIV){
+				random.nextBytes(writeIV);
+				System.arraycopy(writeIV, 0, output, 0, BLOCK_SIZE);
+				encryptCipher.init(Cipher.ENCRYPT_MODE, encryptKey, new IvParameterSpec(writeIV));
+			}
+
+			encryptCipher.update(output, ivLength, encryptedLength, output, ivLength);
+		} catch(GeneralSecurityException e){
+			throw new TlsFatalAlert(AlertDescription.internal_error, e);
+		}
+
+		return output;
+	}
+
+	@Override
+	public byte[] decodeCiphertext(long seqNo, short type, byte[] ciphertext, int offset, int len) throws IOException{
+		int ivLength = (useExplicitIV ? BLOCK_SIZE : 0);
+		int encryptedLength = len - ivLength;
+
+		if(encryptedLength < Math.max(BLOCK_SIZE, macSize + 1) || encryptedLength % BLOCK_SIZE != 0){
+			throw new TlsFatalAlert(AlertDescription.decode_error);
+		}
+
+		byte[] decrypted = new byte[encryptedLength];
+
+		try{
+			if(useExplicitIV){
+				decryptCipher.init(Cipher.DECRYPT_MODE, decryptKey, new IvParameterSpec(ciphertext, offset, BLOCK_SIZE));
+			}
+
+			decryptCipher.update(ciphertext, offset + ivLength, encryptedLength, decrypted, 0);
+		} catch(GeneralSecurityException e){
+			throw new TlsFatalAlert(AlertDescription.internal_error, e);
+		}
+
+		/*
+		 * Check the padding without bailing out early, then the MAC. A bad padding is treated as no padding so the MAC is
+		 * still computed over roughly the same amount of data, which is what keeps padding oracles from working.
+		 */
+		int paddingLength = decrypted[encryptedLength - 1] & 0xff;
+		int totalPadding = paddingLength + 1;
+		boolean badPadding = (totalPadding + macSize > encryptedLength);
+
+		if(badPadding){
+			totalPadding = 0;
+		} else{
+			int difference = 0;
+			for(int i = encryptedLength - totalPadding; i < encryptedLength; i++){
+				difference |= (decrypted[i] & 0xff) ^ paddingLength;
+			}
+			if(difference != 0){
+				badPadding = true;
+				totalPadding = 0;
+			}
+		}
+
+		int plaintextLength = encryptedLength - totalPadding - macSize;
+
+		byte[] expectedMac = calculateMacConstantTime(seqNo, type, decrypted, plaintextLength, encryptedLength - macSize);
+		boolean badMac = !MessageDigest.isEqual(expectedMac, Arrays.copyOfRange(decrypted, plaintextLength, plaintextLength + macSize));
+
+		if(badPadding || badMac){
+			throw new TlsFatalAlert(AlertDescription.bad_record_mac);
+		}
+
+		return Arrays.copyOfRange(decrypted, 0, plaintextLength);
+	}
+
+	//Same trick as BouncyCastle's TlsMac: always run the hash over as many blocks as the longest possible plaintext would need
+	private byte[] calculateMacConstantTime(long seqNo, short type, byte[] message, int length, int fullLength){
+		writeHeader(readHeader, seqNo, type, length);
+		readMac.update(readHeader);
+		readMac.update(message, 0, length);
+		byte[] result = readMac.doFinal();
+
+		int extra = getDigestBlockCount(HEADER_LENGTH + fullLength) - getDigestBlockCount(HEADER_LENGTH + length);
+		while(--extra >= 0){
+			readMac.update(dummyBlock, 0, digestBlockSize);
+		}
+		readMac.update(dummyBlock[0]);	//Make sure the last partial block gets processed too before throwing it all away
+		readMac.reset();
+
+		return result;
+	}
+
+	private int getDigestBlockCount(int inputLength){
+		return (inputLength + digestOverhead) / digestBlockSize;
+	}
+
+	private void writeHeader(byte[] header, long seqNo, short type, int length){
+		TlsUtils.writeUint64(seqNo, header, 0);
+		header[8] = (byte) type;
+		TlsUtils.writeVersion(context.getServerVersion(), header, 9);
+		header[11] = (byte) (length >>> 8);
+		header[12] = (byte) length;
+	}
+}
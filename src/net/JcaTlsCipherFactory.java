@@ -0,0 +1,63 @@
+package net;
+
+import java.io.IOException;
+
+import org.bouncycastle.crypto.tls.DefaultTlsCipherFactory;
+import org.bouncycastle.crypto.tls.EncryptionAlgorithm;
+import org.bouncycastle.crypto.tls.MACAlgorithm;
+import org.bouncycastle.crypto.tls.SecurityParameters;
+import org.bouncycastle.crypto.tls.TlsCipher;
+import org.bouncycastle.crypto.tls.TlsContext;
+import org.bouncycastle.crypto.tls.TlsUtils;
+
+/*
+ * Builds record layer ciphers on top of the JCA instead of BouncyCastle's lightweight engines, so AES and the HMACs
+ * run through the JVM's intrinsics (AES-NI and friends). Only the record layer changes, the PSK handshake is still
+ * entirely BouncyCastle's. Anything this doesn't cover (or that the JVM can't do, like GCM on Java 7) is handed back
+ * to the default BouncyCastle factory.
+ */
+public class JcaTlsCipherFactory extends DefaultTlsCipherFactory {
+	private static final boolean gcmAvailable = JcaTlsAEADCipher.isAvailable();
+
+	@Override
+	public TlsCipher createCipher(TlsContext context, int encryptionAlgorithm, int macAlgorithm) throws IOException{
+		switch(encryptionAlgorithm){
+			case EncryptionAlgorithm.AES_128_CBC:
+				return createBlockCipher(context, 16, encryptionAlgorithm, macAlgorithm);
+			case EncryptionAlgorithm.AES_256_CBC:
+				return createBlockCipher(context, 32, encryptionAlgorithm, macAlgorithm);
+			case EncryptionAlgorithm.AES_128_GCM:
+				return gcmAvailable ? new JcaTlsAEADCipher(context, 16) : super.createCipher(context, encryptionAlgorithm, macAlgorithm);
+			case EncryptionAlgorithm.AES_256_GCM:
+				return gcmAvailable ? new JcaTlsAEADCipher(context, 32) : super.createCipher(context, encryptionAlgorithm, macAlgorithm);
+			default:
+				return super.createCipher(context, encryptionAlgorithm, macAlgorithm);
+		}
+	}
+
+	private TlsCipher createBlockCipher(TlsContext context, int keySize, int encryptionAlgorithm, int macAlgorithm) throws IOException{
+		switch(macAlgorithm){
+			case MACAlgorithm.hmac_sha1:
+				return new JcaTlsBlockCipher(context, keySize, "HmacSHA1", 20, 64);
+			case MACAlgorithm.hmac_sha256:
+				return new JcaTlsBlockCipher(context, keySize, "HmacSHA256", 32, 64);
+			case MACAlgorithm.hmac_sha384:
+				return new JcaTlsBlockCipher(context, keySize, "HmacSHA384", 48, 128);
+			default:
+				return super.createCipher(context, encryptionAlgorithm, macAlgorithm);
+		}
+	}
+
+	//The key block from RFC 5246 section 6.3. BouncyCastle has its own but doesn't make it public.
+	static byte[] calculateKeyBlock(TlsContext context, int size){
+		SecurityParameters securityParameters = context.getSecurityParameters();
+		byte[] serverRandom = securityParameters.getServerRandom();
+		byte[] clientRandom = securityParameters.getClientRandom();
+
+		byte[] seed = new byte[serverRandom.length + clientRandom.length];
+		System.arraycopy(serverRandom, 0, seed, 0, serverRandom.length);
+		System.arraycopy(clientRandom, 0, seed, serverRandom.length, clientRandom.length);
+
+		return TlsUtils.PRF(context, securityParameters.getMasterSecret(), "key expansion", seed, size);
+	}
+}
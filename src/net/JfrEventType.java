@@ -0,0 +1,177 @@
+package net;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * A Java Flight Recorder event type, made at runtime. The project is built for Java 7, which has no jdk.jfr, so
+ * everything here goes through reflection (jdk.jfr.EventFactory, on Java 8u262+ and 11+). Where JFR isn't there the
+ * type is just never enabled and commit() does nothing.
+ *
+ * Making an event is a few reflective calls, so commit() first checks a flag that is only true while a recording is
+ * running. The flag is kept up to date by a FlightRecorderListener, so with no recording a commit costs one volatile read.
+ */
+public class JfrEventType {
+	private static final Object[] NO_ARGS = new Object[0];
+
+	private static boolean available = false;
+	private static volatile boolean recording = false;	//True while any recording is running
+	private static Class<?> annotationElementClass;
+	private static Class<?> valueDescriptorClass;
+	private static Method eventFactoryCreate;
+	private static Method eventFactoryNewEvent;
+	private static Method eventSet;
+	private static Method eventCommit;
+	private static Method eventShouldCommit;
+
+	static{
+		try{
+			annotationElementClass = Class.forName("jdk.jfr.AnnotationElement");
+			valueDescriptorClass = Class.forName("jdk.jfr.ValueDescriptor");
+			Class<?> eventFactory = Class.forName("jdk.jfr.EventFactory");
+			Class<?> event = Class.forName("jdk.jfr.Event");
+
+			eventFactoryCreate = eventFactory.getMethod("create", List.class, List.class);
+			eventFactoryNewEvent = eventFactory.getMethod("newEvent");
+			eventSet = event.getMethod("set", int.class, Object.class);
+			eventCommit = event.getMethod("commit");
+			eventShouldCommit = event.getMethod("shouldCommit");
+
+			Class<?> flightRecorder = Class.forName("jdk.jfr.FlightRecorder");
+			Class<?> listener = Class.forName("jdk.jfr.FlightRecorderListener");
+			if((Boolean) flightRecorder.getMethod("isAvailable").invoke(null)){
+				Object proxy = Proxy.newProxyInstance(listener.getClassLoader(), new Class<?>[]{listener}, new RecordingWatcher(flightRecorder));
+				flightRecorder.getMethod("addListener", listener).invoke(null, proxy);	//Called right away if JFR is already running
+				available = true;
+			}
+		} catch(ClassNotFoundException e){
+			//Java 7, or a JDK without JFR. Events just stay off.
+		} catch(Exception e){
+			Log.warn("Couldn't hook into Java Flight Recorder, JFR events are off", e);
+		}
+	}
+
+	private final Object factory;	//jdk.jfr.EventFactory, null if JFR isn't available
+	private final String[] fieldNames;
+
+	private JfrEventType(Object factory, String[] fieldNames){
+		this.factory = factory;
+		this.fieldNames = fieldNames;
+	}
+
+	/*
+	 * Defines an event type. Field types have to be ones JFR understands (primitives, String, Thread, Class), and names
+	 * can't be ones JFR already uses (startTime, duration, eventThread, stackTrace).
+	 * timespanFields are longs holding nanoseconds, so JFR tools show them as durations.
+	 */
+	public static JfrEventType create(String name, String label, String category, String[] fieldNames, Class<?>[] fieldTypes, String... timespanFields){
+		if(!available){
+			return new JfrEventType(null, fieldNames);
+		}
+
+		try{
+			List<Object> annotations = new ArrayList<Object>();
+			annotations.add(annotation("jdk.jfr.Name", name));
+			annotations.add(annotation("jdk.jfr.Label", label));
+			annotations.add(annotation("jdk.jfr.Category", new String[]{category}));
+			annotations.add(annotation("jdk.jfr.StackTrace", false));	//Stack traces make events a lot more expensive and tell us nothing here
+
+			List<Object> fields = new ArrayList<Object>();
+			Constructor<?> descriptor = valueDescriptorClass.getConstructor(Class.class, String.class, List.class);
+			for(int i = 0; i < fieldNames.length; i++){
+				List<Object> fieldAnnotations = new ArrayList<Object>();
+				if(Arrays.asList(timespanFields).contains(fieldNames[i])){
+					fieldAnnotations.add(annotation("jdk.jfr.Timespan", "NANOSECONDS"));
+				}
+				fields.add(descriptor.newInstance(fieldTypes[i], fieldNames[i], fieldAnnotations));
+			}
+
+			return new JfrEventType(eventFactoryCreate.invoke(null, annotations, fields), fieldNames);
+		} catch(Exception e){
+			Log.warn("Couldn't create the JFR event type {}", name, e);
+			return new JfrEventType(null, fieldNames);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Object annotation(String type, Object value) throws Exception{
+		Class<? extends Annotation> annotationType = (Class<? extends Annotation>) Class.forName(type);
+		return annotationElementClass.getConstructor(Class.class, Object.class).newInstance(annotationType, value);
+	}
+
+	//True while a recording is running. Check it before doing any work to get the values for commit().
+	public boolean isEnabled(){
+		return factory != null && recording;
+	}
+
+	//Writes one event. Values are in the same order as the field names.
+	public void commit(Object... values){
+		if(!isEnabled()){
+			return;
+		}
+
+		try{
+			Object event = eventFactoryNewEvent.invoke(factory, NO_ARGS);
+			if(!(Boolean) eventShouldCommit.invoke(event, NO_ARGS)){	//The recording might have this type turned off
+				return;
+			}
+
+			for(int i = 0; i < values.length && i < fieldNames.length; i++){
+				eventSet.invoke(event, i, values[i]);
+			}
+			eventCommit.invoke(event, NO_ARGS);
+		} catch(Exception e){
+			Log.warn("Couldn't commit a JFR event", e);
+		}
+	}
+
+	public static boolean isAvailable(){
+		return available;
+	}
+
+	//Keeps the recording flag up to date, standing in for a jdk.jfr.FlightRecorderListener
+	private static class RecordingWatcher implements InvocationHandler {
+		private final Class<?> flightRecorder;
+
+		RecordingWatcher(Class<?> flightRecorder){
+			this.flightRecorder = flightRecorder;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable{
+			String name = method.getName();
+
+			if(name.equals("recordingStateChanged") || name.equals("recorderInitialized")){
+				recording = isAnyRecordingRunning();
+				return null;
+			} else if(name.equals("equals")){
+				return proxy == args[0];
+			} else if(name.equals("hashCode")){
+				return System.identityHashCode(proxy);
+			} else if(name.equals("toString")){
+				return "JfrEventType recording watcher";
+			}
+
+			return null;
+		}
+
+		private boolean isAnyRecordingRunning() throws Exception{
+			Object recorder = flightRecorder.getMethod("getFlightRecorder").invoke(null);
+			List<?> recordings = (List<?>) flightRecorder.getMethod("getRecordings").invoke(recorder);
+
+			for(Object recording : recordings){
+				if(recording.getClass().getMethod("getState").invoke(recording).toString().equals("RUNNING")){
+					return true;
+				}
+			}
+
+			return false;
+		}
+	}
+}
@@ -0,0 +1,118 @@
+package net;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * A lock-free histogram of latencies (or any other non-negative long). Any number of threads can record into it while
+ * others read percentiles, nothing ever blocks.
+ *
+ * Values are bucketed log-linearly: every power of two is split into 16 equal buckets, so a percentile is never off by
+ * more than about 6%. Values below 16 get a bucket each. That covers the whole range of a long in 960 buckets.
+ */
+public class LatencyHistogram {
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKETS = SUB_BUCKETS + (63 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong total = new AtomicLong();
+	private final AtomicLong max = new AtomicLong();
+
+	public void record(long value){
+		if(value < 0){	//Clocks can step backwards, a negative latency means nothing
+			return;
+		}
+
+		counts.incrementAndGet(getBucket(value));
+		count.incrementAndGet();
+		total.addAndGet(value);
+
+		long currentMax = max.get();
+		while(value > currentMax && !max.compareAndSet(currentMax, value)){
+			currentMax = max.get();
+		}
+	}
+
+	public long getCount(){
+		return count.get();
+	}
+
+	public long getMax(){
+		return max.get();
+	}
+
+	//The sum of every recorded value
+	public long getTotal(){
+		return total.get();
+	}
+
+	public double getMean(){
+		long samples = count.get();
+		return samples == 0 ? 0 : total.get() / (double) samples;
+	}
+
+	/*
+	 * The value below which the given percentage (0 to 100) of recorded values fall, or 0 if nothing has been recorded.
+	 * This is the top of the bucket the percentile lands in, so it can be slightly high but never above the max.
+	 */
+	public long getPercentile(double percentile){
+		long samples = count.get();
+		if(samples == 0){
+			return 0;
+		}
+
+		long target = (long) Math.ceil(samples * Math.min(Math.max(percentile, 0), 100) / 100);
+		if(target == 0){
+			target = 1;
+		}
+
+		long seen = 0;
+		for(int bucket = 0; bucket < BUCKETS; bucket++){
+			seen += counts.get(bucket);
+			if(seen >= target){
+				return Math.min(getBucketTop(bucket), max.get());
+			}
+		}
+
+		return max.get();	//Records that landed while we were counting can make the totals disagree a little
+	}
+
+	public long getMedian(){
+		return getPercentile(50);
+	}
+
+	//Not atomic with respect to concurrent record() calls, a value recorded during a reset may be partly kept
+	public void reset(){
+		for(int bucket = 0; bucket < BUCKETS; bucket++){
+			counts.set(bucket, 0);
+		}
+		count.set(0);
+		total.set(0);
+		max.set(0);
+	}
+
+	static int getBucket(long value){
+		if(value < SUB_BUCKETS){
+			return (int) value;
+		}
+
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;	//How far the top 5 bits of the value are from the bottom
+		int subBucket = (int) (value >>> shift) & (SUB_BUCKETS - 1);	//The 4 bits under the top one pick the bucket within this power of two
+
+		return SUB_BUCKETS + shift * SUB_BUCKETS + subBucket;
+	}
+
+	static long getBucketTop(int bucket){
+		if(bucket < SUB_BUCKETS){
+			return bucket;
+		}
+
+		int shift = (bucket - SUB_BUCKETS) / SUB_BUCKETS;
+		long subBucket = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+		long bottom = (SUB_BUCKETS + subBucket) << shift;
+
+		return bottom + (1L << shift) - 1;
+	}
+}
@@ -0,0 +1,71 @@
+package net;
+
+import java.net.InetAddress;
+import java.util.EnumMap;
+
+/*
+ * Where the time goes between finding a server and having a stream running on it, added up over every launch.
+ * Each stage gets its own histogram, and (if a JFR recording is running) every stage of every launch is also written
+ * as a net.LaunchStage event, so nightly runs can be compared stage by stage.
+ *
+ * LaunchTimelines record into the shared instance unless they're given another one.
+ */
+public class LaunchStats {
+	private static final LaunchStats sharedStats = new LaunchStats();
+
+	private static final JfrEventType STAGE_EVENT = JfrEventType.create("net.LaunchStage", "Launch Stage", "Steam Streaming",
+			new String[]{"stage", "server", "appID", "stageDuration"},
+			new Class<?>[]{String.class, String.class, int.class, long.class},
+			"stageDuration");
+
+	public enum Stage {
+		DISCOVERY,	//Discovery packet sent to the server's status coming back
+		TCP_CONNECT,	//Opening the control connection's socket
+		TLS_HANDSHAKE,	//The PSK handshake, full or resumed
+		AUTHENTICATION,	//Handshake done to the server accepting our 9500 (its 9501)
+		START_STREAM_SEND,	//startStream() called to the 9503 being written to the connection
+		START_STREAM_RESPONSE	//9503 written to the server's 9504 arriving
+	}
+
+	private final EnumMap<Stage, LatencyHistogram> histograms = new EnumMap<Stage, LatencyHistogram>(Stage.class);
+
+	public LaunchStats(){
+		for(Stage stage : Stage.values()){
+			histograms.put(stage, new LatencyHistogram());
+		}
+	}
+
+	public static LaunchStats getSharedStats(){
+		return sharedStats;
+	}
+
+	//appID is -1 for stages that happen before there's a stream
+	public void record(Stage stage, InetAddress server, int appID, long duration){
+		histograms.get(stage).record(duration);
+
+		if(STAGE_EVENT.isEnabled()){
+			STAGE_EVENT.commit(stage.name(), server == null ? null : server.getHostAddress(), appID, duration);
+		}
+	}
+
+	public LatencyHistogram getHistogram(Stage stage){
+		return histograms.get(stage);
+	}
+
+	//Median nanoseconds for the stage, -1 if it hasn't been seen yet
+	public long getMedian(Stage stage){
+		LatencyHistogram histogram = histograms.get(stage);
+		return histogram.getCount() == 0 ? -1 : histogram.getMedian();
+	}
+
+	public long getPercentile(Stage stage, double percentile){
+		LatencyHistogram histogram = histograms.get(stage);
+		return histogram.getCount() == 0 ? -1 : histogram.getPercentile(percentile);
+	}
+
+	public void reset(){
+		for(LatencyHistogram histogram : histograms.values()){
+			histogram.reset();
+		}
+	}
+}
@@ -0,0 +1,103 @@
+package net;
+
+import java.net.InetAddress;
+
+import net.LaunchStats.Stage;
+
+/*
+ * System.nanoTime() timestamps for the start and end of each launch stage of one connection or stream session, see
+ * LaunchStats.Stage. A connection fills in the stages up to authentication, and each stream session started on it gets
+ * a copy of those and adds its own, so a session's timeline covers everything from discovery to the stream launching.
+ *
+ * Ending a stage records its duration in the LaunchStats. A stage that is started again (say the handshake is retried)
+ * just starts over.
+ */
+public class LaunchTimeline {
+	private static final int STAGES = Stage.values().length;
+
+	private final InetAddress server;
+	private final LaunchStats stats;
+	private volatile int appID = -1;
+	private final long[] starts = new long[STAGES];	//0 if the stage hasn't started
+	private final long[] ends = new long[STAGES];	//0 if the stage hasn't ended
+
+	public LaunchTimeline(InetAddress server){
+		this(server, LaunchStats.getSharedStats());
+	}
+
+	public LaunchTimeline(InetAddress server, LaunchStats stats){
+		this.server = server;
+		this.stats = stats;
+	}
+
+	//A copy for a stream session, with the connection's stages already filled in
+	public synchronized LaunchTimeline copy(int appID){
+		LaunchTimeline copy = new LaunchTimeline(server, stats);
+		System.arraycopy(starts, 0, copy.starts, 0, STAGES);
+		System.arraycopy(ends, 0, copy.ends, 0, STAGES);
+		copy.appID = appID;
+		return copy;
+	}
+
+	public synchronized void begin(Stage stage, long time){
+		starts[stage.ordinal()] = time;
+		ends[stage.ordinal()] = 0;
+	}
+
+	public void end(Stage stage, long time){
+		long duration;
+
+		synchronized(this){
+			int index = stage.ordinal();
+			if(starts[index] == 0 || ends[index] != 0){	//Never started, or already ended
+				return;
+			}
+			ends[index] = time;
+			duration = time - starts[index];
+		}
+
+		stats.record(stage, server, appID, duration);
+	}
+
+	//For stages timed by someone else, like discovery
+	public void mark(Stage stage, long start, long end){
+		begin(stage, start);
+		end(stage, end);
+	}
+
+	//Nanoseconds the stage took, or -1 if it hasn't finished
+	public synchronized long getDuration(Stage stage){
+		int index = stage.ordinal();
+		return ends[index] == 0 ? -1 : ends[index] - starts[index];
+	}
+
+	public synchronized long getStart(Stage stage){
+		return starts[stage.ordinal()];
+	}
+
+	public synchronized long getEnd(Stage stage){
+		return ends[stage.ordinal()];
+	}
+
+	public InetAddress getServer(){
+		return server;
+	}
+
+	public LaunchStats getStats(){
+		return stats;
+	}
+
+	@Override
+	public synchronized String toString(){
+		StringBuilder builder = new StringBuilder("Launch of ").append(appID).append(" on ").append(server.getHostAddress()).append(':');
+
+		for(Stage stage : Stage.values()){
+			int index = stage.ordinal();
+			if(ends[index] != 0){
+				builder.append(' ').append(stage.name().toLowerCase()).append(String.format(" %.2f ms", (ends[index] - starts[index]) / 1e6));
+			}
+		}
+
+		return builder.toString();
+	}
+}
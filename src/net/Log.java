@@ -0,0 +1,299 @@
+package net;
+
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Logging for the network code that doesn't make the caller wait on the console. Printing straight to System.out/err
+ * takes the stream's lock and blocks until the terminal has taken the text, which is not something a read loop or a
+ * discovery thread should be doing.
+ *
+ * A log call checks the level, then copies its template and arguments into the next slot of a ring buffer that was
+ * allocated up front and returns. A background thread does the string building and printing. The templates use {} for
+ * each argument, so nothing is concatenated unless the line is actually printed. If the buffer is full the line is
+ * dropped and counted rather than making the caller wait.
+ *
+ * For lines that can repeat a lot (every discovery packet, every bad packet from a noisy network) use a Sampler, which
+ * lets one through per period and counts the rest.
+ */
+public final class Log {
+	public enum Level {
+		DEBUG, INFO, WARN, ERROR
+	}
+
+	private static final int CAPACITY = 8192;	//Always a power of two
+	private static final int MASK = CAPACITY - 1;
+
+	private static volatile Level level = Level.INFO;
+
+	private static final Entry[] ring = new Entry[CAPACITY];
+	private static final AtomicLong claimed = new AtomicLong();	//The next sequence number a writer will take
+	private static volatile long consumed = 0;	//The next sequence number the printer will print
+	private static final AtomicLong dropped = new AtomicLong();
+
+	private static final Thread printer;
+	private static volatile boolean printerSleeping = false;
+
+	static{
+		for(int i = 0; i < CAPACITY; i++){
+			ring[i] = new Entry();
+		}
+
+		printer = new Thread(new Runnable(){
+			@Override
+			public void run(){
+				print();
+			}
+		}, "Log printer");
+		printer.setDaemon(true);
+		printer.start();
+
+		Runtime.getRuntime().addShutdownHook(new Thread(new Runnable(){	//So the last lines before a System.exit aren't lost
+			@Override
+			public void run(){
+				flush(1, TimeUnit.SECONDS);
+			}
+		}, "Log flush"));
+	}
+
+	private Log(){
+	}
+
+	public static void setLevel(Level newLevel){
+		level = newLevel;
+	}
+
+	public static Level getLevel(){
+		return level;
+	}
+
+	//Check this before doing anything expensive to work out what to log
+	public static boolean isEnabled(Level check){
+		return check.compareTo(level) >= 0;
+	}
+
+	/*
+	 * One overload per argument count, so a log call never makes a varargs array. If the last argument is a Throwable
+	 * and the template has no {} left for it, its stack trace is printed after the line.
+	 */
+	public static void debug(String template){
+		log(Level.DEBUG, template, null, null, null);
+	}
+
+	public static void debug(String template, Object a){
+		log(Level.DEBUG, template, a, null, null);
+	}
+
+	public static void debug(String template, Object a, Object b){
+		log(Level.DEBUG, template, a, b, null);
+	}
+
+	public static void debug(String template, Object a, Object b, Object c){
+		log(Level.DEBUG, template, a, b, c);
+	}
+
+	public static void info(String template){
+		log(Level.INFO, template, null, null, null);
+	}
+
+	public static void info(String template, Object a){
+		log(Level.INFO, template, a, null, null);
+	}
+
+	public static void info(String template, Object a, Object b){
+		log(Level.INFO, template, a, b, null);
+	}
+
+	public static void info(String template, Object a, Object b, Object c){
+		log(Level.INFO, template, a, b, c);
+	}
+
+	public static void warn(String template){
+		log(Level.WARN, template, null, null, null);
+	}
+
+	public static void warn(String template, Object a){
+		log(Level.WARN, template, a, null, null);
+	}
+
+	public static void warn(String template, Object a, Object b){
+		log(Level.WARN, template, a, b, null);
+	}
+
+	public static void warn(String template, Object a, Object b, Object c){
+		log(Level.WARN, template, a, b, c);
+	}
+
+	public static void error(String template){
+		log(Level.ERROR, template, null, null, null);
+	}
+
+	public static void error(String template, Object a){
+		log(Level.ERROR, template, a, null, null);
+	}
+
+	public static void error(String template, Object a, Object b){
+		log(Level.ERROR, template, a, b, null);
+	}
+
+	public static void error(String template, Object a, Object b, Object c){
+		log(Level.ERROR, template, a, b, c);
+	}
+
+	public static void log(Level lineLevel, String template, Object a, Object b, Object c){
+		if(lineLevel.compareTo(level) < 0){
+			return;
+		}
+
+		long sequence;
+		do{
+			sequence = claimed.get();
+			if(sequence - consumed >= CAPACITY){	//The printer is too far behind, don't wait for it
+				dropped.incrementAndGet();
+				return;
+			}
+		} while(!claimed.compareAndSet(sequence, sequence + 1));
+
+		Entry entry = ring[(int) (sequence & MASK)];
+		entry.level = lineLevel;
+		entry.time = System.currentTimeMillis();
+		entry.thread = Thread.currentThread();
+		entry.template = template;
+		entry.a = a;
+		entry.b = b;
+		entry.c = c;
+		entry.published = sequence;	//Volatile write, makes the fields above visible to the printer
+
+		if(printerSleeping){
+			LockSupport.unpark(printer);
+		}
+	}
+
+	//Waits until everything logged so far has been printed, or the timeout runs out. Returns false if it ran out.
+	public static boolean flush(long timeout, TimeUnit unit){
+		long target = claimed.get();
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+
+		while(consumed < target){
+			if(System.nanoTime() > deadline){
+				return false;
+			}
+			LockSupport.unpark(printer);
+			LockSupport.parkNanos(100000);
+		}
+
+		return true;
+	}
+
+	//Lines thrown away because the buffer was full
+	public static long getDroppedCount(){
+		return dropped.get();
+	}
+
+	private static void print(){
+		SimpleDateFormat timeFormat = new SimpleDateFormat("HH:mm:ss.SSS");
+		Date date = new Date();
+		StringBuilder line = new StringBuilder(256);
+		long reportedDrops = 0;
+
+		while(true){
+			long sequence = consumed;
+			Entry entry = ring[(int) (sequence & MASK)];
+
+			if(entry.published != sequence){	//Nothing new yet, sleep until a writer wakes us
+				printerSleeping = true;
+				if(entry.published != sequence){	//Check again now writers know to wake us
+					LockSupport.parkNanos(10000000);
+				}
+				printerSleeping = false;
+				continue;
+			}
+
+			date.setTime(entry.time);
+			line.setLength(0);
+			line.append(timeFormat.format(date)).append(' ').append(entry.level).append(" [").append(entry.thread.getName()).append("] ");
+			Throwable throwable = format(line, entry.template, entry.a, entry.b, entry.c);
+
+			PrintStream out = (entry.level.compareTo(Level.WARN) >= 0 ? System.err : System.out);
+			out.println(line);
+			if(throwable != null){
+				throwable.printStackTrace(out);
+			}
+
+			//Let go of everything so the buffer doesn't keep garbage alive, then hand the slot back
+			entry.thread = null;
+			entry.template = null;
+			entry.a = entry.b = entry.c = null;
+			consumed = sequence + 1;
+
+			long drops = dropped.get();
+			if(drops != reportedDrops){
+				System.err.println("Log buffer was full, " + (drops - reportedDrops) + " lines dropped");
+				reportedDrops = drops;
+			}
+		}
+	}
+
+	//Fills in the {}s. Returns a trailing Throwable argument that had no {} of its own, so its stack trace can be printed.
+	private static Throwable format(StringBuilder line, String template, Object a, Object b, Object c){
+		int argument = 0;
+		int start = 0;
+
+		for(int brace = template.indexOf("{}"); brace >= 0 && argument < 3; brace = template.indexOf("{}", start)){
+			line.append(template, start, brace).append(argument == 0 ? a : argument == 1 ? b : c);
+			start = brace + 2;
+			argument++;
+		}
+		line.append(template, start, template.length());
+
+		Object last = (c != null ? c : b != null ? b : a);
+		int lastIndex = (c != null ? 2 : b != null ? 1 : a != null ? 0 : -1);
+		return (last instanceof Throwable && lastIndex >= argument) ? (Throwable) last : null;
+	}
+
+	private static class Entry {
+		volatile long published = -1;	//The sequence number this slot was last filled for
+		Level level;
+		long time;
+		Thread thread;
+		String template;
+		Object a;
+		Object b;
+		Object c;
+	}
+
+	/*
+	 * Lets one line through per period. Keep one per call site as a static final, and ask it before logging:
+	 * 	if(SAMPLER.allow()){ Log.info("Something happened again ({} times since the last one)", SAMPLER.takeSuppressed()); }
+	 */
+	public static class Sampler {
+		private final long period;	//Nanoseconds
+		private final AtomicLong next = new AtomicLong(Long.MIN_VALUE);	//System.nanoTime() when the next line is allowed
+		private final AtomicLong suppressed = new AtomicLong();
+
+		public Sampler(long period, TimeUnit unit){
+			this.period = unit.toNanos(period);
+		}
+
+		public boolean allow(){
+			long now = System.nanoTime();
+			long allowed = next.get();
+
+			if((allowed == Long.MIN_VALUE || now - allowed >= 0) && next.compareAndSet(allowed, now + period)){
+				return true;
+			}
+
+			suppressed.incrementAndGet();
+			return false;
+		}
+
+		//How many lines were held back since the last call
+		public long takeSuppressed(){
+			return suppressed.getAndSet(0);
+		}
+	}
+}
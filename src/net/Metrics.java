@@ -0,0 +1,234 @@
+package net;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanNotificationInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/*
+ * Counters, gauges and latency histograms for discovery and the control connections, readable over JMX (registerMBean)
+ * and as Prometheus text (writePrometheus, served on /metrics by DiscoveryHttpServer).
+ *
+ * Counters and gauges are StripedCounters and histograms are LatencyHistograms, so recording never takes a lock. Metrics
+ * are looked up once and kept in a field, the registry is only touched when they're made and when they're read.
+ * Histograms record nanoseconds and are exported in seconds, as a Prometheus summary.
+ *
+ * -Dnet.metrics=off turns recording off everywhere, for measuring what it costs (see DiscoveryReplayBenchmark).
+ */
+public class Metrics {
+	public static final boolean ENABLED = !"off".equals(System.getProperty("net.metrics"));
+
+	private static final Metrics SHARED = new Metrics();
+	private static final double[] QUANTILES = {0.5, 0.9, 0.99};
+
+	private enum Type {COUNTER, GAUGE, SUMMARY}
+
+	//Keyed by name, then labels, so each family comes out together
+	private final ConcurrentSkipListMap<String, Metric> metrics = new ConcurrentSkipListMap<String, Metric>();
+
+	public static Metrics getShared(){
+		return SHARED;
+	}
+
+	//A counter that only goes up. Asking for the same name again gets the same counter.
+	public StripedCounter counter(String name, String help){
+		return (StripedCounter) register(name, help, Type.COUNTER, "").value;
+	}
+
+	//One counter out of a family split by a label, like frames per EMsg
+	public StripedCounter counter(String name, String help, String label, String labelValue){
+		return (StripedCounter) register(name, help, Type.COUNTER, "{" + label + "=\"" + escapeLabel(labelValue) + "\"}").value;
+	}
+
+	//A value that goes up and down, like how many connections are open
+	public StripedCounter gauge(String name, String help){
+		return (StripedCounter) register(name, help, Type.GAUGE, "").value;
+	}
+
+	//A histogram of durations in nanoseconds
+	public LatencyHistogram histogram(String name, String help){
+		return (LatencyHistogram) register(name, help, Type.SUMMARY, "").value;
+	}
+
+	private Metric register(String name, String help, Type type, String labels){
+		String key = name + '\u0000' + labels;	//Sorts before any character a longer name could have
+		Metric metric = metrics.get(key);
+		if(metric == null){
+			Metric made = new Metric(name, help, type, labels);
+			metric = metrics.putIfAbsent(key, made);
+			if(metric == null){
+				metric = made;
+			}
+		}
+
+		if(metric.type != type){
+			throw new IllegalArgumentException(name + " is already a " + metric.type.name().toLowerCase(Locale.ROOT));
+		}
+		return metric;
+	}
+
+	//Every metric in the Prometheus text exposition format (version 0.0.4)
+	public void writePrometheus(Appendable out) throws IOException{
+		String family = null;
+		for(Metric metric : metrics.values()){
+			if(!metric.name.equals(family)){
+				family = metric.name;
+				out.append("# HELP ").append(metric.name).append(' ').append(metric.help.replace("\\", "\\\\").replace("\n", "\\n")).append('\n');
+				out.append("# TYPE ").append(metric.name).append(' ').append(metric.type.name().toLowerCase(Locale.ROOT)).append('\n');
+			}
+
+			if(metric.type == Type.SUMMARY){
+				LatencyHistogram histogram = (LatencyHistogram) metric.value;
+				for(double quantile : QUANTILES){
+					out.append(metric.name).append("{quantile=\"").append(Double.toString(quantile)).append("\"} ").append(Double.toString(histogram.getPercentile(quantile * 100) / 1e9)).append('\n');
+				}
+				out.append(metric.name).append("_sum ").append(Double.toString(histogram.getTotal() / 1e9)).append('\n');
+				out.append(metric.name).append("_count ").append(Long.toString(histogram.getCount())).append('\n');
+			} else{
+				out.append(metric.name).append(metric.labels).append(' ').append(Long.toString(((StripedCounter) metric.value).sum())).append('\n');
+			}
+		}
+	}
+
+	public String toPrometheus(){
+		StringWriter out = new StringWriter();
+		try{
+			writePrometheus(out);
+		} catch(IOException e){
+			throw new AssertionError(e);	//StringWriter doesn't throw
+		}
+		return out.toString();
+	}
+
+	/*
+	 * Registers the metrics with the platform MBean server as net:type=Metrics (or whatever name is given), so they
+	 * show up in JConsole and JMX exporters. Counters and gauges are one attribute each, histograms are four
+	 * (count, p50, p99 and max, in nanoseconds). Metrics made later show up too.
+	 */
+	public ObjectName registerMBean() throws JMException{
+		return registerMBean(new ObjectName("net:type=Metrics"));
+	}
+
+	public ObjectName registerMBean(ObjectName name) throws JMException{
+		MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		if(server.isRegistered(name)){
+			server.unregisterMBean(name);
+		}
+		return server.registerMBean(new MetricsView(), name).getObjectName();
+	}
+
+	private static String escapeLabel(String value){
+		return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+	}
+
+	private static class Metric {
+		final String name;
+		final String help;
+		final Type type;
+		final String labels;	//Already in Prometheus form, empty if there aren't any
+		final Object value;
+
+		Metric(String name, String help, Type type, String labels){
+			this.name = name;
+			this.help = help;
+			this.type = type;
+			this.labels = labels;
+			this.value = (type == Type.SUMMARY ? new LatencyHistogram() : new StripedCounter());
+		}
+
+		String getAttributeName(){
+			return name + labels.replace("\"", "");
+		}
+	}
+
+	//What JMX sees. The attribute list is worked out on every call, since metrics can be added at any time.
+	private class MetricsView implements DynamicMBean {
+		@Override
+		public Object getAttribute(String attribute) throws AttributeNotFoundException{
+			for(Metric metric : metrics.values()){
+				String name = metric.getAttributeName();
+				if(metric.type != Type.SUMMARY){
+					if(name.equals(attribute)){
+						return ((StripedCounter) metric.value).sum();
+					}
+				} else if(attribute.startsWith(name + ".")){
+					LatencyHistogram histogram = (LatencyHistogram) metric.value;
+					String field = attribute.substring(name.length() + 1);
+					if(field.equals("count")){
+						return histogram.getCount();
+					} else if(field.equals("p50")){
+						return histogram.getPercentile(50);
+					} else if(field.equals("p99")){
+						return histogram.getPercentile(99);
+					} else if(field.equals("max")){
+						return histogram.getMax();
+					}
+				}
+			}
+			throw new AttributeNotFoundException(attribute);
+		}
+
+		@Override
+		public AttributeList getAttributes(String[] attributes){
+			AttributeList list = new AttributeList();
+			for(String attribute : attributes){
+				try{
+					list.add(new Attribute(attribute, getAttribute(attribute)));
+				} catch(AttributeNotFoundException e){
+					//Left out, as the interface says
+				}
+			}
+			return list;
+		}
+
+		@Override
+		public void setAttribute(Attribute attribute) throws AttributeNotFoundException{
+			throw new AttributeNotFoundException("Metrics are read only");
+		}
+
+		@Override
+		public AttributeList setAttributes(AttributeList attributes){
+			return new AttributeList();
+		}
+
+		@Override
+		public Object invoke(String action, Object[] params, String[] signature) throws ReflectionException{
+			throw new ReflectionException(new NoSuchMethodException(action));
+		}
+
+		@Override
+		public MBeanInfo getMBeanInfo(){
+			ArrayList<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+			for(Map.Entry<String, Metric> entry : metrics.entrySet()){
+				Metric metric = entry.getValue();
+				String name = metric.getAttributeName();
+				if(metric.type == Type.SUMMARY){
+					for(String field : new String[]{"count", "p50", "p99", "max"}){
+						attributes.add(new MBeanAttributeInfo(name + "." + field, "long", metric.help + (field.equals("count") ? "" : " (" + field + ", ns)"), true, false, false));
+					}
+				} else{
+					attributes.add(new MBeanAttributeInfo(name, "long", metric.help, true, false, false));
+				}
+			}
+
+			return new MBeanInfo(Metrics.class.getName(), "Discovery and control connection metrics", attributes.toArray(new MBeanAttributeInfo[attributes.size()]),
+					null, new MBeanOperationInfo[0], new MBeanNotificationInfo[0]);
+		}
+	}
+}
@@ -0,0 +1,119 @@
+package net;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Pings a streaming server over its control connection at a fixed rate and records the round trip times.
+ * The ping messages don't carry anything to match them up with, but the server answers them in order over one TCP
+ * connection, so the first response belongs to the oldest ping still waiting. If the server stops answering the
+ * oldest pings are written off as lost so the queue can't grow forever.
+ */
+public class PingScheduler implements Runnable {
+	private static final int MAX_OUTSTANDING = 16;	//Pings waiting for a response before the oldest is counted as lost
+
+	private final ControlProtocolHandler connection;
+	private final HostLatencyTable latencyTable;
+	private final ConcurrentLinkedQueue<Long> sendTimes;	//System.nanoTime() of each ping still waiting for a response, oldest first
+	private final AtomicLong sent = new AtomicLong();
+	private final AtomicLong lost = new AtomicLong();
+
+	private ScheduledExecutorService ownExecutor = null;	//Only set if we had to make our own thread
+	private ScheduledFuture<?> task = null;
+
+	public PingScheduler(ControlProtocolHandler connection, HostLatencyTable latencyTable){
+		this.connection = connection;
+		this.latencyTable = latencyTable;
+		this.sendTimes = new ConcurrentLinkedQueue<Long>();
+	}
+
+	//Starts pinging on a thread of our own
+	public synchronized void start(long interval, TimeUnit unit){
+		ownExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory(){
+			@Override
+			public Thread newThread(Runnable runnable){
+				Thread thread = new Thread(runnable, "Ping " + connection.getServer().getHostAddress());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		start(ownExecutor, interval, unit);
+	}
+
+	//Starts pinging on a shared executor
+	public synchronized void start(ScheduledExecutorService executor, long interval, TimeUnit unit){
+		if(task != null){
+			throw new IllegalStateException("The ping scheduler is already running");
+		}
+
+		connection.setPingScheduler(this);
+		task = executor.scheduleAtFixedRate(this, interval, interval, unit);
+	}
+
+	public synchronized void stop(){
+		if(task != null){
+			task.cancel(false);
+			task = null;
+		}
+
+		if(ownExecutor != null){
+			ownExecutor.shutdown();
+			ownExecutor = null;
+		}
+
+		connection.setPingScheduler(null);
+		sendTimes.clear();
+	}
+
+	@Override
+	public void run(){
+		if(!connection.isAuthenticated()){	//The server won't answer anything until we're authenticated
+			return;
+		}
+
+		while(sendTimes.size() >= MAX_OUTSTANDING){
+			if(sendTimes.poll() != null){
+				lost.incrementAndGet();
+			}
+		}
+
+		Long sendTime = System.nanoTime();
+		sendTimes.add(sendTime);	//Before sending, the response can come back before sendPing returns
+
+		try{
+			connection.sendPing();
+			sent.incrementAndGet();
+		} catch(IOException e){
+			sendTimes.remove(sendTime);	//Nothing is coming back for it, left in it would be matched with the next ping's response
+			Log.error("Exception thrown when sending a ping to {}", connection.getServer().getHostAddress(), e);
+		}
+	}
+
+	//Called by the connection's read loop when a ping response (9506) arrives
+	void pingResponseReceived(long receiveTime){
+		Long sendTime = sendTimes.poll();
+
+		if(sendTime != null){	//Null means it was an answer to a ping we already gave up on
+			latencyTable.record(connection.getServer(), receiveTime - sendTime);
+		}
+	}
+
+	public LatencyHistogram getHistogram(){
+		return latencyTable.getHistogram(connection.getServer());
+	}
+
+	public long getSentCount(){
+		return sent.get();
+	}
+
+	public long getLostCount(){
+		return lost.get();
+	}
+}
@@ -0,0 +1,145 @@
+package net;
+
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import net.protobufs.SteammessagesRemoteclientDiscovery.CMsgRemoteClientBroadcastStatus;
+
+/*
+ * A live table of the streaming servers discovery has found, drawn in the terminal with ANSI escape codes.
+ *
+ * Each server gets a row the first time it's heard from and keeps it. Discovery only hands over the status and wakes
+ * the drawing thread, which formats the changed servers' rows and rewrites only the rows whose text changed, in one
+ * write. Servers answer every discovery packet with the same status, so most wakeups draw nothing, and with no packets
+ * coming in the drawing thread is parked and uses no CPU at all.
+ *
+ * Needs a terminal that understands ANSI cursor movement (anything but an old Windows console).
+ */
+public class ServerDashboard implements DiscoveryListener, Runnable {
+	private static final String ESC = "\u001b[";
+	private static final String HEADER = String.format("%-36s %5s %7s %6s %7s %8s", "Host", "Users", "Version", "Locked", "Playing", "RTT");
+	private static final int FIRST_ROW = 3;	//Terminal row of the first server, under the header and its underline
+
+	private final PrintStream out;
+	private final DiscoveryProtocolHandler discovery;	//For round trip times, can be null
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition changed = lock.newCondition();
+	private final HashMap<InetAddress, CMsgRemoteClientBroadcastStatus> statuses = new HashMap<InetAddress, CMsgRemoteClientBroadcastStatus>();	//Guarded by lock
+	private final LinkedHashSet<InetAddress> dirty = new LinkedHashSet<InetAddress>();	//Servers with a status the drawing thread hasn't looked at, guarded by lock
+	private boolean running = true;
+
+	//Only touched by the drawing thread
+	private final HashMap<InetAddress, Integer> rows = new HashMap<InetAddress, Integer>();	//Server to its row, in the order they were first heard from
+	private final ArrayList<String> drawn = new ArrayList<String>();	//What's on the screen in each row
+
+	public ServerDashboard(PrintStream out, DiscoveryProtocolHandler discovery){
+		this.out = out;
+		this.discovery = discovery;
+	}
+
+	@Override
+	public void serverStatusReceived(InetAddress server, CMsgRemoteClientBroadcastStatus previous, CMsgRemoteClientBroadcastStatus status){
+		lock.lock();
+		try{
+			statuses.put(server, status);
+			if(dirty.add(server) && dirty.size() == 1){	//The drawing thread only needs waking once per batch
+				changed.signal();
+			}
+		} finally{
+			lock.unlock();
+		}
+	}
+
+	public void stop(){
+		lock.lock();
+		try{
+			running = false;
+			changed.signal();
+		} finally{
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void run(){
+		out.print(ESC + "2J" + ESC + "H" + HEADER + "\n" + HEADER.replaceAll(".", "-") + "\n");	//Clear the screen once, from then on only rows are redrawn
+		out.flush();
+
+		ArrayList<InetAddress> servers = new ArrayList<InetAddress>();
+		ArrayList<CMsgRemoteClientBroadcastStatus> batch = new ArrayList<CMsgRemoteClientBroadcastStatus>();
+		StringBuilder frame = new StringBuilder();
+
+		while(true){
+			lock.lock();
+			try{
+				while(running && dirty.isEmpty()){
+					changed.awaitUninterruptibly();
+				}
+				if(!running){
+					break;
+				}
+
+				for(InetAddress server : dirty){
+					servers.add(server);
+					batch.add(statuses.get(server));
+				}
+				dirty.clear();
+			} finally{
+				lock.unlock();
+			}
+
+			frame.setLength(0);
+			for(int i = 0; i < servers.size(); i++){
+				drawRow(frame, servers.get(i), batch.get(i));
+			}
+			if(frame.length() > 0){
+				frame.append(ESC).append(FIRST_ROW + drawn.size()).append(";1H");	//Leave the cursor under the table
+				out.print(frame);
+				out.flush();
+			}
+
+			servers.clear();
+			batch.clear();
+		}
+	}
+
+	//Adds the escape codes to rewrite the server's row to the frame, if its text changed
+	private void drawRow(StringBuilder frame, InetAddress server, CMsgRemoteClientBroadcastStatus status){
+		String text = formatRow(server, status);
+
+		Integer row = rows.get(server);
+		if(row == null){
+			row = drawn.size();
+			rows.put(server, row);
+			drawn.add(null);
+		}
+		if(text.equals(drawn.get(row))){
+			return;
+		}
+
+		drawn.set(row, text);
+		frame.append(ESC).append(FIRST_ROW + row).append(";1H").append(text).append(ESC).append('K');	//K clears whatever was left of a longer old row
+	}
+
+	private String formatRow(InetAddress server, CMsgRemoteClientBroadcastStatus status){
+		String host = server.getHostAddress();
+		if(status.hasHostname()){
+			host = status.getHostname() + " (" + host + ")";
+		}
+		if(host.length() > 36){
+			host = host.substring(0, 35) + "~";
+		}
+
+		long roundTrip = (discovery == null ? -1 : discovery.getDiscoveryRoundTrip(server));
+		String rtt = (roundTrip < 0 ? "-" : roundTrip < 10000000 ? String.format("%.1fms", roundTrip / 1e6) : (roundTrip / 1000000) + "ms");	//Whole milliseconds past 10, so jitter doesn't redraw the row every time
+
+		return String.format("%-36s %5d %7d %6s %7s %8s", host, status.getUsersCount(), status.getVersion(),
+				status.getScreenLocked() ? "yes" : "no", status.getGamesRunning() ? "yes" : "no", rtt);
+	}
+}
@@ -1,7 +1,5 @@
 package net;
 
-import java.net.InetAddress;
-
 public class ServerReporter {
 
 	public static void main(String[] args) {
@@ -23,40 +21,22 @@ public class ServerReporter {
 		
 		//Creates a new DiscoveryProtocolHandler, creates a thread for it, and starts the thread
 		DiscoveryProtocolHandler dph = new DiscoveryProtocolHandler(steamID, authID, args[2]);
+		dph.addErrorListener(new ErrorListener(){
+			@Override
+			public void errorOccurred(Object source, Throwable error, boolean stopped){
+				if(stopped){	//Nothing left to report on
+					System.exit(1);
+				}
+			}
+		});
+		
+		//The dashboard redraws when a server's status changes, so the main thread just draws it
+		ServerDashboard dashboard = new ServerDashboard(System.out, dph);
+		dph.addListener(dashboard);
 		Thread dphThread = new Thread(dph);
 		dphThread.start();
 		
-		while(true){
-			clearConsole();
-			
-			//Get the list of Steam streaming servers and print it
-			for(InetAddress address : dph.getServerTable().keySet()){
-				System.out.println(address.toString() + ": ");
-				System.out.println(dph.getServerTable().get(address).toString());
-			}
-			try {
-				Thread.sleep(5000);
-			} catch (InterruptedException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
-		}
-	}
-	
-	public static void clearConsole(){
-	    try{
-	        String os = System.getProperty("os.name");
-
-	        if (os.contains("Windows")){
-	            Runtime.getRuntime().exec("cls");
-	        }
-	        else{
-	            Runtime.getRuntime().exec("clear");
-	        }
-	    }
-	    catch (final Exception e){
-	        //  Handle any exceptions.
-	    }
+		dashboard.run();
 	}
 
 }
@@ -0,0 +1,446 @@
+package net;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.AclEntry;
+import java.nio.file.attribute.AclEntryPermission;
+import java.nio.file.attribute.AclEntryType;
+import java.nio.file.attribute.AclFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/*
+ * The SharedAuth credentials of every account in Steam's userdata folder, kept so we don't have to go through every
+ * localconfig.vdf on each start.
+ *
+ * Each account's result is cached with the path, modification time and size of the file it came from, and saved to a
+ * cache file. A scan checks every account in parallel, and only parses files whose time or size changed since they were
+ * cached, so after the first run a scan is one stat per account. With startWatching() a background thread listens for
+ * changes to the config folders and re-reads just the file that changed, so getCredentials() is always current without
+ * scanning at all.
+ */
+public class SharedAuthCache {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	private static final String LOCALCONFIG = "localconfig.vdf";
+	private static final Set<PosixFilePermission> OWNER_ONLY = PosixFilePermissions.fromString("rw-------");
+
+	private final File userdata;
+	private final File cacheFile;	//Null to only cache in memory
+
+	private final ConcurrentHashMap<String, Credential> credentials = new ConcurrentHashMap<String, Credential>();	//Account ID to what was found in its localconfig
+	private volatile boolean dirty = false;	//True when there's something the cache file doesn't have yet
+
+	private WatchService watcher = null;
+	private Thread watcherThread = null;
+	private final HashMap<WatchKey, String> watchedAccounts = new HashMap<WatchKey, String>();	//Config folder's key to its account ID, only used by the watcher thread
+	private final HashMap<WatchKey, String> newAccounts = new HashMap<WatchKey, String>();	//Account folder's key to its ID, for accounts waiting for their config folder
+
+	public SharedAuthCache(File userdata, File cacheFile){
+		this.userdata = userdata;
+		this.cacheFile = cacheFile;
+
+		if(cacheFile != null){
+			load();
+		}
+	}
+
+	/*
+	 * Brings every account up to date, parsing localconfigs in parallel where they've changed, and saves the cache.
+	 * Returns the account IDs mapped to their credentials. Accounts without a SharedAuth block aren't in it.
+	 */
+	public Map<String, Credential> scan(){
+		String[] accounts = userdata.list();
+		if(accounts == null){
+			return getCredentials();
+		}
+
+		for(String account : credentials.keySet()){	//Accounts that were removed since the last scan
+			if(!new File(userdata, account).isDirectory()){
+				credentials.remove(account);
+				dirty = true;
+			}
+		}
+
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(accounts.length, Runtime.getRuntime().availableProcessors())));
+		try{
+			List<Future<?>> pending = new ArrayList<Future<?>>();
+			for(final String account : accounts){
+				pending.add(pool.submit(new Callable<Void>(){
+					@Override
+					public Void call(){
+						refresh(account, true);
+						return null;
+					}
+				}));
+			}
+
+			for(Future<?> future : pending){
+				try{
+					future.get();
+				} catch(ExecutionException e){
+					Log.warn("Couldn't check an account's localconfig", e.getCause());
+				}
+			}
+		} catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+		} finally{
+			pool.shutdown();
+		}
+
+		save();
+		return getCredentials();
+	}
+
+	//What the cache has right now, without touching the disk
+	public Map<String, Credential> getCredentials(){
+		HashMap<String, Credential> found = new HashMap<String, Credential>();
+		for(Map.Entry<String, Credential> entry : credentials.entrySet()){
+			if(entry.getValue().streamingID != null){
+				found.put(entry.getKey(), entry.getValue());
+			}
+		}
+
+		return found;
+	}
+
+	/*
+	 * Re-reads the account's localconfig if it changed since it was cached. Files without SharedAuth are cached too (with
+	 * null credentials), so unchanged accounts that were never logged in to streaming aren't parsed every time either.
+	 * Scans map the file (see VdfTokenizer.map), the watcher reads it onto the heap so it doesn't keep Steam's
+	 * localconfigs locked on Windows until the next GC.
+	 */
+	private void refresh(String account, boolean map){
+		File localconfig = localconfig(account);
+		if(!localconfig.isFile()){
+			if(credentials.remove(account) != null){
+				dirty = true;
+			}
+			return;
+		}
+
+		long lastModified = localconfig.lastModified();
+		long size = localconfig.length();
+
+		Credential cached = credentials.get(account);
+		if(cached != null && cached.lastModified == lastModified && cached.size == size){
+			return;
+		}
+
+		String[] sharedAuth;
+		try{
+			sharedAuth = AuthKeyFinder.findSharedAuth(map ? VdfTokenizer.map(localconfig) : VdfTokenizer.read(localconfig));
+		} catch(IOException e){
+			Log.warn("Error when parsing file: {}", localconfig, e);
+			return;
+		}
+
+		credentials.put(account, sharedAuth == null ? new Credential(null, null, lastModified, size) : new Credential(sharedAuth[0], sharedAuth[1], lastModified, size));
+		dirty = true;
+	}
+
+	private File localconfig(String account){
+		return new File(new File(new File(userdata, account), "config"), LOCALCONFIG);
+	}
+
+	/*
+	 * Starts a daemon thread that re-reads localconfig files as Steam changes them, and picks up new accounts. Changes
+	 * are saved to the cache file as they come in.
+	 */
+	public synchronized void startWatching() throws IOException{
+		if(watcher != null){
+			return;
+		}
+
+		watcher = FileSystems.getDefault().newWatchService();
+		userdata.toPath().register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE);
+
+		String[] accounts = userdata.list();
+		if(accounts != null){
+			for(String account : accounts){
+				watchAccount(account);
+			}
+		}
+
+		watcherThread = new Thread(new Runnable(){
+			@Override
+			public void run(){
+				watch();
+			}
+		}, "SharedAuth watcher");
+		watcherThread.setDaemon(true);
+		watcherThread.start();
+	}
+
+	public synchronized void stopWatching(){
+		if(watcher == null){
+			return;
+		}
+
+		try{
+			watcher.close();	//Wakes the thread up with a ClosedWatchServiceException
+		} catch(IOException e){
+			Log.warn("Exception thrown when closing the localconfig watcher", e);
+		}
+		watcher = null;
+		watcherThread = null;
+	}
+
+	/*
+	 * Steam makes a new account's folder before its config folder, so until there is one the account folder is watched
+	 * instead, and the config folder is watched once it shows up.
+	 */
+	private void watchAccount(String account){
+		File folder = new File(userdata, account);
+		File config = new File(folder, "config");
+
+		try{
+			if(!config.isDirectory()){
+				if(!folder.isDirectory()){
+					return;
+				}
+
+				WatchKey key = folder.toPath().register(watcher, StandardWatchEventKinds.ENTRY_CREATE);
+				synchronized(watchedAccounts){
+					newAccounts.put(key, account);
+				}
+				if(!config.isDirectory()){
+					return;
+				}
+
+				//It was made while we were registering, so we might not hear about it
+				key.cancel();
+				synchronized(watchedAccounts){
+					newAccounts.remove(key);
+				}
+			}
+
+			WatchKey key = config.toPath().register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY, StandardWatchEventKinds.ENTRY_DELETE);
+			synchronized(watchedAccounts){
+				watchedAccounts.put(key, account);
+			}
+		} catch(IOException e){
+			Log.warn("Couldn't watch {} for changes", folder, e);
+		}
+	}
+
+	private void watch(){
+		WatchService service;
+		synchronized(this){
+			service = watcher;
+		}
+		if(service == null){
+			return;
+		}
+
+		try{
+			while(true){
+				WatchKey key = service.take();
+				String account;
+				String newAccount;
+				synchronized(watchedAccounts){
+					account = watchedAccounts.get(key);
+					newAccount = newAccounts.get(key);
+				}
+
+				if(newAccount != null){
+					key.pollEvents();
+					if(new File(new File(userdata, newAccount), "config").isDirectory()){	//Watch that instead from now on
+						key.cancel();
+						synchronized(watchedAccounts){
+							newAccounts.remove(key);
+						}
+						watchAccount(newAccount);
+						refresh(newAccount, false);	//localconfig may already be there
+					}
+				} else{
+					for(WatchEvent<?> event : key.pollEvents()){
+						try{
+							handleEvent(account, event);
+						} catch(RuntimeException e){	//The next change reads it again
+							Log.warn("Exception thrown when re-reading a changed localconfig, still watching", e);
+						}
+					}
+				}
+
+				if(!key.reset()){	//The folder is gone, or we stopped watching it
+					synchronized(watchedAccounts){
+						watchedAccounts.remove(key);
+						newAccounts.remove(key);
+					}
+				}
+
+				save();
+			}
+		} catch(InterruptedException e){
+			//Told to stop
+		} catch(ClosedWatchServiceException e){
+			//stopWatching() was called
+		}
+	}
+
+	private void handleEvent(String account, WatchEvent<?> event){
+		if(event.kind() == StandardWatchEventKinds.OVERFLOW){	//Missed some, check everything
+			for(String known : credentials.keySet()){
+				refresh(known, false);
+			}
+			return;
+		}
+
+		String name = ((Path) event.context()).toString();
+		if(account == null){	//Something changed in userdata itself
+			if(event.kind() == StandardWatchEventKinds.ENTRY_CREATE){
+				watchAccount(name);
+			}
+			refresh(name, false);
+		} else if(name.equals(LOCALCONFIG)){
+			refresh(account, false);
+		}
+	}
+
+	//Cache lines look like "<account ID>\t<last modified>\t<size>\t<streaming ID>\t<AuthData>", with the last two empty if there's no SharedAuth
+	private void load(){
+		if(!cacheFile.isFile()){
+			return;
+		}
+
+		try{
+			restrictToOwner(cacheFile.toPath());	//Caches from before it was kept private
+		} catch(IOException e){
+			Log.warn("Couldn't make {} private to this user", cacheFile, e);
+		}
+
+		try(BufferedReader reader = Files.newBufferedReader(cacheFile.toPath(), UTF8)){
+			String line;
+			while((line = reader.readLine()) != null){
+				String[] parts = line.split("\t", -1);
+				if(parts.length != 5){
+					continue;
+				}
+
+				try{
+					credentials.put(parts[0], new Credential(parts[3].isEmpty() ? null : parts[3], parts[4].isEmpty() ? null : parts[4],
+							Long.parseLong(parts[1]), Long.parseLong(parts[2])));
+				} catch(NumberFormatException e){
+					//A damaged line, that account just gets parsed again
+				}
+			}
+		} catch(IOException e){
+			Log.warn("Couldn't read the SharedAuth cache, starting empty", e);
+			credentials.clear();
+		}
+	}
+
+	/*
+	 * Writes to a temporary file first and moves it into place, so a crash never leaves half a cache behind. The cache
+	 * has every account's AuthData in it, so the temporary file is made readable by this user only before anything is
+	 * written, and the move keeps that.
+	 */
+	private synchronized void save(){
+		if(cacheFile == null || !dirty){
+			return;
+		}
+		dirty = false;
+
+		StringBuilder builder = new StringBuilder();
+		for(Map.Entry<String, Credential> entry : credentials.entrySet()){
+			Credential credential = entry.getValue();
+			builder.append(entry.getKey()).append('\t').append(credential.lastModified).append('\t').append(credential.size).append('\t')
+					.append(credential.streamingID == null ? "" : credential.streamingID).append('\t')
+					.append(credential.authData == null ? "" : credential.authData).append('\n');
+		}
+
+		File temporary = new File(cacheFile.getPath() + ".tmp");
+		try{
+			File parent = cacheFile.getAbsoluteFile().getParentFile();
+			if(parent != null && !parent.isDirectory()){
+				parent.mkdirs();
+			}
+			createPrivate(temporary.toPath());
+			Files.write(temporary.toPath(), builder.toString().getBytes(UTF8));
+			Files.move(temporary.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch(IOException e){
+			Log.warn("Couldn't write the SharedAuth cache to {}", cacheFile, e);
+			temporary.delete();
+			dirty = true;
+		}
+	}
+
+	private static void createPrivate(Path path) throws IOException{
+		Files.deleteIfExists(path);	//A leftover from a crash could have any permissions
+		if(path.getFileSystem().supportedFileAttributeViews().contains("posix")){
+			Files.createFile(path, PosixFilePermissions.asFileAttribute(OWNER_ONLY));
+		} else{
+			Files.createFile(path);	//Empty until the ACL is set
+			restrictToOwner(path);
+		}
+	}
+
+	//rw------- where there are POSIX permissions, an ACL with just the owner on Windows
+	private static void restrictToOwner(Path path) throws IOException{
+		if(path.getFileSystem().supportedFileAttributeViews().contains("posix")){
+			Files.setPosixFilePermissions(path, OWNER_ONLY);
+			return;
+		}
+
+		AclFileAttributeView view = Files.getFileAttributeView(path, AclFileAttributeView.class);
+		if(view != null){
+			AclEntry owner = AclEntry.newBuilder().setType(AclEntryType.ALLOW).setPrincipal(Files.getOwner(path)).setPermissions(EnumSet.allOf(AclEntryPermission.class)).build();
+			view.setAcl(Collections.singletonList(owner));
+		}
+	}
+
+	/*
+	 * What one account's localconfig had in it, and the file's time and size when it was read. streamingID and authData
+	 * are null if it had no SharedAuth block.
+	 */
+	public static class Credential {
+		private final String streamingID;
+		private final String authData;
+		private final long lastModified;
+		private final long size;
+
+		Credential(String streamingID, String authData, long lastModified, long size){
+			this.streamingID = streamingID;
+			this.authData = authData;
+			this.lastModified = lastModified;
+			this.size = size;
+		}
+
+		public String getStreamingID(){
+			return streamingID;
+		}
+
+		public String getAuthData(){
+			return authData;
+		}
+
+		@Override
+		public String toString(){
+			return streamingID + " " + authData;
+		}
+	}
+}
@@ -0,0 +1,145 @@
+package net;
+
+import java.net.InetAddress;
+
+import com.google.protobuf.ByteString;
+
+import net.protobufs.SteammessagesRemoteclient.CMsgRemoteClientStartStreamResponse;
+
+/*
+ * One stream we asked a server to start, from the request (9503) through the server's answer (9504) to the end of the
+ * stream. Sessions are created and moved along by a StreamSessionRegistry. Everything here can be read from any thread.
+ */
+public class StreamSession {
+	public enum State {
+		REQUESTED,	//9503 sent, waiting for the server to answer
+		LAUNCHED,	//The server started the stream, see getStreamPort and getAuthToken
+		FAILED,	//The server refused, or the connection dropped before it answered
+		ENDED	//The stream was running and has finished
+	}
+
+	private final long id;	//Unique within the registry, the only key a session has before it's launched
+	private final InetAddress server;
+	private final int appID;	//-1 if the server started a stream we didn't ask for
+	private final LaunchTimeline timeline;	//Where the time went getting this stream launched
+
+	private volatile State state = State.REQUESTED;
+	private volatile CMsgRemoteClientStartStreamResponse response = null;
+
+	//System.nanoTime() of each state change, 0 if it hasn't happened
+	private final long requestedTime;
+	private volatile long launchedTime = 0;
+	private volatile long failedTime = 0;
+	private volatile long endedTime = 0;
+
+	StreamSession(long id, InetAddress server, int appID, long requestedTime, LaunchTimeline timeline){
+		this.id = id;
+		this.server = server;
+		this.appID = appID;
+		this.requestedTime = requestedTime;
+		this.timeline = timeline;
+	}
+
+	//Moves the session to a new state, returns the old one or null if the session had already finished
+	synchronized State transition(State next, long time){
+		State previous = state;
+		if(previous == State.FAILED || previous == State.ENDED){
+			return null;
+		}
+
+		switch(next){
+			case LAUNCHED:
+				launchedTime = time;
+				break;
+			case FAILED:
+				failedTime = time;
+				break;
+			case ENDED:
+				endedTime = time;
+				break;
+			default:
+				break;
+		}
+
+		state = next;
+		return previous;
+	}
+
+	void setResponse(CMsgRemoteClientStartStreamResponse response){
+		this.response = response;
+	}
+
+	public long getID(){
+		return id;
+	}
+
+	public InetAddress getServer(){
+		return server;
+	}
+
+	public int getAppID(){
+		return appID;
+	}
+
+	public State getState(){
+		return state;
+	}
+
+	//True while the stream is requested or running
+	public boolean isActive(){
+		State current = state;
+		return current == State.REQUESTED || current == State.LAUNCHED;
+	}
+
+	//The server's answer, null until it sends one
+	public CMsgRemoteClientStartStreamResponse getResponse(){
+		return response;
+	}
+
+	//The UDP port the stream runs on, 0 until launched
+	public int getStreamPort(){
+		CMsgRemoteClientStartStreamResponse current = response;
+		return current == null ? 0 : current.getStreamPort();
+	}
+
+	public ByteString getAuthToken(){
+		CMsgRemoteClientStartStreamResponse current = response;
+		return current == null ? ByteString.EMPTY : current.getAuthToken();
+	}
+
+	//The server's e_launch_result, -1 until it answers
+	public int getLaunchResult(){
+		CMsgRemoteClientStartStreamResponse current = response;
+		return current == null ? -1 : current.getELaunchResult();
+	}
+
+	public LaunchTimeline getTimeline(){
+		return timeline;
+	}
+
+	public long getRequestedTime(){
+		return requestedTime;
+	}
+
+	public long getLaunchedTime(){
+		return launchedTime;
+	}
+
+	public long getFailedTime(){
+		return failedTime;
+	}
+
+	public long getEndedTime(){
+		return endedTime;
+	}
+
+	//Nanoseconds from sending 9503 to the stream being launched, -1 if it wasn't
+	public long getLaunchLatency(){
+		return launchedTime == 0 ? -1 : launchedTime - requestedTime;
+	}
+
+	@Override
+	public String toString(){
+		return "Stream " + id + " of app " + appID + " on " + server.getHostAddress() + " (" + state + ")";
+	}
+}
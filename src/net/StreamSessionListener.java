@@ -0,0 +1,10 @@
+package net;
+
+/*
+ * Gets told every time a stream session changes state in a StreamSessionRegistry.
+ * Called from whichever thread made the change (usually a control connection's dispatcher), so keep it quick.
+ */
+public interface StreamSessionListener {
+	//previous is null when the session has just been created
+	void sessionStateChanged(StreamSession session, StreamSession.State previous);
+}
@@ -0,0 +1,303 @@
+package net;
+
+import java.net.InetAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.protobuf.ByteString;
+
+import net.protobufs.SteammessagesRemoteclient.CMsgRemoteClientStartStreamResponse;
+
+/*
+ * Every stream session we know about, on every server. Replaces the old stream table, which only had room for one
+ * stream per server and was read and written from different threads without any locking.
+ *
+ * A session starts out REQUESTED when we send 9503. The server's 9504 doesn't say which request it answers, but it
+ * answers them in order, so it goes to the oldest request still waiting on that connection. Requests wait per
+ * connection rather than per server, since the registry is shared and there can be more than one connection to a server. Once a stream is launched it is
+ * also findable by server, stream port and auth token, which is what the streaming side of things knows it by.
+ *
+ * Listeners hear about every state change, so nothing has to poll to find out a stream came up or went away.
+ */
+public class StreamSessionRegistry {
+	private static final StreamSessionRegistry sharedRegistry = new StreamSessionRegistry();
+
+	private final AtomicLong nextID = new AtomicLong(1);
+	private final ConcurrentHashMap<Long, StreamSession> sessions = new ConcurrentHashMap<Long, StreamSession>();
+	private final ConcurrentHashMap<Key, StreamSession> launched = new ConcurrentHashMap<Key, StreamSession>();
+	private final ConcurrentHashMap<Object, Pending> pending = new ConcurrentHashMap<Object, Pending>();	//REQUESTED sessions per connection. Only connections with requests waiting are in it.
+	private final CopyOnWriteArrayList<StreamSessionListener> listeners = new CopyOnWriteArrayList<StreamSessionListener>();
+
+	//The registry every ControlProtocolHandler uses unless it's given another one
+	public static StreamSessionRegistry getSharedRegistry(){
+		return sharedRegistry;
+	}
+
+	//A 9503 for the app is about to be sent to the server on the connection (whatever object stands for it, usually the ControlProtocolHandler)
+	public StreamSession requested(Object connection, InetAddress server, int appID){
+		return requested(connection, server, appID, new LaunchTimeline(server));
+	}
+
+	//Same, carrying on from the connection's timeline (see ControlProtocolHandler.getTimeline)
+	public StreamSession requested(Object connection, InetAddress server, int appID, LaunchTimeline connectionTimeline){
+		long now = System.nanoTime();
+		LaunchTimeline timeline = connectionTimeline.copy(appID);
+		timeline.begin(LaunchStats.Stage.START_STREAM_SEND, now);
+
+		StreamSession session = new StreamSession(nextID.getAndIncrement(), server, appID, now, timeline);
+		sessions.put(session.getID(), session);
+		boolean queued = addPending(connection, session);
+
+		notifyListeners(session, null);
+
+		if(!queued){	//failPending came in between, so nothing will answer this one
+			transition(session, StreamSession.State.FAILED, System.nanoTime());
+		}
+		return session;
+	}
+
+	//The server answered with a 9504 on the connection. Returns the session it answers.
+	public StreamSession responseReceived(Object connection, InetAddress server, CMsgRemoteClientStartStreamResponse response){
+		long now = System.nanoTime();
+		StreamSession session = null;
+		Pending waiting = pending.get(connection);
+		if(waiting != null){
+			synchronized(waiting){
+				session = waiting.sessions.poll();
+				if(waiting.sessions.isEmpty()){
+					waiting.removed = true;
+					pending.remove(connection, waiting);
+				}
+			}
+		}
+
+		if(session == null){	//Nothing waiting, so it's one we didn't ask for (or one we gave up on). Still worth knowing about.
+			session = new StreamSession(nextID.getAndIncrement(), server, -1, now, new LaunchTimeline(server));
+			sessions.put(session.getID(), session);
+			notifyListeners(session, null);
+		}
+
+		session.setResponse(response);
+		session.getTimeline().end(LaunchStats.Stage.START_STREAM_RESPONSE, now);
+
+		if(response.getELaunchResult() != 1){
+			transition(session, StreamSession.State.FAILED, now);
+			return session;
+		}
+
+		StreamSession replaced = launched.put(new Key(server, response.getStreamPort(), response.getAuthToken()), session);
+		if(replaced != null){	//The server handed out the same port and token again, so the old stream must be over
+			transition(replaced, StreamSession.State.ENDED, now);
+		}
+
+		transition(session, StreamSession.State.LAUNCHED, now);
+		return session;
+	}
+
+	//The 9503 has been written to the connection, now it's up to the server
+	public void sent(StreamSession session){
+		long now = System.nanoTime();
+		session.getTimeline().end(LaunchStats.Stage.START_STREAM_SEND, now);
+		session.getTimeline().begin(LaunchStats.Stage.START_STREAM_RESPONSE, now);
+	}
+
+	//The request couldn't be sent, or the server won't answer it any more
+	public void failed(StreamSession session){
+		for(Map.Entry<Object, Pending> entry : pending.entrySet()){
+			Pending waiting = entry.getValue();
+			synchronized(waiting){
+				if(waiting.sessions.remove(session)){
+					if(waiting.sessions.isEmpty()){	//So a connection that's gone isn't kept around by its empty queue
+						waiting.removed = true;
+						pending.remove(entry.getKey(), waiting);
+					}
+					break;
+				}
+			}
+		}
+		transition(session, StreamSession.State.FAILED, System.nanoTime());
+	}
+
+	//Fails every request still waiting on the connection, for when it drops. The connection is forgotten.
+	public void failPending(Object connection){
+		Pending waiting = pending.remove(connection);
+		if(waiting == null){
+			return;
+		}
+
+		List<StreamSession> failed;
+		synchronized(waiting){
+			waiting.removed = true;
+			waiting.closed = true;
+			failed = new ArrayList<StreamSession>(waiting.sessions);
+			waiting.sessions.clear();
+		}
+
+		for(StreamSession session : failed){
+			transition(session, StreamSession.State.FAILED, System.nanoTime());
+		}
+	}
+
+	//The stream has finished
+	public void ended(StreamSession session){
+		launched.remove(new Key(session.getServer(), session.getStreamPort(), session.getAuthToken()), session);
+		transition(session, StreamSession.State.ENDED, System.nanoTime());
+	}
+
+	//Forgets sessions that have finished. Active ones are kept.
+	public void purgeFinished(){
+		for(StreamSession session : sessions.values()){
+			if(!session.isActive()){
+				sessions.remove(session.getID(), session);
+			}
+		}
+	}
+
+	public StreamSession get(long id){
+		return sessions.get(id);
+	}
+
+	//The launched session on the server with this stream port and auth token, or null
+	public StreamSession find(InetAddress server, int streamPort, ByteString authToken){
+		return launched.get(new Key(server, streamPort, authToken));
+	}
+
+	//Every session on the server, active or not, oldest first
+	public List<StreamSession> getSessions(InetAddress server){
+		List<StreamSession> result = new ArrayList<StreamSession>();
+
+		for(StreamSession session : sessions.values()){
+			if(session.getServer().equals(server)){
+				result.add(session);
+			}
+		}
+
+		sortByID(result);
+		return result;
+	}
+
+	//Every requested or running session on every server, oldest first
+	public List<StreamSession> getActiveSessions(){
+		List<StreamSession> result = new ArrayList<StreamSession>();
+
+		for(StreamSession session : sessions.values()){
+			if(session.isActive()){
+				result.add(session);
+			}
+		}
+
+		sortByID(result);
+		return result;
+	}
+
+	//The newest launched session on the server, or null. What the old stream table used to hold.
+	public StreamSession getLatestLaunched(InetAddress server){
+		StreamSession latest = null;
+
+		for(StreamSession session : launched.values()){
+			if(session.getServer().equals(server) && session.getState() == StreamSession.State.LAUNCHED && (latest == null || session.getID() > latest.getID())){
+				latest = session;
+			}
+		}
+
+		return latest;
+	}
+
+	public void addListener(StreamSessionListener listener){
+		listeners.add(listener);
+	}
+
+	public void removeListener(StreamSessionListener listener){
+		listeners.remove(listener);
+	}
+
+	private void transition(StreamSession session, StreamSession.State next, long time){
+		StreamSession.State previous = session.transition(next, time);
+
+		if(previous != null){	//Null means it had already failed or ended, nothing changed
+			notifyListeners(session, previous);
+		}
+	}
+
+	private void notifyListeners(StreamSession session, StreamSession.State previous){
+		for(StreamSessionListener listener : listeners){
+			listener.sessionStateChanged(session, previous);
+		}
+	}
+
+	//Queues the session on the connection. Returns false if failPending got to the connection's queue first.
+	private boolean addPending(Object connection, StreamSession session){
+		while(true){
+			Pending waiting = pending.get(connection);
+			if(waiting == null){
+				Pending created = new Pending();
+				waiting = pending.putIfAbsent(connection, created);
+				if(waiting == null){
+					waiting = created;
+				}
+			}
+
+			synchronized(waiting){
+				if(!waiting.removed){
+					waiting.sessions.add(session);
+					return true;
+				}
+				if(waiting.closed){
+					return false;
+				}
+			}
+			//failed() or responseReceived emptied and dropped it after we found it, make a new one
+		}
+	}
+
+	private static void sortByID(List<StreamSession> list){
+		Collections.sort(list, new Comparator<StreamSession>(){
+			@Override
+			public int compare(StreamSession a, StreamSession b){
+				return Long.compare(a.getID(), b.getID());	//IDs go up as sessions are made
+			}
+		});
+	}
+
+	//The requests waiting on one connection, oldest first. Guarded by itself. Once removed from pending it's never used again.
+	private static class Pending {
+		final ArrayDeque<StreamSession> sessions = new ArrayDeque<StreamSession>();
+		boolean removed = false;
+		boolean closed = false;	//Removed by failPending, the connection is gone
+	}
+
+	//What a launched stream is known by
+	private static class Key {
+		private final InetAddress server;
+		private final int streamPort;
+		private final ByteString authToken;
+
+		Key(InetAddress server, int streamPort, ByteString authToken){
+			this.server = server;
+			this.streamPort = streamPort;
+			this.authToken = authToken;
+		}
+
+		@Override
+		public boolean equals(Object other){
+			if(!(other instanceof Key)){
+				return false;
+			}
+
+			Key key = (Key) other;
+			return streamPort == key.streamPort && server.equals(key.server) && authToken.equals(key.authToken);
+		}
+
+		@Override
+		public int hashCode(){
+			return (server.hashCode() * 31 + streamPort) * 31 + authToken.hashCode();
+		}
+	}
+}
@@ -0,0 +1,192 @@
+package net;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import net.protobufs.SteammessagesRemoteclientDiscovery.CMsgRemoteClientBroadcastStatus;
+
+/*
+ * One logical streaming client, for programs that host clients rather than run one from main(). It has its own
+ * AuthData, its own control connections (one supervised connection per server, made when it's first needed) and its
+ * own stream sessions, and runs on its group's threads, discovery and caches (see StreamingClientGroup).
+ *
+ * Connection errors go to the client's ErrorListeners and then the group's: a dropped connection is reported and
+ * reconnected, and a server that can't be reached after the supervisor gives up is reported with stopped set.
+ */
+public class StreamingClient implements ControlConnectionListener {
+	private static final int MAX_ATTEMPTS = 8;	//Failed connection attempts in a row before a server is given up on
+	private static final long PING_INTERVAL = 5;	//Seconds
+
+	private final StreamingClientGroup group;
+	private final String authData;
+	private final StreamSessionRegistry sessionRegistry = new StreamSessionRegistry();	//So clients only see their own streams
+	private final ConcurrentHashMap<InetAddress, SupervisedConnection> connections = new ConcurrentHashMap<InetAddress, SupervisedConnection>();
+	private final CopyOnWriteArrayList<ErrorListener> errorListeners = new CopyOnWriteArrayList<ErrorListener>();
+	private volatile boolean closed = false;
+
+	StreamingClient(StreamingClientGroup group, String authData){
+		this.group = group;
+		this.authData = authData;
+	}
+
+	/*
+	 * Connects to the server if we aren't already, and returns the connection. It might not be authenticated yet, see
+	 * ControlProtocolHandler.awaitAuthenticated. The server has to have been seen by discovery.
+	 */
+	public ControlProtocolHandler connect(InetAddress server) throws IOException{
+		if(closed){
+			throw new IOException("The client has been closed");
+		}
+
+		SupervisedConnection supervised = connections.get(server);
+		if(supervised != null){
+			return supervised.getConnection();
+		}
+
+		ControlProtocolHandler connection = new ControlProtocolHandler(server, group.getStatus(server), authData);
+		connection.setSessionCache(group.getSessionCache());
+		connection.setSessionRegistry(sessionRegistry);
+		connection.setThreadFactory(group.getWriterThreads());
+		connection.addConnectionListener(this);
+
+		supervised = new SupervisedConnection(connection);
+		supervised.setMaxAttempts(MAX_ATTEMPTS);
+		supervised.setPingInterval(group.getLatencyTable(), group.getScheduler(), PING_INTERVAL, TimeUnit.SECONDS);
+
+		SupervisedConnection existing = connections.putIfAbsent(server, supervised);
+		if(existing != null){	//Someone else connected at the same time
+			return existing.getConnection();
+		}
+		if(closed || group.isShutDown()){	//close() or the group's shutdown() may have gone through the connections before ours was in them
+			connections.remove(server, supervised);
+			supervised.stop();
+			throw new IOException(closed ? "The client has been closed" : "The client's group has been shut down");
+		}
+
+		final SupervisedConnection started = supervised;
+		try{
+			group.getThreads().execute(new Runnable(){
+				@Override
+				public void run(){
+					supervise(started);
+				}
+			});
+		} catch(RejectedExecutionException e){	//The group is shutting down
+			connections.remove(server, supervised);
+			throw new IOException("The client's group has been shut down", e);
+		}
+
+		return supervised.getConnection();
+	}
+
+	//Runs the supervisor until it's stopped or gives up, and reports it if it gave up
+	private void supervise(SupervisedConnection supervised){
+		supervised.run();
+
+		ControlProtocolHandler last = supervised.getConnection();
+		connections.remove(last.getServer(), supervised);
+
+		if(!closed && !supervised.isStopped()){
+			IOException failure = last.getFailure();
+			notifyError(last, failure != null ? failure : new IOException("Couldn't connect to " + last.getServer().getHostAddress()), true);
+		}
+	}
+
+	/*
+	 * Starts the app streaming from the server, connecting first if we need to. Waits up to the timeout for the
+	 * connection to be authenticated, the session says how the launch itself goes.
+	 */
+	public StreamSession startStream(InetAddress server, int appID, int maxXResolution, int maxYResolution, long timeout, TimeUnit unit) throws IOException{
+		ControlProtocolHandler connection = connect(server);
+
+		try{
+			if(!connection.awaitAuthenticated(timeout, unit)){
+				throw new IOException("Timed out waiting for " + server.getHostAddress() + " to accept our authentication");
+			}
+		} catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for " + server.getHostAddress(), e);
+		}
+
+		return connection.startStream(appID, maxXResolution, maxYResolution);
+	}
+
+	//Closes the connection to the server, if there is one
+	public void disconnect(InetAddress server){
+		SupervisedConnection supervised = connections.remove(server);
+		if(supervised != null){
+			supervised.stop();
+		}
+	}
+
+	//Closes every connection. The client can't be used after this, but the group and its other clients carry on.
+	public void close(){
+		closed = true;
+
+		for(SupervisedConnection supervised : connections.values()){
+			supervised.stop();
+		}
+		connections.clear();
+
+		group.removeClient(this);
+	}
+
+	@Override
+	public void authenticated(ControlProtocolHandler connection){
+	}
+
+	@Override
+	public void disconnected(ControlProtocolHandler connection, IOException cause){
+		if(cause != null && !closed){	//The supervisor reconnects, this is just so the host program knows
+			notifyError(connection, cause, false);
+		}
+	}
+
+	private void notifyError(Object source, Throwable error, boolean stopped){
+		for(ErrorListener listener : errorListeners){
+			try{
+				listener.errorOccurred(source, error, stopped);
+			} catch(RuntimeException e){
+				Log.error("Exception thrown by an error listener", e);
+			}
+		}
+
+		group.notifyError(source, error, stopped);
+	}
+
+	public void addErrorListener(ErrorListener listener){
+		errorListeners.add(listener);
+	}
+
+	public void removeErrorListener(ErrorListener listener){
+		errorListeners.remove(listener);
+	}
+
+	//The current connection to the server, or null if we aren't connected
+	public ControlProtocolHandler getConnection(InetAddress server){
+		SupervisedConnection supervised = connections.get(server);
+		return (supervised == null ? null : supervised.getConnection());
+	}
+
+	//Every server the group's discovery has heard from
+	public Map<InetAddress, CMsgRemoteClientBroadcastStatus> getServers(){
+		return group.getServers();
+	}
+
+	public StreamSessionRegistry getSessionRegistry(){
+		return sessionRegistry;
+	}
+
+	public StreamingClientGroup getGroup(){
+		return group;
+	}
+
+	public boolean isClosed(){
+		return closed;
+	}
+}
@@ -0,0 +1,221 @@
+package net;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import net.protobufs.SteammessagesRemoteclientDiscovery.CMsgRemoteClientBroadcastStatus;
+
+/*
+ * The shared half of hosting streaming clients inside another program. One group owns the threads, the discovery
+ * socket and the caches, and any number of StreamingClients (one per account, or per whatever the host program needs)
+ * run on top of it, so a service with a hundred clients still has one discovery thread and one UDP socket.
+ *
+ * The group owns:
+ * 	- discovery. There can only be one per machine anyway, it needs the fixed port 27036. It advertises the account the
+ * 		group was made with, and every client sees every server it hears about.
+ * 	- a pool of daemon threads that connections (and discovery) block on. The TLS library only does blocking IO, so
+ * 		each open connection still takes a thread while it's open, but they come from here instead of each caller. With
+ * 		ThreadMode.VIRTUAL those are virtual threads.
+ * 	- a scheduler for pings, so there's no thread per connection just for that.
+ * 	- the TLS session cache (kept per AuthData, so clients only resume their own sessions) and the latency table.
+ * Control messages are handled on the dispatchers' shared pool (see ControlDispatcher.getSharedExecutor).
+ *
+ * Nothing in here or in the clients calls System.exit. Errors go to ErrorListeners, and shutdown() stops everything and
+ * waits for the threads to finish.
+ */
+public class StreamingClientGroup implements DiscoveryListener, ErrorListener {
+	private final DiscoveryProtocolHandler discovery;
+	private final ExecutorService threads;
+	private final ScheduledExecutorService scheduler;
+	private final boolean ownsExecutors;	//False if the caller gave us their executors, then shutting them down is up to them
+	private final ThreadFactory writerThreads;	//For each connection's writer thread, null for plain platform threads
+
+	private final TlsSessionCache sessionCache = new TlsSessionCache();
+	private final HostLatencyTable latencyTable = new HostLatencyTable();
+	private final ConcurrentHashMap<InetAddress, CMsgRemoteClientBroadcastStatus> servers = new ConcurrentHashMap<InetAddress, CMsgRemoteClientBroadcastStatus>();
+	private final CopyOnWriteArrayList<StreamingClient> clients = new CopyOnWriteArrayList<StreamingClient>();
+	private final CopyOnWriteArrayList<ErrorListener> errorListeners = new CopyOnWriteArrayList<ErrorListener>();
+
+	private volatile boolean started = false;
+	private volatile boolean shutDown = false;
+
+	public StreamingClientGroup(long steamID, int authID, long clientID, String localIP){
+		this(steamID, authID, clientID, localIP, ThreadMode.PLATFORM);
+	}
+
+	/*
+	 * With ThreadMode.VIRTUAL every connection's read loop and writer, and discovery, run on virtual threads, so open
+	 * connections cost a few KB of heap each instead of two kernel threads. Falls back to platform threads before Java 21.
+	 */
+	public StreamingClientGroup(long steamID, int authID, long clientID, String localIP, ThreadMode mode){
+		this(steamID, authID, clientID, localIP, mode.newExecutor("Streaming client "), newScheduler(), true,
+				mode.resolve() == ThreadMode.VIRTUAL ? mode.newThreadFactory("Control writer ") : null);
+	}
+
+	//Runs everything on the caller's executors. They're left running on shutdown().
+	public StreamingClientGroup(long steamID, int authID, long clientID, String localIP, ExecutorService threads, ScheduledExecutorService scheduler){
+		this(steamID, authID, clientID, localIP, threads, scheduler, false, null);
+	}
+
+	private StreamingClientGroup(long steamID, int authID, long clientID, String localIP, ExecutorService threads, ScheduledExecutorService scheduler, boolean ownsExecutors, ThreadFactory writerThreads){
+		this.threads = threads;
+		this.scheduler = scheduler;
+		this.ownsExecutors = ownsExecutors;
+		this.writerThreads = writerThreads;
+
+		this.discovery = new DiscoveryProtocolHandler(steamID, authID, clientID, localIP);
+		discovery.addListener(this);
+		discovery.addErrorListener(this);
+	}
+
+	private static ScheduledExecutorService newScheduler(){
+		return Executors.newScheduledThreadPool(1, new ThreadFactory(){
+			@Override
+			public Thread newThread(Runnable runnable){
+				Thread thread = new Thread(runnable, "Streaming client scheduler");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	//Starts discovery. Clients can be made before or after.
+	public synchronized void start(){
+		if(shutDown){
+			throw new IllegalStateException("The group has been shut down");
+		}
+		if(!started){
+			started = true;
+			threads.execute(discovery);
+		}
+	}
+
+	//A new logical client using the account's AuthData (see AuthKeyFinder) for its connections
+	public StreamingClient newClient(String authData){
+		if(shutDown){
+			throw new IllegalStateException("The group has been shut down");
+		}
+
+		StreamingClient client = new StreamingClient(this, authData);
+		clients.add(client);
+		return client;
+	}
+
+	/*
+	 * Closes every client, stops discovery and waits up to the timeout for the threads to finish. Returns false if
+	 * some were still running when it ran out.
+	 */
+	public boolean shutdown(long timeout, TimeUnit unit) throws InterruptedException{
+		shutDown = true;
+
+		for(StreamingClient client : clients){
+			client.close();
+		}
+		clients.clear();
+		discovery.stop();
+
+		if(!ownsExecutors){
+			return true;
+		}
+
+		threads.shutdown();
+		scheduler.shutdown();
+
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		return threads.awaitTermination(timeout, unit) && scheduler.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+	}
+
+	public boolean isShutDown(){
+		return shutDown;
+	}
+
+	@Override
+	public void serverStatusReceived(InetAddress server, CMsgRemoteClientBroadcastStatus previous, CMsgRemoteClientBroadcastStatus status){
+		servers.put(server, status);
+	}
+
+	@Override
+	public void errorOccurred(Object source, Throwable error, boolean stopped){
+		notifyError(source, error, stopped);
+	}
+
+	void notifyError(Object source, Throwable error, boolean stopped){
+		if(errorListeners.isEmpty()){	//Somebody should hear about it
+			Log.warn("Error in {} with no error listener to report it to", source, error);
+		}
+
+		for(ErrorListener listener : errorListeners){
+			try{
+				listener.errorOccurred(source, error, stopped);
+			} catch(RuntimeException e){	//A broken listener shouldn't stop the others hearing about it
+				Log.error("Exception thrown by an error listener", e);
+			}
+		}
+	}
+
+	//Called by clients when they're closed
+	void removeClient(StreamingClient client){
+		clients.remove(client);
+	}
+
+	//Every server discovery has heard from, and its latest status
+	public Map<InetAddress, CMsgRemoteClientBroadcastStatus> getServers(){
+		return Collections.unmodifiableMap(new HashMap<InetAddress, CMsgRemoteClientBroadcastStatus>(servers));
+	}
+
+	CMsgRemoteClientBroadcastStatus getStatus(InetAddress server) throws IOException{
+		CMsgRemoteClientBroadcastStatus status = servers.get(server);
+		if(status == null){
+			throw new IOException("Discovery hasn't seen " + server.getHostAddress() + " yet");
+		}
+		return status;
+	}
+
+	//Told about errors from discovery and from every client's connections
+	public void addErrorListener(ErrorListener listener){
+		errorListeners.add(listener);
+	}
+
+	public void removeErrorListener(ErrorListener listener){
+		errorListeners.remove(listener);
+	}
+
+	public DiscoveryProtocolHandler getDiscovery(){
+		return discovery;
+	}
+
+	public ExecutorService getThreads(){
+		return threads;
+	}
+
+	public ScheduledExecutorService getScheduler(){
+		return scheduler;
+	}
+
+	//Null unless the group runs on virtual threads
+	ThreadFactory getWriterThreads(){
+		return writerThreads;
+	}
+
+	public TlsSessionCache getSessionCache(){
+		return sessionCache;
+	}
+
+	public HostLatencyTable getLatencyTable(){
+		return latencyTable;
+	}
+
+	public int getClientCount(){
+		return clients.size();
+	}
+}
@@ -0,0 +1,189 @@
+package net;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Keeps a control connection up. When the connection drops it waits a bit and connects again, backing off
+ * exponentially (with full jitter, so a room full of clients doesn't hammer a server in lockstep) while the server
+ * stays unreachable. Every new connection starts from the old one (see the ControlProtocolHandler copy constructor),
+ * so it goes straight to the auth exchange with the same server status and keeps the stream table and app statuses,
+ * and with the shared TLS session cache it usually gets an abbreviated handshake too.
+ */
+public class SupervisedConnection implements Runnable, ControlConnectionListener {
+	private final Random random = new Random();
+	private final CountDownLatch stopped = new CountDownLatch(1);	//Counted down by stop(), also used to cut a backoff short
+
+	private volatile ControlProtocolHandler connection;
+	private volatile boolean running = true;
+
+	private long initialBackoff = 250;	//Milliseconds
+	private long maxBackoff = 30000;
+	private int maxAttempts = -1;	//Failed attempts in a row before giving up, -1 to never give up
+
+	//Pinging, so the latency table stays filled in across reconnects. Off unless setPingInterval is called.
+	private HostLatencyTable latencyTable = null;
+	private long pingInterval = 0;
+	private TimeUnit pingUnit = null;
+	private ScheduledExecutorService pingExecutor = null;	//Null to give each connection's pings their own thread
+
+	//How long it takes to get back to authenticated after the connection drops
+	private volatile long disconnectedTime = 0;	//System.nanoTime() when the last working connection dropped, 0 if we aren't reconnecting
+	private volatile long lastReconnectTime = -1;
+	private final LatencyHistogram reconnectTimes = new LatencyHistogram();
+	private final AtomicLong reconnects = new AtomicLong();
+	private static final StripedCounter ALL_RECONNECTS = Metrics.getShared().counter("control_reconnects_total", "Control connections that dropped and were reconnected");
+	private static final StripedCounter ALL_GIVE_UPS = Metrics.getShared().counter("control_reconnect_give_ups_total", "Servers given up on after too many failed attempts");
+	private static final LatencyHistogram ALL_RECONNECT_TIMES = Metrics.getShared().histogram("control_reconnect_seconds", "Time from a dropped connection to being authenticated again");
+
+	public SupervisedConnection(ControlProtocolHandler connection){
+		this.connection = connection;
+		connection.addConnectionListener(this);	//Copied to every reconnected handler
+	}
+
+	@Override
+	public void run(){
+		int failedAttempts = 0;
+
+		while(running){
+			ControlProtocolHandler current = connection;
+			PingScheduler pings = null;
+
+			if(latencyTable != null){
+				pings = new PingScheduler(current, latencyTable);
+				if(pingExecutor != null){
+					pings.start(pingExecutor, pingInterval, pingUnit);
+				} else{
+					pings.start(pingInterval, pingUnit);
+				}
+			}
+
+			current.run();	//Blocks until the connection ends
+
+			if(pings != null){
+				pings.stop();
+			}
+
+			if(!running){
+				break;
+			}
+
+			if(current.isAuthenticated()){	//It was working, so this is a fresh drop rather than another failed attempt
+				failedAttempts = 0;
+				disconnectedTime = System.nanoTime();
+			} else{
+				failedAttempts++;
+			}
+
+			if(maxAttempts >= 0 && failedAttempts > maxAttempts){
+				Log.error("Giving up on {} after {} failed attempts", current.getServer().getHostAddress(), failedAttempts);
+				ALL_GIVE_UPS.increment();
+				break;
+			}
+
+			long delay = getBackoff(failedAttempts);
+			try{
+				if(stopped.await(delay, TimeUnit.MILLISECONDS)){
+					break;
+				}
+			} catch(InterruptedException e){
+				Thread.currentThread().interrupt();
+				break;
+			}
+
+			connection = new ControlProtocolHandler(current);
+		}
+
+		running = false;
+	}
+
+	//A random delay between 0 and initialBackoff * 2^attempts, capped at maxBackoff. The first reconnect after a drop is quick.
+	private long getBackoff(int failedAttempts){
+		long ceiling = initialBackoff << Math.min(failedAttempts, 20);
+		if(ceiling <= 0 || ceiling > maxBackoff){
+			ceiling = maxBackoff;
+		}
+
+		return (long) (random.nextDouble() * ceiling);
+	}
+
+	public void stop(){
+		running = false;
+		stopped.countDown();
+		connection.stop();
+	}
+
+	@Override
+	public void authenticated(ControlProtocolHandler handler){
+		long dropped = disconnectedTime;
+
+		if(dropped != 0){	//This is a reconnect rather than the first connection
+			lastReconnectTime = handler.getAuthenticatedTime() - dropped;
+			reconnectTimes.record(lastReconnectTime);
+			reconnects.incrementAndGet();
+			ALL_RECONNECT_TIMES.record(lastReconnectTime);
+			ALL_RECONNECTS.increment();
+			disconnectedTime = 0;
+		}
+	}
+
+	@Override
+	public void disconnected(ControlProtocolHandler handler, IOException cause){
+		if(cause != null && running){
+			Log.warn("Lost the connection to {}, reconnecting", handler.getServer().getHostAddress());
+		}
+	}
+
+	//The connection currently being used. This changes on every reconnect, so don't hang on to it.
+	public ControlProtocolHandler getConnection(){
+		return connection;
+	}
+
+	public boolean isRunning(){
+		return running;
+	}
+
+	//True if stop() was called, as opposed to the supervisor giving up on its own
+	public boolean isStopped(){
+		return stopped.getCount() == 0;
+	}
+
+	public void setBackoff(long initial, long max, TimeUnit unit){
+		this.initialBackoff = Math.max(1, unit.toMillis(initial));
+		this.maxBackoff = Math.max(this.initialBackoff, unit.toMillis(max));
+	}
+
+	public void setMaxAttempts(int maxAttempts){
+		this.maxAttempts = maxAttempts;
+	}
+
+	//Pings every connection at this interval, recording into the table
+	public void setPingInterval(HostLatencyTable latencyTable, long interval, TimeUnit unit){
+		this.latencyTable = latencyTable;
+		this.pingInterval = interval;
+		this.pingUnit = unit;
+	}
+
+	//Same, with the pings scheduled on a shared executor instead of a thread per connection
+	public void setPingInterval(HostLatencyTable latencyTable, ScheduledExecutorService executor, long interval, TimeUnit unit){
+		setPingInterval(latencyTable, interval, unit);
+		this.pingExecutor = executor;
+	}
+
+	//Nanoseconds from the last drop to being authenticated again, or -1 if we've never reconnected
+	public long getLastReconnectTime(){
+		return lastReconnectTime;
+	}
+
+	public LatencyHistogram getReconnectTimes(){
+		return reconnectTimes;
+	}
+
+	public long getReconnectCount(){
+		return reconnects.get();
+	}
+}
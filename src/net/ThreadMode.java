@@ -0,0 +1,96 @@
+package net;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * What kind of threads the blocking loops (a connection's read loop and writer, discovery) run on.
+ *
+ * PLATFORM is an ordinary daemon thread each, which costs a stack and a kernel thread per connection and tops out in
+ * the low thousands. VIRTUAL uses Java 21+ virtual threads, which park instead of holding a kernel thread while they
+ * wait on the socket, so a monitoring service can keep far more hosts connected without rewriting the TLS code around
+ * NIO. The project still builds for Java 7, so virtual threads are made through reflection, and VIRTUAL quietly falls
+ * back to PLATFORM on older JVMs.
+ *
+ * A virtual thread that blocks while holding a monitor (inside synchronized) pins its carrier thread until Java 24, so
+ * the code the connection loops run through uses ReentrantLocks around anything that can block, and only short,
+ * non-blocking sections are left synchronized. BouncyCastle's TLS code (1.52) only synchronizes in TlsSessionImpl,
+ * AbstractTlsContext's nonce generator and the digest PRNG, none of which block, and reads and writes the socket streams
+ * outside any monitor.
+ */
+public enum ThreadMode {
+	PLATFORM,
+	VIRTUAL;
+
+	private static Method ofVirtual;	//Thread.ofVirtual()
+	private static Method builderName;	//Thread.Builder.name(String prefix, long start)
+	private static Method builderFactory;	//Thread.Builder.factory()
+	private static Method newThreadPerTaskExecutor;	//Executors.newThreadPerTaskExecutor(ThreadFactory)
+	private static boolean virtualAvailable = false;
+
+	static{
+		try{
+			ofVirtual = Thread.class.getMethod("ofVirtual");
+			Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			builderName = builder.getMethod("name", String.class, long.class);
+			builderFactory = builder.getMethod("factory");
+			newThreadPerTaskExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+			virtualAvailable = true;
+		} catch(Exception e){
+			//Older than Java 21
+		}
+	}
+
+	public static boolean isVirtualAvailable(){
+		return virtualAvailable;
+	}
+
+	//VIRTUAL if this JVM has virtual threads, otherwise PLATFORM
+	public ThreadMode resolve(){
+		return (this == VIRTUAL && !virtualAvailable) ? PLATFORM : this;
+	}
+
+	//Makes threads named prefix followed by a count. Platform ones are daemons, virtual ones always are.
+	public ThreadFactory newThreadFactory(final String prefix){
+		if(resolve() == VIRTUAL){
+			try{
+				return (ThreadFactory) builderFactory.invoke(builderName.invoke(ofVirtual.invoke(null), prefix, 1L));
+			} catch(Exception e){
+				Log.warn("Couldn't make a virtual thread factory, using platform threads", e);
+			}
+		}
+
+		return new ThreadFactory(){
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable runnable){
+				Thread thread = new Thread(runnable, prefix + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+	}
+
+	/*
+	 * An executor for blocking loops. Virtual threads are cheap enough to make one per task rather than pool them,
+	 * platform threads are pooled so short tasks reuse them.
+	 */
+	public ExecutorService newExecutor(String prefix){
+		ThreadFactory factory = newThreadFactory(prefix);
+
+		if(resolve() == VIRTUAL){
+			try{
+				return (ExecutorService) newThreadPerTaskExecutor.invoke(null, factory);
+			} catch(Exception e){
+				Log.warn("Couldn't make a virtual thread executor, using platform threads", e);
+				factory = PLATFORM.newThreadFactory(prefix);
+			}
+		}
+
+		return Executors.newCachedThreadPool(factory);
+	}
+}
@@ -0,0 +1,91 @@
+package net;
+
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.bouncycastle.crypto.tls.TlsSession;
+
+/*
+ * Keeps the last resumable TLS session for each streaming server, so a reconnect can offer the old session ID
+ * instead of paying for a full PSK handshake. If the server doesn't want to resume it just hands out a new session
+ * and BouncyCastle falls back to the full handshake on its own, so a stale entry here is harmless.
+ *
+ * Sessions are kept per server and AuthData (the PSK). A resumed session skips the PSK exchange, so a connection must
+ * only ever resume a session made with its own AuthData, or it would be logged in as whoever made it.
+ */
+public class TlsSessionCache {
+	private static final TlsSessionCache sharedCache = new TlsSessionCache();	//Used by every ControlProtocolHandler that isn't given its own cache
+
+	private final ConcurrentHashMap<Key, TlsSession> sessions;
+
+	public TlsSessionCache(){
+		this.sessions = new ConcurrentHashMap<Key, TlsSession>();
+	}
+
+	public static TlsSessionCache getSharedCache(){
+		return sharedCache;
+	}
+
+	//Returns the cached session for the server and AuthData, or null if there isn't one that can still be resumed
+	public TlsSession get(InetAddress server, String authData){
+		Key key = new Key(server, authData);
+		TlsSession session = sessions.get(key);
+
+		if(session != null && !session.isResumable()){	//BouncyCastle invalidates sessions itself when a handshake fails or the server refuses to resume
+			sessions.remove(key, session);
+			return null;
+		}
+
+		return session;
+	}
+
+	public void put(InetAddress server, String authData, TlsSession session){
+		Key key = new Key(server, authData);
+		if(session == null || !session.isResumable()){
+			sessions.remove(key);
+			return;
+		}
+
+		sessions.put(key, session);
+	}
+
+	public void invalidate(InetAddress server, String authData){
+		TlsSession session = sessions.remove(new Key(server, authData));
+
+		if(session != null){
+			session.invalidate();
+		}
+	}
+
+	public void clear(){
+		sessions.clear();
+	}
+
+	public int size(){
+		return sessions.size();
+	}
+
+	private static class Key {
+		private final InetAddress server;
+		private final String authData;
+
+		Key(InetAddress server, String authData){
+			this.server = server;
+			this.authData = authData;
+		}
+
+		@Override
+		public boolean equals(Object other){
+			if(!(other instanceof Key)){
+				return false;
+			}
+			Key key = (Key) other;
+			return server.equals(key.server) && authData.equals(key.authData);
+		}
+
+		@Override
+		public int hashCode(){
+			return server.hashCode() * 31 + authData.hashCode();
+		}
+	}
+}
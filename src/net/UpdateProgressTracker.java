@@ -0,0 +1,349 @@
+package net;
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import net.protobufs.SteammessagesRemoteclient.CMsgRemoteClientAppStatus.AppStatus;
+import net.protobufs.SteammessagesRemoteclient.CMsgRemoteClientAppStatus.AppUpdateInfo;
+
+/*
+ * Turns the download counters in AppStatus.update_info into something a dashboard can show: a smoothed download and
+ * processing rate, an ETA, and whether the update has stalled.
+ *
+ * It hangs off each server's AppCatalog as a listener, so it only does work when a server actually sends progress, and
+ * that work is a few multiplications on a per-app record. Rates are exponentially weighted moving averages with a
+ * time constant (the weight of each sample depends on how long it covers), so uneven update intervals don't skew them.
+ * Stalls can't be seen from updates (a stalled download doesn't send any), so call checkStalls() now and then, or
+ * start() it on an executor.
+ */
+public class UpdateProgressTracker implements AppCatalogListener {
+	private final double timeConstant;	//Seconds. Higher is smoother but slower to react.
+	private final long stallTimeout;	//Nanoseconds without progress before an update counts as stalled
+
+	private final ConcurrentHashMap<InetAddress, IntObjectMap<Progress>> servers = new ConcurrentHashMap<InetAddress, IntObjectMap<Progress>>();
+	private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+	private ScheduledFuture<?> stallCheck = null;
+
+	public UpdateProgressTracker(){
+		this(10, 30, TimeUnit.SECONDS);
+	}
+
+	public UpdateProgressTracker(double timeConstantSeconds, long stallTimeout, TimeUnit unit){
+		this.timeConstant = timeConstantSeconds;
+		this.stallTimeout = unit.toNanos(stallTimeout);
+	}
+
+	public void track(AppCatalog catalog){
+		catalog.addListener(this);
+	}
+
+	public void untrack(AppCatalog catalog){
+		catalog.removeListener(this);
+		servers.remove(catalog.getServer());
+	}
+
+	@Override
+	public void appStatusChanged(AppCatalog catalog, AppStatus previous, AppStatus update, AppStatus current){
+		if(!update.hasUpdateInfo()){
+			return;
+		}
+
+		IntObjectMap<Progress> apps = getApps(catalog.getServer());
+		AppUpdateInfo info = current.getUpdateInfo();	//The merged one, the update itself only has the counters that moved
+		long now = System.nanoTime();
+		Progress snapshot;
+		boolean finished;
+
+		synchronized(apps){
+			Progress progress = apps.get(current.getAppId());
+			if(progress == null){
+				progress = new Progress(catalog.getServer(), current.getAppId());
+				apps.put(current.getAppId(), progress);
+			}
+
+			boolean wasFinished = progress.finished;
+			progress.update(info, AppState.isReady(current.getAppState()), now, timeConstant);
+			finished = progress.finished && !wasFinished;
+			snapshot = progress.copy();
+		}
+
+		for(Listener listener : listeners){
+			listener.progressUpdated(snapshot);
+			if(finished){
+				listener.updateFinished(snapshot);
+			}
+		}
+	}
+
+	//Looks for updates that haven't moved in a while and tells the listeners about each one once
+	public void checkStalls(){
+		long now = System.nanoTime();
+		List<Progress> stalled = new ArrayList<Progress>();
+
+		for(IntObjectMap<Progress> apps : servers.values()){
+			synchronized(apps){
+				for(int slot = 0; slot < apps.getCapacity(); slot++){
+					Progress progress = apps.getValueAt(slot);
+					if(progress != null && !progress.finished && !progress.stalled && now - progress.lastProgressTime > stallTimeout){
+						progress.stalled = true;
+						stalled.add(progress.copy());
+					}
+				}
+			}
+		}
+
+		for(Progress progress : stalled){
+			for(Listener listener : listeners){
+				listener.updateStalled(progress);
+			}
+		}
+	}
+
+	public synchronized void start(ScheduledExecutorService executor, long period, TimeUnit unit){
+		if(stallCheck == null){
+			stallCheck = executor.scheduleAtFixedRate(new Runnable(){
+				@Override
+				public void run(){
+					checkStalls();
+				}
+			}, period, period, unit);
+		}
+	}
+
+	public synchronized void stop(){
+		if(stallCheck != null){
+			stallCheck.cancel(false);
+			stallCheck = null;
+		}
+	}
+
+	//A copy of where the app's update is at, or null if the server hasn't sent any progress for it
+	public Progress getProgress(InetAddress server, int appID){
+		IntObjectMap<Progress> apps = servers.get(server);
+		if(apps == null){
+			return null;
+		}
+
+		synchronized(apps){
+			Progress progress = apps.get(appID);
+			return progress == null ? null : progress.copy();
+		}
+	}
+
+	//Copies of every unfinished update on every server
+	public List<Progress> getActiveUpdates(){
+		List<Progress> active = new ArrayList<Progress>();
+
+		for(Map.Entry<InetAddress, IntObjectMap<Progress>> entry : servers.entrySet()){
+			IntObjectMap<Progress> apps = entry.getValue();
+			synchronized(apps){
+				for(int slot = 0; slot < apps.getCapacity(); slot++){
+					Progress progress = apps.getValueAt(slot);
+					if(progress != null && !progress.finished){
+						active.add(progress.copy());
+					}
+				}
+			}
+		}
+
+		return active;
+	}
+
+	public void addListener(Listener listener){
+		listeners.add(listener);
+	}
+
+	public void removeListener(Listener listener){
+		listeners.remove(listener);
+	}
+
+	private IntObjectMap<Progress> getApps(InetAddress server){
+		IntObjectMap<Progress> apps = servers.get(server);
+
+		if(apps == null){
+			IntObjectMap<Progress> created = new IntObjectMap<Progress>();
+			apps = servers.putIfAbsent(server, created);
+			if(apps == null){
+				apps = created;
+			}
+		}
+
+		return apps;
+	}
+
+	/*
+	 * Where one app's update on one server is at. The tracker hands out copies, so these never change under you.
+	 */
+	public static class Progress {
+		private final InetAddress server;
+		private final int appID;
+
+		private long bytesToDownload = 0;
+		private long bytesDownloaded = 0;
+		private long bytesToProcess = 0;
+		private long bytesProcessed = 0;
+		private int serverEstimate = -1;	//estimated_seconds_remaining, -1 if the server doesn't know
+
+		private double downloadRate = 0;	//Bytes per second, smoothed
+		private double processRate = 0;
+		private long lastUpdateTime = 0;	//System.nanoTime() of the last update
+		private long lastProgressTime = 0;	//System.nanoTime() when a counter last went up
+		private boolean stalled = false;
+		private boolean finished = false;
+
+		Progress(InetAddress server, int appID){
+			this.server = server;
+			this.appID = appID;
+		}
+
+		void update(AppUpdateInfo info, boolean ready, long now, double timeConstant){
+			long downloaded = info.getBytesDownloaded();
+			long processed = info.getBytesProcessed();
+
+			if(lastUpdateTime == 0){	//Nothing to measure a rate against yet
+				lastProgressTime = now;
+			} else{
+				double seconds = (now - lastUpdateTime) / 1e9;
+				if(seconds > 0){
+					double weight = 1 - Math.exp(-seconds / timeConstant);
+					downloadRate += weight * (Math.max(0, downloaded - bytesDownloaded) / seconds - downloadRate);
+					processRate += weight * (Math.max(0, processed - bytesProcessed) / seconds - processRate);
+				}
+
+				if(downloaded > bytesDownloaded || processed > bytesProcessed){
+					lastProgressTime = now;
+					stalled = false;
+				}
+			}
+
+			bytesToDownload = info.getBytesToDownload();
+			bytesDownloaded = downloaded;
+			bytesToProcess = info.getBytesToProcess();
+			bytesProcessed = processed;
+			serverEstimate = info.getEstimatedSecondsRemaining();
+			lastUpdateTime = now;
+
+			//Either everything has been downloaded and processed, or Steam says the app is ready
+			finished = ready || (bytesToDownload > 0 && bytesDownloaded >= bytesToDownload && bytesProcessed >= bytesToProcess);
+			if(finished){
+				stalled = false;
+			}
+		}
+
+		Progress copy(){
+			Progress copy = new Progress(server, appID);
+			copy.bytesToDownload = bytesToDownload;
+			copy.bytesDownloaded = bytesDownloaded;
+			copy.bytesToProcess = bytesToProcess;
+			copy.bytesProcessed = bytesProcessed;
+			copy.serverEstimate = serverEstimate;
+			copy.downloadRate = downloadRate;
+			copy.processRate = processRate;
+			copy.lastUpdateTime = lastUpdateTime;
+			copy.lastProgressTime = lastProgressTime;
+			copy.stalled = stalled;
+			copy.finished = finished;
+			return copy;
+		}
+
+		public InetAddress getServer(){
+			return server;
+		}
+
+		public int getAppID(){
+			return appID;
+		}
+
+		public long getBytesToDownload(){
+			return bytesToDownload;
+		}
+
+		public long getBytesDownloaded(){
+			return bytesDownloaded;
+		}
+
+		public long getBytesToProcess(){
+			return bytesToProcess;
+		}
+
+		public long getBytesProcessed(){
+			return bytesProcessed;
+		}
+
+		//0 to 1, downloading and processing counted as half each since Steam reports them separately
+		public double getFraction(){
+			double download = (bytesToDownload == 0 ? 1 : Math.min(1, bytesDownloaded / (double) bytesToDownload));
+			double process = (bytesToProcess == 0 ? download : Math.min(1, bytesProcessed / (double) bytesToProcess));
+			return (download + process) / 2;
+		}
+
+		public double getDownloadRate(){
+			return downloadRate;
+		}
+
+		public double getProcessRate(){
+			return processRate;
+		}
+
+		/*
+		 * Seconds until the update is done, going by the smoothed rates, or -1 if we can't tell yet.
+		 * Downloading and processing overlap, so it's whichever of the two will take longer.
+		 */
+		public double getEstimatedSecondsRemaining(){
+			if(finished){
+				return 0;
+			}
+
+			double download = estimate(bytesToDownload - bytesDownloaded, downloadRate);
+			double process = estimate(bytesToProcess - bytesProcessed, processRate);
+			if(download < 0 || process < 0){
+				return -1;
+			}
+
+			return Math.max(download, process);
+		}
+
+		private static double estimate(long remaining, double rate){
+			if(remaining <= 0){
+				return 0;
+			}
+			return rate <= 0 ? -1 : remaining / rate;
+		}
+
+		//What Steam itself thinks, -1 if it doesn't say
+		public int getServerEstimate(){
+			return serverEstimate;
+		}
+
+		public boolean isStalled(){
+			return stalled;
+		}
+
+		public boolean isFinished(){
+			return finished;
+		}
+
+		public long getLastProgressTime(){
+			return lastProgressTime;
+		}
+	}
+
+	/*
+	 * Gets told as progress comes in. progressUpdated and updateFinished are called from the server's catalog updates,
+	 * updateStalled from whatever calls checkStalls(), so keep them quick.
+	 */
+	public interface Listener {
+		void progressUpdated(Progress progress);
+
+		void updateFinished(Progress progress);
+
+		void updateStalled(Progress progress);
+	}
+}
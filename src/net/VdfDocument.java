@@ -0,0 +1,223 @@
+package net;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/*
+ * A .vdf file (localconfig.vdf, config.vdf, loginusers.vdf...) that can be navigated by key, without parsing all of it.
+ *
+ * Nothing is read when the document is opened. A block's children are found the first time they're asked for, by
+ * scanning just that block and skipping over the blocks nested in it, and then kept as offsets into the buffer. Keys are
+ * compared against the bytes in place, and values only become Strings when getValue() is called. Looking up one path in
+ * a big file reads the blocks along the path and nothing below the ones it passes.
+ *
+ * Keys are matched ignoring ASCII case, the way Steam's KeyValues does. A key can appear more than once in a block,
+ * getChild() returns the first and getChildren() returns them all.
+ *
+ * Not thread safe, a document is meant to be opened, queried and dropped by one thread.
+ */
+public class VdfDocument {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private final ByteBuffer buffer;
+	private final Node root;
+
+	public VdfDocument(ByteBuffer buffer){
+		this.buffer = buffer;
+		this.root = new Node(this, -1, -1, false, buffer.position(), buffer.limit(), false, true);
+	}
+
+	//Maps the file, see VdfTokenizer.map for what that means for the file
+	public static VdfDocument open(File file) throws IOException{
+		return new VdfDocument(VdfTokenizer.map(file));
+	}
+
+	//The top level of the file. It has no key, its children are the file's top level keys (usually just one).
+	public Node getRoot(){
+		return root;
+	}
+
+	//Finds a node by its keys separated by slashes, like "UserLocalConfigStore/SharedAuth". Null if it isn't there.
+	public Node find(String path){
+		return root.find(path);
+	}
+
+	//The value at the path, or null if there's no plain value there
+	public String getString(String path){
+		Node node = find(path);
+		return (node == null || node.isBlock() ? null : node.getValue());
+	}
+
+	/*
+	 * A key and either a value or a block of children. Children aren't scanned for until one of the child methods is
+	 * called, and the key and value aren't decoded until they're asked for.
+	 */
+	public static class Node {
+		private final VdfDocument document;
+		private final int keyStart;
+		private final int keyEnd;
+		private final boolean keyEscaped;
+		private final int valueStart;	//For a block, just past its {. Otherwise the value's bytes without quotes.
+		private final int valueEnd;	//For a block, its }
+		private final boolean valueEscaped;
+		private final boolean block;
+
+		private Node[] children = null;	//Found on first use
+		private String key = null;
+		private String value = null;
+
+		Node(VdfDocument document, int keyStart, int keyEnd, boolean keyEscaped, int valueStart, int valueEnd, boolean valueEscaped, boolean block){
+			this.document = document;
+			this.keyStart = keyStart;
+			this.keyEnd = keyEnd;
+			this.keyEscaped = keyEscaped;
+			this.valueStart = valueStart;
+			this.valueEnd = valueEnd;
+			this.valueEscaped = valueEscaped;
+			this.block = block;
+		}
+
+		//Null for the root
+		public String getKey(){
+			if(key == null && keyStart >= 0){
+				key = VdfTokenizer.decode(document.buffer, keyStart, keyEnd, keyEscaped);
+			}
+			return key;
+		}
+
+		public boolean isBlock(){
+			return block;
+		}
+
+		//The value, or null for a block
+		public String getValue(){
+			if(block){
+				return null;
+			}
+			if(value == null){
+				value = VdfTokenizer.decode(document.buffer, valueStart, valueEnd, valueEscaped);
+			}
+			return value;
+		}
+
+		//The first child with the key, or null. Always null for a plain value.
+		public Node getChild(String childKey){
+			byte[] wanted = childKey.getBytes(UTF8);
+			for(Node child : children()){
+				if(child.keyEquals(wanted)){
+					return child;
+				}
+			}
+			return null;
+		}
+
+		//Every child with the key, for blocks that repeat one
+		public List<Node> getChildren(String childKey){
+			byte[] wanted = childKey.getBytes(UTF8);
+			List<Node> matches = new ArrayList<Node>();
+			for(Node child : children()){
+				if(child.keyEquals(wanted)){
+					matches.add(child);
+				}
+			}
+			return matches;
+		}
+
+		public List<Node> getChildren(){
+			return Arrays.asList(children());
+		}
+
+		public int getChildCount(){
+			return children().length;
+		}
+
+		//Follows keys separated by slashes down from here. An empty path is this node.
+		public Node find(String path){
+			Node node = this;
+			int start = 0;
+
+			while(node != null && start < path.length()){
+				int slash = path.indexOf('/', start);
+				int end = (slash < 0 ? path.length() : slash);
+
+				if(end > start){	//Doubled or trailing slashes are ignored
+					node = node.getChild(path.substring(start, end));
+				}
+				start = end + 1;
+			}
+
+			return node;
+		}
+
+		private Node[] children(){
+			if(children == null){
+				children = (block ? scan() : new Node[0]);
+			}
+			return children;
+		}
+
+		//Goes through this block's key/value pairs once, jumping over nested blocks without looking inside them
+		private Node[] scan(){
+			ByteBuffer range = document.buffer.duplicate();
+			range.limit(valueEnd);
+			range.position(valueStart);
+			VdfTokenizer tokenizer = new VdfTokenizer(range);
+
+			ArrayList<Node> found = new ArrayList<Node>();
+			VdfTokenizer.Token token;
+			while((token = tokenizer.next()) == VdfTokenizer.Token.STRING){
+				int childKeyStart = tokenizer.getTokenStart();
+				int childKeyEnd = tokenizer.getTokenEnd();
+				boolean childKeyEscaped = tokenizer.isTokenEscaped();
+
+				token = tokenizer.next();
+				if(token == VdfTokenizer.Token.STRING){
+					found.add(new Node(document, childKeyStart, childKeyEnd, childKeyEscaped, tokenizer.getTokenStart(), tokenizer.getTokenEnd(), tokenizer.isTokenEscaped(), false));
+				} else if(token == VdfTokenizer.Token.OPEN){
+					int blockStart = tokenizer.getPosition();
+					boolean closed = tokenizer.skipBlock();
+					int blockEnd = (closed ? tokenizer.getPosition() - 1 : tokenizer.getPosition());	//Back onto the }, or the end of a cut off file
+					found.add(new Node(document, childKeyStart, childKeyEnd, childKeyEscaped, blockStart, blockEnd, false, true));
+				} else{	//A key with nothing after it, the file is cut off or broken
+					break;
+				}
+			}
+
+			return found.toArray(new Node[found.size()]);
+		}
+
+		//Compares the key to UTF-8 bytes in place, ignoring ASCII case
+		private boolean keyEquals(byte[] wanted){
+			if(keyStart < 0){
+				return false;
+			}
+			if(keyEscaped){
+				return getKey().equalsIgnoreCase(new String(wanted, UTF8));
+			}
+			if(keyEnd - keyStart != wanted.length){
+				return false;
+			}
+
+			for(int i = 0; i < wanted.length; i++){
+				if(lowerCase(document.buffer.get(keyStart + i)) != lowerCase(wanted[i])){
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private static byte lowerCase(byte b){
+			return (b >= 'A' && b <= 'Z') ? (byte) (b + ('a' - 'A')) : b;
+		}
+
+		@Override
+		public String toString(){
+			return block ? getKey() + " {" + getChildCount() + "}" : getKey() + " = " + getValue();
+		}
+	}
+}
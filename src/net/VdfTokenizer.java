@@ -0,0 +1,262 @@
+package net;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/*
+ * Reads Valve's KeyValues text format (.vdf) one token at a time, straight out of a ByteBuffer. Nothing is copied or
+ * decoded while scanning: a token is just a start and end offset into the buffer, and only the tokens the caller asks
+ * for with tokenString() become Strings. That makes it cheap to look for one block in a big file and stop there.
+ *
+ * The format is quoted (or bare) strings, { and }, and // comments, with whitespace anywhere in between. Key/value
+ * pairing is left to the caller, the tokenizer only knows about the nesting depth. All the structure is ASCII, so
+ * working on the UTF-8 bytes directly is safe.
+ */
+public class VdfTokenizer {
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	public enum Token {
+		STRING,	//A quoted or bare string, see tokenString()
+		OPEN,	//{
+		CLOSE,	//}
+		END	//Nothing left
+	}
+
+	private final ByteBuffer buffer;
+	private final int limit;
+	private int position;
+	private int depth = 0;
+
+	private int tokenStart;	//The current STRING token's bytes, without the quotes
+	private int tokenEnd;
+	private boolean tokenEscaped;	//True if the token has a backslash in it and needs decoding
+
+	public VdfTokenizer(ByteBuffer buffer){
+		this.buffer = buffer;
+		this.position = buffer.position();
+		this.limit = buffer.limit();
+	}
+
+	/*
+	 * Maps the file read only. The mapping stays valid after the channel is closed and goes away when the buffer is
+	 * garbage collected. That's the tradeoff: nothing is read that we don't look at, but on Windows the file stays
+	 * locked until then.
+	 */
+	public static ByteBuffer map(File file) throws IOException{
+		try(RandomAccessFile input = new RandomAccessFile(file, "r")){
+			FileChannel channel = input.getChannel();
+			return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+	}
+
+	//Reads the whole file onto the heap instead, for files that get read again and again and shouldn't stay locked
+	public static ByteBuffer read(File file) throws IOException{
+		try(RandomAccessFile input = new RandomAccessFile(file, "r")){
+			FileChannel channel = input.getChannel();
+			ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(channel.size(), Integer.MAX_VALUE));
+			while(buffer.hasRemaining() && channel.read(buffer) >= 0){
+				//Keep going until it's full, or the file got shorter since we looked at its size
+			}
+			buffer.flip();
+			return buffer;
+		}
+	}
+
+	public Token next(){
+		skipWhitespaceAndComments();
+		if(position >= limit){
+			return Token.END;
+		}
+
+		byte b = buffer.get(position);
+		if(b == '{'){
+			position++;
+			depth++;
+			return Token.OPEN;
+		} else if(b == '}'){
+			position++;
+			depth--;
+			return Token.CLOSE;
+		} else if(b == '"'){
+			readQuoted();
+		} else{
+			readBare();
+		}
+
+		return Token.STRING;
+	}
+
+	//How many blocks we're inside, counting the one just opened by an OPEN token
+	public int getDepth(){
+		return depth;
+	}
+
+	//Skips to the end of the block just opened, so the next token is whatever comes after its }. False if the data ran out first.
+	public boolean skipBlock(){
+		int target = depth - 1;
+		Token token;
+		do{
+			token = next();
+		} while(token != Token.END && depth > target);
+
+		return token != Token.END;
+	}
+
+	//Compares the current STRING token to ASCII bytes, without making a String. Case sensitive.
+	public boolean tokenEquals(byte[] ascii){
+		if(tokenEscaped){	//Rare, not worth doing without a String
+			return tokenString().equals(new String(ascii, UTF8));
+		}
+		if(tokenEnd - tokenStart != ascii.length){
+			return false;
+		}
+
+		for(int i = 0; i < ascii.length; i++){
+			if(buffer.get(tokenStart + i) != ascii[i]){
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	//Same, ignoring ASCII case, the way Steam compares keys (see VdfDocument)
+	public boolean tokenEqualsIgnoreCase(byte[] ascii){
+		if(tokenEscaped){
+			return tokenString().equalsIgnoreCase(new String(ascii, UTF8));
+		}
+		if(tokenEnd - tokenStart != ascii.length){
+			return false;
+		}
+
+		for(int i = 0; i < ascii.length; i++){
+			if(lowerCase(buffer.get(tokenStart + i)) != lowerCase(ascii[i])){
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	private static byte lowerCase(byte b){
+		return (b >= 'A' && b <= 'Z') ? (byte) (b + ('a' - 'A')) : b;
+	}
+
+	//The current STRING token, with escapes decoded
+	public String tokenString(){
+		return decode(buffer, tokenStart, tokenEnd, tokenEscaped);
+	}
+
+	//Turns a token's bytes into a String. escaped says whether it has backslashes to decode.
+	static String decode(ByteBuffer buffer, int start, int end, boolean escaped){
+		byte[] bytes = new byte[end - start];
+		for(int i = 0; i < bytes.length; i++){
+			bytes[i] = buffer.get(start + i);
+		}
+
+		String token = new String(bytes, UTF8);
+		return escaped ? unescape(token) : token;
+	}
+
+	//Offsets of the current STRING token in the buffer, quotes not included
+	public int getTokenStart(){
+		return tokenStart;
+	}
+
+	public int getTokenEnd(){
+		return tokenEnd;
+	}
+
+	public boolean isTokenEscaped(){
+		return tokenEscaped;
+	}
+
+	//Where the next token will be read from
+	public int getPosition(){
+		return position;
+	}
+
+	private void skipWhitespaceAndComments(){
+		while(position < limit){
+			byte b = buffer.get(position);
+
+			if(b == ' ' || b == '\t' || b == '\r' || b == '\n'){
+				position++;
+			} else if(b == '/' && position + 1 < limit && buffer.get(position + 1) == '/'){
+				while(position < limit && buffer.get(position) != '\n'){
+					position++;
+				}
+			} else{
+				return;
+			}
+		}
+	}
+
+	private void readQuoted(){
+		position++;	//The opening quote
+		tokenStart = position;
+		tokenEscaped = false;
+
+		while(position < limit){
+			byte b = buffer.get(position);
+			if(b == '"'){
+				break;
+			}
+			if(b == '\\' && position + 1 < limit){	//Skip whatever is escaped, it might be a quote
+				tokenEscaped = true;
+				position++;
+			}
+			position++;
+		}
+
+		tokenEnd = position;
+		if(position < limit){
+			position++;	//The closing quote. A file cut off mid-string just ends the token there.
+		}
+	}
+
+	private void readBare(){
+		tokenStart = position;
+		tokenEscaped = false;
+
+		while(position < limit){
+			byte b = buffer.get(position);
+			if(b == ' ' || b == '\t' || b == '\r' || b == '\n' || b == '"' || b == '{' || b == '}'){
+				break;
+			}
+			position++;
+		}
+
+		tokenEnd = position;
+	}
+
+	private static String unescape(String token){
+		StringBuilder builder = new StringBuilder(token.length());
+
+		for(int i = 0; i < token.length(); i++){
+			char c = token.charAt(i);
+			if(c != '\\' || i + 1 == token.length()){
+				builder.append(c);
+				continue;
+			}
+
+			char escaped = token.charAt(++i);
+			switch(escaped){
+			case 'n':
+				builder.append('\n');
+				break;
+			case 't':
+				builder.append('\t');
+				break;
+			default:	//\\ and \" and anything we don't know are just the character itself
+				builder.append(escaped);
+			}
+		}
+
+		return builder.toString();
+	}
+}
@@ -0,0 +1,331 @@
+package net;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.protobufs.SteammessagesRemoteclientDiscovery.CMsgRemoteClientBroadcastStatus;
+
+/*
+ * Connects to streaming servers before anyone asks for a stream, so that when someone does, the TCP connect, the TLS
+ * handshake and the auth exchange have already happened and starting the stream is just one 9503 frame.
+ *
+ * It listens to discovery and opens a connection to each of the first maxWarm servers it hears from. The connections
+ * are supervised (they come back if they drop) and pinged, so they stay up and the latency table stays filled in.
+ *
+ * A speculative connection gives its slot back when it's released, when its supervisor gives up on the server, or
+ * when the server hasn't been heard from on discovery for a while and another server wants the slot.
+ *
+ * startStream() counts a hit when the server already had an authenticated connection and a miss when it had to
+ * connect first. Each hit saved roughly one connect, so the saved latency is estimated from the median time our own
+ * connections took to get authenticated.
+ */
+public class WarmConnectionPool implements DiscoveryListener, ControlConnectionListener {
+	private static final int SPECULATIVE_MAX_ATTEMPTS = 8;	//Failed attempts in a row before a speculative connection gives up its slot
+	private static final long SILENT_TIMEOUT = TimeUnit.SECONDS.toNanos(60);	//Discovery asks every 10 seconds, so this is several missed answers
+	private final String authData;
+	private final int maxWarm;	//How many servers to connect to speculatively
+	private final HostLatencyTable latencyTable;
+	private long pingInterval = 5;	//Seconds
+	private final ExecutorService threads;	//Each supervised connection needs a thread to run on
+
+	private final ConcurrentHashMap<InetAddress, SupervisedConnection> connections = new ConcurrentHashMap<InetAddress, SupervisedConnection>();
+	private final ConcurrentHashMap<InetAddress, CMsgRemoteClientBroadcastStatus> statuses = new ConcurrentHashMap<InetAddress, CMsgRemoteClientBroadcastStatus>();
+	private final AtomicInteger speculative = new AtomicInteger();	//Connections opened because discovery saw the server, not because of a stream
+	private final Set<SupervisedConnection> speculativeConnections = Collections.newSetFromMap(new ConcurrentHashMap<SupervisedConnection, Boolean>());
+	private final ConcurrentHashMap<InetAddress, Long> lastHeard = new ConcurrentHashMap<InetAddress, Long>();	//System.nanoTime() of each server's last status
+	private volatile boolean stopped = false;
+	private volatile DiscoveryProtocolHandler discovery = null;	//For filling in the discovery stage of new connections
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong savedLatency = new AtomicLong();	//Nanoseconds, estimated
+	private final LatencyHistogram connectTimes = new LatencyHistogram();	//From starting to connect to being authenticated
+
+	public WarmConnectionPool(String authData, int maxWarm){
+		this(authData, maxWarm, new HostLatencyTable());
+	}
+
+	public WarmConnectionPool(String authData, int maxWarm, HostLatencyTable latencyTable){
+		this.authData = authData;
+		this.maxWarm = maxWarm;
+		this.latencyTable = latencyTable;
+		this.threads = Executors.newCachedThreadPool(new ThreadFactory(){
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable runnable){
+				Thread thread = new Thread(runnable, "Warm connection " + count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	//Starts warming up servers as the discovery handler finds them
+	public void track(DiscoveryProtocolHandler discovery){
+		this.discovery = discovery;
+		discovery.addListener(this);
+	}
+
+	@Override
+	public void serverStatusReceived(InetAddress server, CMsgRemoteClientBroadcastStatus previous, CMsgRemoteClientBroadcastStatus status){
+		statuses.put(server, status);	//Kept for connecting on a miss
+		lastHeard.put(server, System.nanoTime());
+
+		if(stopped || connections.containsKey(server)){
+			return;
+		}
+
+		if(speculative.get() >= maxWarm){
+			releaseSilent();
+		}
+
+		//Only take a slot if there's one free, the discovery thread shouldn't wait on anything
+		int warm = speculative.get();
+		if(warm < maxWarm && speculative.compareAndSet(warm, warm + 1)){
+			if(open(server, status, true) == null){	//Someone else got there first
+				speculative.decrementAndGet();
+			}
+		}
+	}
+
+	//Gives back the slots of speculative connections to servers that discovery hasn't heard from in a while
+	private void releaseSilent(){
+		long now = System.nanoTime();
+
+		for(SupervisedConnection supervised : speculativeConnections){
+			InetAddress server = supervised.getConnection().getServer();
+			Long heard = lastHeard.get(server);
+			if(heard == null || now - heard > SILENT_TIMEOUT){
+				Log.info("Discovery hasn't heard from {} in a while, closing its warm connection", server.getHostAddress());
+				if(connections.remove(server, supervised)){
+					supervised.stop();
+				}
+				freeSlot(supervised);
+			}
+		}
+	}
+
+	/*
+	 * Starts the app streaming from the server. If the pool already has the server authenticated this only queues the
+	 * 9503. Otherwise it connects first, waiting up to the timeout for the server to accept us.
+	 */
+	public StreamSession startStream(InetAddress server, int appID, int maxXResolution, int maxYResolution, long timeout, TimeUnit unit) throws IOException{
+		if(stopped){
+			throw new IOException("The pool has been stopped");
+		}
+
+		SupervisedConnection supervised = connections.get(server);
+		ControlProtocolHandler connection = (supervised == null ? null : supervised.getConnection());
+
+		if(connection != null && connection.isAuthenticated()){
+			hits.incrementAndGet();
+			long median = connectTimes.getMedian();
+			if(median > 0){
+				savedLatency.addAndGet(median);
+			}
+			return connection.startStream(appID, maxXResolution, maxYResolution);
+		}
+
+		misses.incrementAndGet();
+
+		if(supervised == null){
+			CMsgRemoteClientBroadcastStatus status = statuses.get(server);
+			if(status == null){
+				throw new IOException("Discovery hasn't seen " + server.getHostAddress() + " yet");
+			}
+
+			supervised = open(server, status, false);
+			if(supervised == null){	//Someone else got there first, use theirs
+				supervised = connections.get(server);
+			}
+			if(supervised == null){	//Released or stopped in between
+				throw new IOException("Couldn't connect to " + server.getHostAddress() + ", the pool released it or was stopped");
+			}
+		}
+
+		//The supervisor swaps in a new handler on every reconnect, so keep checking the current one until time runs out
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		try{
+			while(true){
+				connection = supervised.getConnection();
+				long remaining = deadline - System.nanoTime();
+
+				if(connection.awaitAuthenticated(Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(100)), TimeUnit.NANOSECONDS)){
+					break;
+				}
+				if(remaining <= 0 || !supervised.isRunning()){
+					throw new IOException("Couldn't authenticate with " + server.getHostAddress() + " in time");
+				}
+			}
+		} catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while connecting to " + server.getHostAddress(), e);
+		}
+
+		return connection.startStream(appID, maxXResolution, maxYResolution);
+	}
+
+	//Opens a supervised connection to the server. Returns null if there already was one, or the pool was stopped.
+	private SupervisedConnection open(final InetAddress server, CMsgRemoteClientBroadcastStatus status, boolean speculative){
+		if(stopped){
+			return null;
+		}
+		
+		ControlProtocolHandler handler = new ControlProtocolHandler(server, status, authData);
+		handler.addConnectionListener(this);	//Copied over on every reconnect
+		
+		DiscoveryProtocolHandler source = discovery;
+		if(source != null){
+			source.markDiscovery(handler.getTimeline());
+		}
+
+		final SupervisedConnection supervised = new SupervisedConnection(handler);
+		supervised.setPingInterval(latencyTable, pingInterval, TimeUnit.SECONDS);
+		if(speculative){	//Nobody is waiting on it, so don't hold a slot for a server that's gone
+			supervised.setMaxAttempts(SPECULATIVE_MAX_ATTEMPTS);
+		}
+
+		if(connections.putIfAbsent(server, supervised) != null){
+			return null;
+		}
+		if(stopped){	//stop() may have gone through the connections before ours was in them
+			connections.remove(server, supervised);
+			return null;
+		}
+
+		if(speculative){
+			speculativeConnections.add(supervised);
+		}
+
+		try{
+			threads.execute(new Runnable(){
+				@Override
+				public void run(){
+					try{
+						supervised.run();
+					} finally{	//Gave up on the server, or was stopped. Either way it's no use to startStream any more.
+						connections.remove(server, supervised);
+						freeSlot(supervised);
+					}
+				}
+			});
+		} catch(RejectedExecutionException e){	//stop() shut the threads down after we checked, this can be the discovery thread so don't throw
+			connections.remove(server, supervised);
+			speculativeConnections.remove(supervised);	//The caller gives the slot back when we return null
+			supervised.stop();
+			return null;
+		}
+		return supervised;
+	}
+
+	//Only the first call for a speculative connection frees its slot
+	private void freeSlot(SupervisedConnection supervised){
+		if(speculativeConnections.remove(supervised)){
+			speculative.decrementAndGet();
+		}
+	}
+
+	//Closes the connection to the server, freeing its slot if it was a speculative one
+	public void release(InetAddress server){
+		SupervisedConnection supervised = connections.remove(server);
+
+		if(supervised != null){
+			supervised.stop();
+			freeSlot(supervised);
+		}
+	}
+
+	public void stop(){
+		stopped = true;
+
+		DiscoveryProtocolHandler source = discovery;
+		if(source != null){
+			source.removeListener(this);
+		}
+
+		for(SupervisedConnection supervised : connections.values()){
+			supervised.stop();
+		}
+		connections.clear();
+
+		threads.shutdown();
+	}
+
+	@Override
+	public void authenticated(ControlProtocolHandler connection){
+		long latency = connection.getConnectLatency();
+		if(latency > 0){
+			connectTimes.record(latency);
+		}
+	}
+
+	@Override
+	public void disconnected(ControlProtocolHandler connection, IOException cause){
+		//The supervisor deals with this
+	}
+
+	//Set before servers are discovered, it only applies to new connections
+	public void setPingInterval(long interval, TimeUnit unit){
+		this.pingInterval = Math.max(1, unit.toSeconds(interval));
+	}
+
+	//The servers that currently have an authenticated connection
+	public List<InetAddress> getWarmServers(){
+		List<InetAddress> warm = new ArrayList<InetAddress>();
+
+		for(SupervisedConnection supervised : connections.values()){
+			ControlProtocolHandler connection = supervised.getConnection();
+			if(connection.isAuthenticated()){
+				warm.add(connection.getServer());
+			}
+		}
+
+		return warm;
+	}
+
+	public boolean isWarm(InetAddress server){
+		SupervisedConnection supervised = connections.get(server);
+		return supervised != null && supervised.getConnection().isAuthenticated();
+	}
+
+	public long getHits(){
+		return hits.get();
+	}
+
+	public long getMisses(){
+		return misses.get();
+	}
+
+	//0 to 1, or -1 if nothing has been started through the pool yet
+	public double getHitRate(){
+		long hit = hits.get();
+		long total = hit + misses.get();
+		return total == 0 ? -1 : hit / (double) total;
+	}
+
+	//Estimated nanoseconds saved across all hits
+	public long getSavedLatency(){
+		return savedLatency.get();
+	}
+
+	public LatencyHistogram getConnectTimes(){
+		return connectTimes;
+	}
+
+	public HostLatencyTable getLatencyTable(){
+		return latencyTable;
+	}
+}